@@ -0,0 +1,98 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+// counts the records and users covered by an AOI; the input records are put into a grid once, so each AOI is only
+// tested against the records within its envelope and can be counted as soon as its shape is known.
+// The counting keeps no state between AOIs, so several AOIs can be counted at the same time
+class AOIMembershipCounter
+{
+		private final PointStore rawPointStore;
+		private final int userIDIndex;
+		private final GridIndex recordIndex;
+
+
+		// the grid has cells of eps, which is about the spacing of the points of a cluster; in metres in the geodesic mode
+		AOIMembershipCounter(PointStore rawPointStore, int userIDIndex, double eps, boolean isGeodesic)
+		{
+				this(rawPointStore, userIDIndex, GridIndex.create(rawPointStore.getXCoords(), rawPointStore.getYCoords(), rawPointStore.size(), eps, isGeodesic));
+		}
+
+		// recordIndex must be a grid index over all the records of rawPointStore
+		AOIMembershipCounter(PointStore rawPointStore, int userIDIndex, GridIndex recordIndex)
+		{
+				this.rawPointStore = rawPointStore;
+				this.userIDIndex = userIDIndex;
+				this.recordIndex = recordIndex;
+		}
+
+
+		// every record is one row of the input, so the records are counted directly; users are collected and counted once at the end
+		AOICount count(Geometry aoiGeometry)
+		{
+				IntList coveredRecords = findCoveredRecords(aoiGeometry);
+				IntList aoiUserList = new IntList();
+				if(userIDIndex != -1)
+				{
+						for(int i=0;i<coveredRecords.size();i++)
+						{
+								aoiUserList.add(rawPointStore.getUserId(coveredRecords.get(i)));
+						}
+				}
+				return new AOICount(coveredRecords.size(), countDistinct(aoiUserList));
+		}
+
+
+		// the records covered by an AOI, in the order of the grid
+		IntList findCoveredRecords(Geometry aoiGeometry)
+		{
+				PreparedGeometry preparedAOI = PreparedGeometryFactory.prepare(aoiGeometry);
+				Envelope envelope = aoiGeometry.getEnvelopeInternal();
+				IntList candidateRecords = new IntList();
+				recordIndex.queryEnvelope(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(), candidateRecords);
+
+				GeometryFactory gf = new GeometryFactory();
+				IntList coveredRecords = new IntList();
+				for(int i=0;i<candidateRecords.size();i++)
+				{
+						int r = candidateRecords.get(i);
+						if(preparedAOI.covers(gf.createPoint(new Coordinate(rawPointStore.getX(r), rawPointStore.getY(r))))) coveredRecords.add(r);
+				}
+				return coveredRecords;
+		}
+
+
+		static int countDistinct(IntList values)
+		{
+				int[] sortedValues = values.toArray();
+				Arrays.sort(sortedValues);
+				int distinctCount = 0;
+				for(int i=0;i<sortedValues.length;i++)
+				{
+						if(i == 0 || sortedValues[i] != sortedValues[i-1]) distinctCount++;
+				}
+				return distinctCount;
+		}
+
+
+		// the records and users within one AOI
+		static class AOICount
+		{
+				final long recordCount;
+				final long userCount;
+
+				AOICount(long recordCount, long userCount)
+				{
+						this.recordCount = recordCount;
+						this.userCount = userCount;
+				}
+		}
+
+}
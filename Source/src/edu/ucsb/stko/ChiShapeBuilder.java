@@ -0,0 +1,271 @@
+package edu.ucsb.stko;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.vividsolutions.jts.algorithm.ConvexHull;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateList;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.triangulate.DelaunayTriangulationBuilder;
+import com.vividsolutions.jts.triangulate.IncrementalDelaunayTriangulator;
+import com.vividsolutions.jts.triangulate.quadedge.QuadEdgeSubdivision;
+import com.vividsolutions.jts.triangulate.quadedge.Vertex;
+
+// the chi-shape of a cluster (Duckham et al., 2008): starting from the Delaunay triangulation, the longest boundary edge is removed
+// together with its triangle, as long as the edge is longer than the threshold and the third vertex of the triangle is not on the
+// boundary yet, which keeps the shape a simple polygon. The boundary edges wait in a heap keyed by their length, so carving a shape
+// takes O(n log n). The triangulation is built once by the constructor, and can then be carved with any lambda, or with a list of lambdas at once
+class ChiShapeBuilder
+{
+		private final GeometryFactory geometryFactory;
+		private final Geometry convexHull;
+		private final double longestConvexHullEdge;
+
+		// the distinct points of the cluster
+		private Coordinate[] vertexCoordinates = new Coordinate[0];
+
+		// triangle t has the vertices triangleVertices[3t], [3t+1] and [3t+2] in counter-clockwise order; half-edge 3t+j goes from
+		// vertex j to vertex (j+1)%3 of triangle t, and twinEdges holds the half-edge going the other way (-1 on the convex hull)
+		private int[] triangleVertices = new int[0];
+		private int[] twinEdges = new int[0];
+		private int triangleCount = 0;
+
+
+		ChiShapeBuilder(double[] xCoords, double[] yCoords, int[] pointsInCluster, GeometryFactory geometryFactory)
+		{
+				this.geometryFactory = geometryFactory;
+
+				Coordinate[] clusterCoordinates = new Coordinate[pointsInCluster.length];
+				for(int i=0;i<pointsInCluster.length;i++)
+				{
+						clusterCoordinates[i] = new Coordinate(xCoords[pointsInCluster[i]], yCoords[pointsInCluster[i]]);
+				}
+
+				// the threshold of the chi-shape is relative to the longest edge of the convex hull
+				convexHull = new ConvexHull(clusterCoordinates, geometryFactory).getConvexHull();
+				Coordinate[] convexCoordinatesArray = convexHull.getCoordinates();
+				double longestEdge = -1.0;
+				for(int i=0;i<(convexCoordinatesArray.length-1);i++)
+				{
+						double distance = convexCoordinatesArray[i].distance(convexCoordinatesArray[i+1]);
+						if(distance > longestEdge) longestEdge = distance;
+				}
+				longestConvexHullEdge = longestEdge;
+
+				// fewer than three distinct points, or points on a line, have no triangles; their shape is the convex hull
+				if(convexHull instanceof Polygon) triangulate(clusterCoordinates);
+		}
+
+
+		private void triangulate(Coordinate[] clusterCoordinates)
+		{
+				// the triangulation starts inside a frame triangle; with the default frame, points lying just inside a long convex hull
+				// edge can end up on the boundary of the triangulation instead of the edge, so the frame is placed much further away
+				CoordinateList sites = DelaunayTriangulationBuilder.unique(clusterCoordinates);
+				Envelope frameEnvelope = DelaunayTriangulationBuilder.envelope(sites);
+				frameEnvelope.expandBy(Math.max(frameEnvelope.getWidth(), frameEnvelope.getHeight()) * 100);
+				QuadEdgeSubdivision subdivision = new QuadEdgeSubdivision(frameEnvelope, 0.0);
+				new IncrementalDelaunayTriangulator(subdivision).insertSites(DelaunayTriangulationBuilder.toVertices(sites));
+				@SuppressWarnings("unchecked")
+				List<Vertex[]> triangles = subdivision.getTriangleVertices(false);
+
+				// number the vertices and store the triangles counter-clockwise
+				HashMap<Coordinate, Integer> vertexIds = new HashMap<Coordinate, Integer>(clusterCoordinates.length * 2);
+				List<Coordinate> vertexList = new ArrayList<Coordinate>();
+				triangleCount = triangles.size();
+				triangleVertices = new int[3 * triangleCount];
+				for(int t=0;t<triangleCount;t++)
+				{
+						Vertex[] triangle = triangles.get(t);
+						for(int j=0;j<3;j++)
+						{
+								Coordinate coordinate = triangle[j].getCoordinate();
+								Integer vertexId = vertexIds.get(coordinate);
+								if(vertexId == null)
+								{
+										vertexId = vertexList.size();
+										vertexIds.put(coordinate, vertexId);
+										vertexList.add(coordinate);
+								}
+								triangleVertices[3*t + j] = vertexId;
+						}
+				}
+				vertexCoordinates = vertexList.toArray(new Coordinate[0]);
+				for(int t=0;t<triangleCount;t++)
+				{
+						Coordinate a = vertexCoordinates[triangleVertices[3*t]];
+						Coordinate b = vertexCoordinates[triangleVertices[3*t+1]];
+						Coordinate c = vertexCoordinates[triangleVertices[3*t+2]];
+						if((b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x) < 0)
+						{
+								int swap = triangleVertices[3*t+1];
+								triangleVertices[3*t+1] = triangleVertices[3*t+2];
+								triangleVertices[3*t+2] = swap;
+						}
+				}
+
+				// find the twin of every half-edge among the half-edges leaving its destination
+				int vertexCount = vertexCoordinates.length;
+				int halfEdgeCount = 3 * triangleCount;
+				int[] outStart = new int[vertexCount + 1];
+				for(int h=0;h<halfEdgeCount;h++)
+				{
+						outStart[origin(h) + 1]++;
+				}
+				for(int v=0;v<vertexCount;v++)
+				{
+						outStart[v+1] += outStart[v];
+				}
+				int[] outEdges = new int[halfEdgeCount];
+				int[] fillPosition = new int[vertexCount];
+				System.arraycopy(outStart, 0, fillPosition, 0, vertexCount);
+				for(int h=0;h<halfEdgeCount;h++)
+				{
+						outEdges[fillPosition[origin(h)]++] = h;
+				}
+
+				twinEdges = new int[halfEdgeCount];
+				for(int h=0;h<halfEdgeCount;h++)
+				{
+						twinEdges[h] = -1;
+						int from = origin(h);
+						int to = destination(h);
+						for(int k=outStart[to];k<outStart[to+1];k++)
+						{
+								if(destination(outEdges[k]) == from)
+								{
+										twinEdges[h] = outEdges[k];
+										break;
+								}
+						}
+				}
+		}
+
+
+		// the chi-shape with edgeThreshold = longest convex hull edge * 0.01 * lambda, as a polygon whose shell is clockwise;
+		// the convex hull if the points have no triangles, and null if the boundary could not be traced
+		Geometry build(double lambda)
+		{
+				return build(new double[]{lambda})[0];
+		}
+
+
+		// the chi-shapes for several lambda values. Edges are always removed longest first, so the chi-shape of a smaller threshold
+		// is the one of a larger threshold eroded further: the thresholds are visited from the largest down, and a single pass over
+		// the triangulation yields all the shapes
+		Geometry[] build(double[] lambdaValues)
+		{
+				Geometry[] chiShapes = new Geometry[lambdaValues.length];
+				if(triangleCount == 0)
+				{
+						Arrays.fill(chiShapes, convexHull);
+						return chiShapes;
+				}
+
+				int halfEdgeCount = 3 * triangleCount;
+				boolean[] isRemoved = new boolean[triangleCount];
+				boolean[] isBoundaryVertex = new boolean[vertexCoordinates.length];
+				boolean[] isBoundaryEdge = new boolean[halfEdgeCount];
+
+				// the longest edge comes first, so the lengths are stored negated
+				DoubleIntHeap boundaryEdgeHeap = new DoubleIntHeap(Math.max(16, (int)Math.sqrt(halfEdgeCount) * 4));
+				for(int h=0;h<halfEdgeCount;h++)
+				{
+						if(twinEdges[h] != -1) continue;
+						isBoundaryEdge[h] = true;
+						isBoundaryVertex[origin(h)] = true;
+						boundaryEdgeHeap.add(-edgeLength(h), h);
+				}
+
+				double[] sortedLambdaValues = lambdaValues.clone();
+				Arrays.sort(sortedLambdaValues);
+				for(int s=sortedLambdaValues.length-1;s>=0;s--)
+				{
+						double lambda = sortedLambdaValues[s];
+						if(s < sortedLambdaValues.length-1 && sortedLambdaValues[s+1] == lambda) continue;
+						double edgeThreshold = longestConvexHullEdge * 0.01 * lambda;
+
+						while(!boundaryEdgeHeap.isEmpty() && -boundaryEdgeHeap.peekKey() > edgeThreshold)
+						{
+								int h = boundaryEdgeHeap.poll();
+								int t = h / 3;
+								if(isRemoved[t]) continue;
+
+								// removing the triangle would make its third vertex touch the boundary twice; since a vertex never
+								// leaves the boundary again, the edge stays for the smaller thresholds as well
+								int thirdVertex = triangleVertices[3*t + (h % 3 + 2) % 3];
+								if(isBoundaryVertex[thirdVertex]) continue;
+
+								isRemoved[t] = true;
+								isBoundaryEdge[h] = false;
+								isBoundaryVertex[thirdVertex] = true;
+								for(int j=1;j<3;j++)
+								{
+										int twin = twinEdges[3*t + (h % 3 + j) % 3];
+										isBoundaryEdge[twin] = true;
+										boundaryEdgeHeap.add(-edgeLength(twin), twin);
+								}
+						}
+
+						Geometry chiShape = traceBoundary(isBoundaryEdge);
+						for(int i=0;i<lambdaValues.length;i++)
+						{
+								if(lambdaValues[i] == lambda) chiShapes[i] = chiShape;
+						}
+				}
+				return chiShapes;
+		}
+
+
+		// follow the boundary edges, which run counter-clockwise around the remaining triangles
+		private Geometry traceBoundary(boolean[] isBoundaryEdge)
+		{
+				int[] nextVertex = new int[vertexCoordinates.length];
+				int boundaryEdgeCount = 0;
+				int startVertex = Integer.MAX_VALUE;
+				for(int h=0;h<isBoundaryEdge.length;h++)
+				{
+						if(!isBoundaryEdge[h]) continue;
+						nextVertex[origin(h)] = destination(h) + 1;
+						boundaryEdgeCount++;
+						startVertex = Math.min(startVertex, origin(h));
+				}
+
+				Coordinate[] ringCoordinates = new Coordinate[boundaryEdgeCount + 1];
+				int vertex = startVertex;
+				for(int i=0;i<boundaryEdgeCount;i++)
+				{
+						ringCoordinates[i] = new Coordinate(vertexCoordinates[vertex]);
+						vertex = nextVertex[vertex] - 1;
+						if(vertex < 0 || (vertex == startVertex) != (i == boundaryEdgeCount - 1)) return null;
+				}
+				ringCoordinates[boundaryEdgeCount] = new Coordinate(vertexCoordinates[startVertex]);
+
+				Polygon chiShape = geometryFactory.createPolygon(geometryFactory.createLinearRing(ringCoordinates), null);
+				chiShape.normalize();
+				return chiShape;
+		}
+
+
+		private int origin(int halfEdge)
+		{
+				return triangleVertices[halfEdge];
+		}
+
+		private int destination(int halfEdge)
+		{
+				return triangleVertices[halfEdge - halfEdge % 3 + (halfEdge % 3 + 1) % 3];
+		}
+
+		private double edgeLength(int halfEdge)
+		{
+				return vertexCoordinates[origin(halfEdge)].distance(vertexCoordinates[destination(halfEdge)]);
+		}
+
+}
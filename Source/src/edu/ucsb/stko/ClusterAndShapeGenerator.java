@@ -4,19 +4,24 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.commons.math3.ml.clustering.Cluster;
 import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
 import org.apache.commons.math3.ml.clustering.DoublePoint;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.opensphere.geometry.algorithm.ConcaveHull;
 
 import au.com.bytecode.opencsv.CSVReader;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateFilter;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -24,73 +29,116 @@ import com.vividsolutions.jts.geom.Point;
 
 class ClusterAndShapeGenerator
 {
-		public JSONObject generateClusterAndShapes(JSONObject parameterObject, JSONObject dataSummaryObject, JSONObject processedDataSummaryObject)
+		// the OPTICS ordering of the processed points, which the "optics" engine keeps for the clusters of the next eps value
+		private OPTICSOrdering opticsOrdering = null;
+		
+		
+		// cluster the processed points with the given eps; the AOI features are written as soon as each of them is complete, by one writer for each
+		// lambda value of ParameterReader.getLambdaValues. The returned object holds the number of AOIs of the first lambda value
+		public JSONObject generateClusterAndShapes(JSONObject parameterObject, JSONObject dataSummaryObject, JSONObject processedDataSummaryObject, PointStore processedPointStore, DataIngestor dataIngestor, double distanceThreshold, EsriJSONWriter[] esriJSONWriters)
 		{
 				System.out.println("Clustering and generating shapes...");
 				try
 				{
+						// the "optics" engine can extract the clusters of several eps values in one run, each with its own outputs
+						boolean isEpsList = ParameterReader.getClusterEpsValues(parameterObject).length > 1;
+						if(isEpsList) System.out.println("The clusters are extracted for eps "+JSONObject.numberToString(distanceThreshold)+".");
+						
 						// get the input parameters
 						int userIDIndex = parameterObject.getInt("userIDIndex");
+						boolean isGeodesic = parameterObject.optBoolean("geodesicEps", false);
 						
 						// get info about the data
 						String tempFileName = processedDataSummaryObject.getString("file");
 						long userCount = 0;
 						if(userIDIndex != -1) userCount = processedDataSummaryObject.getInt("userCount");
 						long recordCount = processedDataSummaryObject.getInt("recordCount");
-										
-						File inputFile = new File(tempFileName);
-						FileReader inputFileReader = new FileReader(inputFile);
-						CSVReader inputCsvReader = new CSVReader(inputFileReader);
 						
-						String[] thisInputLine = null;
-						List<DoublePoint> dataPointList = new ArrayList<DoublePoint>(1500);
-						while((thisInputLine = inputCsvReader.readNext())!= null)
+						// the processed points are either handed over in memory by the preprocessor, or read back from the processed file
+						if(processedPointStore == null)
 						{
-    							double[] thisCoordDouble = new double[2];
-    							if(userIDIndex == -1)
-    							{
-    									thisCoordDouble[0] = Double.parseDouble(thisInputLine[2]);
-    									thisCoordDouble[1] = Double.parseDouble(thisInputLine[1]);
-    							}
-    							else 
-    							{
-    									thisCoordDouble[0] = Double.parseDouble(thisInputLine[3]);
-    									thisCoordDouble[1] = Double.parseDouble(thisInputLine[2]);
-    						    }
-    							DoublePoint thisCoordPoint = new DoublePoint(thisCoordDouble);
-    							dataPointList.add(thisCoordPoint);
+								processedPointStore = readProcessedFile(tempFileName, userIDIndex);
 						}
-						inputCsvReader.close();
+						int pointCount = processedPointStore.size();
+						double[] xCoords = processedPointStore.getXCoords();
+						double[] yCoords = processedPointStore.getYCoords();
 						
 						
 						// derive the input parameters for DBSCAN
-						boolean isMinPtsPercent = parameterObject.getBoolean("minPtsPercentage");
-						int minPts = 0;
-						if(!isMinPtsPercent)
+						int minPts = getMinPts(parameterObject.getDouble("minPts"), parameterObject.getBoolean("minPtsPercentage"), userIDIndex, recordCount, userCount);
+						double clusterSizeLimit = minPts;
+						
+						String dbscanEngine = parameterObject.optString("dbscanEngine", "grid");
+						int[][] clusterMembers = null;
+						DBSCANResult gridClusterResult = null;
+						SpatialOrder spatialOrder = null;
+						if(dbscanEngine.equals("commons-math"))
 						{
-								minPts = (int)Math.ceil(parameterObject.getDouble("minPts"));
+								List<DoublePoint> dataPointList = new ArrayList<DoublePoint>(pointCount);
+								for(int i=0;i<pointCount;i++)
+								{
+										dataPointList.add(new DoublePoint(new double[]{xCoords[i], yCoords[i]}));
+								}
+								DBSCANClusterer<DoublePoint> dbscanClusterer = new DBSCANClusterer<DoublePoint>(distanceThreshold,minPts);
+								List<Cluster<DoublePoint>> clusterResult = dbscanClusterer.cluster(dataPointList);
+								clusterMembers = getClusterMemberIndexes(clusterResult, dataPointList);
+						}
+						else if(dbscanEngine.equals("optics"))
+						{
+								if(opticsOrdering == null) opticsOrdering = getOPTICSOrdering(xCoords, yCoords, pointCount, minPts, tempFileName, parameterObject);
+								gridClusterResult = opticsOrdering.extractClusters(distanceThreshold);
+								clusterMembers = gridClusterResult.getClusterMembers();
+						}
+						else if(dbscanEngine.equals("hdbscan"))
+						{
+								ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+								try
+								{
+										gridClusterResult = new HDBSCANClusterer(minPts, pool).cluster(xCoords, yCoords, pointCount);
+								}
+								finally
+								{
+										pool.shutdown();
+								}
+								clusterMembers = gridClusterResult.getClusterMembers();
+						}
+						else if(parameterObject.optBoolean("neighbourhoodGraph", false))
+						{
+								gridClusterResult = clusterNeighbourhoodGraph(xCoords, yCoords, pointCount, distanceThreshold, minPts, tempFileName, parameterObject);
+								clusterMembers = gridClusterResult.getClusterMembers();
 						}
 						else
 						{
-							if(userIDIndex == -1)
-							{
-									minPts = (int)Math.ceil((parameterObject.getDouble("minPts") * recordCount));
-							}
-							else
-							{
-									minPts = (int)Math.ceil((parameterObject.getDouble("minPts") * userCount));
-							}
+								int threadCount = ParallelTasks.getThreadCount(parameterObject);
+								ForkJoinPool pool = new ForkJoinPool(threadCount);
+								try
+								{
+										// the points are clustered in the order of a Hilbert curve, and the clusters are then mapped back to the order of the processed points
+										if(parameterObject.optBoolean("spatialOrder", true)) spatialOrder = new SpatialOrder(xCoords, yCoords, pointCount, pool);
+										double[] clusteredXCoords = (spatialOrder != null) ? spatialOrder.getXCoords() : xCoords;
+										double[] clusteredYCoords = (spatialOrder != null) ? spatialOrder.getYCoords() : yCoords;
+										GridIndex gridIndex = GridIndex.create(clusteredXCoords, clusteredYCoords, pointCount, distanceThreshold, isGeodesic);
+										if(threadCount > 1)
+										{
+												ParallelDBSCANClusterer parallelClusterer = new ParallelDBSCANClusterer(distanceThreshold, minPts, pool, isGeodesic);
+												gridClusterResult = parallelClusterer.cluster(gridIndex);
+										}
+										else
+										{
+												GridDBSCANClusterer gridClusterer = new GridDBSCANClusterer(distanceThreshold, minPts, isGeodesic);
+												gridClusterResult = gridClusterer.cluster(gridIndex, null);
+										}
+										if(spatialOrder != null) gridClusterResult = spatialOrder.restoreOrder(gridClusterResult, gridIndex, distanceThreshold, pool);
+								}
+								finally
+								{
+										pool.shutdown();
+								}
+								clusterMembers = gridClusterResult.getClusterMembers();
 						}
 						
-						if(minPts<3) minPts = 3;
-						double clusterSizeLimit = minPts;
-						
-						double distanceThreshold = parameterObject.getDouble("eps");
-						DBSCANClusterer<DoublePoint> dbscanClusterer = new DBSCANClusterer<DoublePoint>(distanceThreshold,minPts);
-						List<Cluster<DoublePoint>> clusterResult = dbscanClusterer.cluster(dataPointList);
-						
 						// write the clustered result into a file
-						File clusteredFileResult = new File(tempFileName.replaceAll("processed.csv", "")+"clustered.csv");
+						File clusteredFileResult = new File(tempFileName.replaceAll("processed.csv", "")+(isEpsList ? "eps"+JSONObject.numberToString(distanceThreshold)+"_" : "")+"clustered.csv");
 						if(clusteredFileResult.exists())
 						{
 							clusteredFileResult.delete();
@@ -101,48 +149,65 @@ class ClusterAndShapeGenerator
 
 						// go through the clusters
 						int clusterIndex = 1;
-						for(int i=0;i<clusterResult.size();i++)
+						for(int i=0;i<clusterMembers.length;i++)
 						{
-    							List<DoublePoint> pointsCluster = clusterResult.get(i).getPoints();
-    							int thisClusterSize = pointsCluster.size();			
+    							int[] memberIndexes = clusterMembers[i];
+    							int thisClusterSize = memberIndexes.length;			
     							
     							if(thisClusterSize >= clusterSizeLimit)
     							{
-    								for(int j=0;j<pointsCluster.size();j++)
+    								for(int j=0;j<memberIndexes.length;j++)
     								{
-    									double[] pointCoords = pointsCluster.get(j).getPoint();			
-    									clusterFileWriter.append(pointCoords[0]+","+pointCoords[1]+","+"cluster_"+clusterIndex+","+newLineSymbol);
+    									int pointIndex = memberIndexes[j];
+    									// the built-in engines also know whether each point is a core or a border point
+    									String pointTypeName = (gridClusterResult != null) ? DBSCANResult.getPointTypeName(gridClusterResult.getPointType(pointIndex)) : "";
+    									clusterFileWriter.append(xCoords[pointIndex]+","+yCoords[pointIndex]+","+"cluster_"+clusterIndex+","+pointTypeName+newLineSymbol);
     								}
     								clusterIndex++;
     							}
 						}
 						clusterFileWriter.close();
 						
-						// begin to construct shapes from clusters
-						JSONObject clusterResultObject = new JSONObject();
-						JSONArray featuresArray = new JSONArray();				
-						
-						clusterIndex = 1;
-						for(int i=0;i<clusterResult.size();i++)
+						// construct the shapes of each cluster, then count the records and users within them and write them out right away;
+						// in a lambda sweep, each cluster is triangulated once for all the lambda values. With the spatial order, the members are
+						// gathered from the reordered points, in the same order and with the same coordinates
+						if(spatialOrder != null)
+						{
+								xCoords = spatialOrder.getXCoords();
+								yCoords = spatialOrder.getYCoords();
+								clusterMembers = spatialOrder.toPositions(clusterMembers);
+						}
+						double[] lambdaValues = ParameterReader.getLambdaValues(parameterObject);
+						AOIMembershipCounter aoiMembershipCounter = new AOIMembershipCounter(dataIngestor.getRawPointStore(), userIDIndex, distanceThreshold, isGeodesic);
+						IntList aoiClusters = new IntList();
+						for(int i=0;i<clusterMembers.length;i++)
+						{
+								if(clusterMembers[i].length >= clusterSizeLimit) aoiClusters.add(i);
+						}
+						int threadCount = ParallelTasks.getThreadCount(parameterObject);
+						if(threadCount > 1)
+						{
+								buildShapesInParallel(xCoords, yCoords, clusterMembers, aoiClusters, aoiMembershipCounter, lambdaValues, threadCount, parameterObject, dataSummaryObject, esriJSONWriters);
+						}
+						else
 						{
-							List<DoublePoint> pointsCluster = clusterResult.get(i).getPoints();
-							int thisClusterSize = pointsCluster.size();
-							
-							if(thisClusterSize >= clusterSizeLimit)
-							{
-								JSONObject thisFeatureObject = createConcaveHull(pointsCluster, clusterIndex, parameterObject, dataSummaryObject);			
-								if(thisFeatureObject == null)
+								for(int k=0;k<aoiClusters.size();k++)
 								{
-									continue;
+										AOIShape aoiShape = buildShape(xCoords, yCoords, clusterMembers[aoiClusters.get(k)], aoiMembershipCounter, lambdaValues, parameterObject);
+										writeAOIFeatures(esriJSONWriters, aoiShape, parameterObject, dataSummaryObject);
 								}
-								featuresArray.put(thisFeatureObject);
-								
-								clusterIndex++;
-							}
 						}
-						clusterResultObject.put("features", featuresArray);
 						
-						System.out.println(clusterResultObject.toString());
+						JSONObject clusterResultObject = new JSONObject();
+						clusterResultObject.put("aoiCount", esriJSONWriters[0].getFeatureCount());
+						
+						for(int i=0;i<esriJSONWriters.length;i++)
+						{
+								if(esriJSONWriters.length == 1)
+										System.out.println(esriJSONWriters[i].getFeatureCount()+" AOIs have been written.");
+								else
+										System.out.println(esriJSONWriters[i].getFeatureCount()+" AOIs have been written for lambda "+JSONObject.numberToString(lambdaValues[i])+".");
+						}
 						System.out.println("Clustering and shape construction have finished...");
 						System.out.println("---------------------------------------------------");
 						return clusterResultObject;
@@ -155,20 +220,340 @@ class ClusterAndShapeGenerator
 		}
 		
 		
-		JSONObject createConcaveHull(List<DoublePoint> pointsInCluster, int clusterId, JSONObject parameterObject, JSONObject dataSummaryObject)
+		// DBSCAN over the eps-neighbourhood graph of the processed points; the graph saved in tempPath by an earlier run with the same points
+		// and eps is used if there is one, so that reruns with another minPts skip all the region queries
+		private DBSCANResult clusterNeighbourhoodGraph(double[] xCoords, double[] yCoords, int pointCount, double distanceThreshold, int minPts, String tempFileName, JSONObject parameterObject) throws Exception
+		{
+				File graphFile = null;
+				NeighbourhoodGraph neighbourhoodGraph = null;
+				boolean isGeodesic = parameterObject.optBoolean("geodesicEps", false);
+				if(parameterObject.optBoolean("neighbourhoodGraphFile", true))
+				{
+						// a geodesic eps is in metres, so its graph is kept apart from that of the same planar eps
+						graphFile = new File(tempFileName.replaceAll("processed.csv", "")+"eps"+JSONObject.numberToString(distanceThreshold)+(isGeodesic ? "m" : "")+"_graph.bin");
+						try
+						{
+								neighbourhoodGraph = NeighbourhoodGraph.load(graphFile, distanceThreshold, xCoords, yCoords, pointCount);
+						}
+						catch (Exception e)
+						{
+								neighbourhoodGraph = null;
+						}
+						if(neighbourhoodGraph != null) System.out.println("The neighbourhood graph has been loaded from "+graphFile.getPath()+".");
+				}
+				
+				if(neighbourhoodGraph == null)
+				{
+						ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+						try
+						{
+								neighbourhoodGraph = NeighbourhoodGraph.build(GridIndex.create(xCoords, yCoords, pointCount, distanceThreshold, isGeodesic), distanceThreshold, null, pool);
+						}
+						finally
+						{
+								pool.shutdown();
+						}
+						System.out.println("The neighbourhood graph has been built with "+neighbourhoodGraph.getEdgeCount()+" neighbour entries.");
+						
+						if(graphFile != null)
+						{
+								try
+								{
+										neighbourhoodGraph.save(graphFile, xCoords, yCoords);
+								}
+								catch (Exception e)
+								{
+										System.out.println("The neighbourhood graph could not be saved in "+graphFile.getPath()+".");
+								}
+						}
+				}
+				return neighbourhoodGraph.cluster(minPts);
+		}
+		
+		
+		// the OPTICS ordering of the processed points up to ParameterReader.getOpticsMaxEps; an ordering saved in tempPath by an earlier run with the same points
+		// and minPts and at least this bound is used if there is one, so that reruns with another eps skip all the region queries
+		private OPTICSOrdering getOPTICSOrdering(double[] xCoords, double[] yCoords, int pointCount, int minPts, String tempFileName, JSONObject parameterObject) throws Exception
+		{
+				double maxEps = ParameterReader.getOpticsMaxEps(parameterObject);
+				File orderingFile = null;
+				OPTICSOrdering ordering = null;
+				if(parameterObject.optBoolean("opticsFile", true))
+				{
+						orderingFile = new File(tempFileName.replaceAll("processed.csv", "")+"minPts"+minPts+"_optics.bin");
+						try
+						{
+								ordering = OPTICSOrdering.load(orderingFile, maxEps, minPts, xCoords, yCoords, pointCount);
+						}
+						catch (Exception e)
+						{
+								ordering = null;
+						}
+						if(ordering != null) System.out.println("The OPTICS ordering for eps up to "+JSONObject.numberToString(ordering.getMaxEps())+" has been loaded from "+orderingFile.getPath()+".");
+				}
+				
+				if(ordering == null)
+				{
+						ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+						try
+						{
+								ordering = OPTICSOrdering.build(new GridIndex(xCoords, yCoords, pointCount, maxEps), xCoords, yCoords, maxEps, minPts, pool);
+						}
+						finally
+						{
+								pool.shutdown();
+						}
+						System.out.println("The OPTICS ordering has been built for eps up to "+JSONObject.numberToString(maxEps)+".");
+						
+						if(orderingFile != null)
+						{
+								try
+								{
+										ordering.save(orderingFile, xCoords, yCoords);
+								}
+								catch (Exception e)
+								{
+										System.out.println("The OPTICS ordering could not be saved in "+orderingFile.getPath()+".");
+								}
+						}
+				}
+				return ordering;
+		}
+		
+		
+		// the absolute minPts: a percentage is taken of the processed users, or of the processed records if there are no user ids; at least 3
+		static int getMinPts(double minPtsValue, boolean isMinPtsPercent, int userIDIndex, long recordCount, long userCount)
+		{
+				int minPts = 0;
+				if(!isMinPtsPercent)
+				{
+						minPts = (int)Math.ceil(minPtsValue);
+				}
+				else
+				{
+					if(userIDIndex == -1)
+					{
+							minPts = (int)Math.ceil((minPtsValue * recordCount));
+					}
+					else
+					{
+							minPts = (int)Math.ceil((minPtsValue * userCount));
+					}
+				}
+				
+				if(minPts<3) minPts = 3;
+				return minPts;
+		}
+		
+		
+		// the shapes are built on a work-stealing pool, starting with the largest clusters since they take longest; the features are
+		// still written in the order of the clusters, each one as soon as it and all the clusters before it are done, so the AOI
+		// numbering and the output are the same as in the sequential loop
+		private void buildShapesInParallel(final double[] xCoords, final double[] yCoords, final int[][] clusterMembers, IntList aoiClusters, final AOIMembershipCounter aoiMembershipCounter, final double[] lambdaValues, int threadCount, final JSONObject parameterObject, JSONObject dataSummaryObject, EsriJSONWriter[] esriJSONWriters) throws Exception
+		{
+				int aoiClusterCount = aoiClusters.size();
+				long[] sizeOrder = new long[aoiClusterCount];
+				for(int k=0;k<aoiClusterCount;k++)
+				{
+						sizeOrder[k] = ((long)(Integer.MAX_VALUE - clusterMembers[aoiClusters.get(k)].length) << 32) | k;
+				}
+				Arrays.sort(sizeOrder);
+				
+				ForkJoinPool pool = new ForkJoinPool(threadCount);
+				try
+				{
+						ArrayList<ForkJoinTask<AOIShape>> shapeTasks = new ArrayList<ForkJoinTask<AOIShape>>(Collections.<ForkJoinTask<AOIShape>>nCopies(aoiClusterCount, null));
+						for(int rank=0;rank<aoiClusterCount;rank++)
+						{
+								int k = (int)(sizeOrder[rank] & 0xffffffffL);
+								final int[] members = clusterMembers[aoiClusters.get(k)];
+								shapeTasks.set(k, pool.submit(() -> buildShape(xCoords, yCoords, members, aoiMembershipCounter, lambdaValues, parameterObject)));
+						}
+						
+						for(int k=0;k<aoiClusterCount;k++)
+						{
+								AOIShape aoiShape = shapeTasks.get(k).get();
+								shapeTasks.set(k, null);
+								writeAOIFeatures(esriJSONWriters, aoiShape, parameterObject, dataSummaryObject);
+						}
+				}
+				finally
+				{
+						pool.shutdownNow();
+				}
+		}
+		
+		
+		// the shapes of a cluster for each lambda value and the records and users within them; the entries of the shapes that could not be constructed are null
+		private AOIShape buildShape(double[] xCoords, double[] yCoords, int[] members, AOIMembershipCounter aoiMembershipCounter, double[] lambdaValues, JSONObject parameterObject)
+		{
+				Geometry[] concaveHullGeometries = createConcaveHulls(xCoords, yCoords, members, lambdaValues, parameterObject);
+				AOIMembershipCounter.AOICount[] aoiCounts = new AOIMembershipCounter.AOICount[lambdaValues.length];
+				for(int i=0;i<lambdaValues.length;i++)
+				{
+						if(concaveHullGeometries[i] == null) continue;
+						
+						// neighboring lambda values often give the same shape, which is counted only once
+						for(int j=0;j<i;j++)
+						{
+								if(concaveHullGeometries[j] != null && concaveHullGeometries[j].equalsExact(concaveHullGeometries[i])) aoiCounts[i] = aoiCounts[j];
+						}
+						if(aoiCounts[i] == null) aoiCounts[i] = aoiMembershipCounter.count(concaveHullGeometries[i]);
+				}
+				return new AOIShape(concaveHullGeometries, aoiCounts);
+		}
+		
+		private static class AOIShape
+		{
+				final Geometry[] geometries;
+				final AOIMembershipCounter.AOICount[] aoiCounts;
+				
+				AOIShape(Geometry[] geometries, AOIMembershipCounter.AOICount[] aoiCounts)
+				{
+						this.geometries = geometries;
+						this.aoiCounts = aoiCounts;
+				}
+		}
+		
+		
+		// write the shapes of a cluster, each one to the output of its lambda value; the AOIs of each output are numbered by the shapes written to it
+		private void writeAOIFeatures(EsriJSONWriter[] esriJSONWriters, AOIShape aoiShape, JSONObject parameterObject, JSONObject dataSummaryObject) throws Exception
+		{
+				for(int i=0;i<esriJSONWriters.length;i++)
+				{
+						if(aoiShape.geometries[i] == null) continue;
+						writeAOIFeature(esriJSONWriters[i], aoiShape.geometries[i], esriJSONWriters[i].getFeatureCount()+1, aoiShape.aoiCounts[i].recordCount, aoiShape.aoiCounts[i].userCount, parameterObject, dataSummaryObject);
+				}
+		}
+		
+		
+		// read the points back from the processed file written by the preprocessor
+		static PointStore readProcessedFile(String tempFileName, int userIDIndex) throws Exception
+		{
+				File inputFile = new File(tempFileName);
+				FileReader inputFileReader = new FileReader(inputFile);
+				CSVReader inputCsvReader = new CSVReader(inputFileReader);
+				
+				String[] thisInputLine = null;
+				PointStore pointStore = new PointStore(1500);
+				while((thisInputLine = inputCsvReader.readNext())!= null)
+				{
+						if(userIDIndex == -1)
+								pointStore.add(Double.parseDouble(thisInputLine[2]), Double.parseDouble(thisInputLine[1]), -1, pointStore.size());
+						else 
+								pointStore.add(Double.parseDouble(thisInputLine[3]), Double.parseDouble(thisInputLine[2]), -1, pointStore.size());
+				}
+				inputCsvReader.close();
+				return pointStore;
+		}
+		
+		
+		// map the points of the commons-math clusters back to their index in the point store
+		private int[][] getClusterMemberIndexes(List<Cluster<DoublePoint>> clusterResult, List<DoublePoint> dataPointList)
+		{
+				IdentityHashMap<DoublePoint, Integer> pointIndexTable = new IdentityHashMap<>(dataPointList.size());
+				for(int i=0;i<dataPointList.size();i++)
+				{
+						pointIndexTable.put(dataPointList.get(i), i);
+				}
+				
+				int[][] clusterMembers = new int[clusterResult.size()][];
+				for(int i=0;i<clusterResult.size();i++)
+				{
+						List<DoublePoint> pointsCluster = clusterResult.get(i).getPoints();
+						clusterMembers[i] = new int[pointsCluster.size()];
+						for(int j=0;j<pointsCluster.size();j++)
+						{
+								clusterMembers[i][j] = pointIndexTable.get(pointsCluster.get(j));
+						}
+				}
+				return clusterMembers;
+		}
+		
+		
+		// the concave hulls of a cluster for each lambda value, from the built-in chi-shape ("concaveHullEngine": "chi-shape") or from the opensphere
+		// ConcaveHull; both use the edge threshold longest convex hull edge * 0.01 * lambda. The chi-shape triangulates the cluster only once for
+		// all the lambda values, while the opensphere ConcaveHull is run again for each of them
+		Geometry[] createConcaveHulls(double[] xCoords, double[] yCoords, int[] pointsInCluster, double[] lambdaValues, JSONObject parameterObject)
 		{
+				if(parameterObject.optBoolean("geodesicEps", false)) return createGeodesicConcaveHulls(xCoords, yCoords, pointsInCluster, lambdaValues, parameterObject);
+				return createPlanarConcaveHulls(xCoords, yCoords, pointsInCluster, lambdaValues, parameterObject);
+		}
+
+
+		// in the geodesic mode the hulls are built on the longitudes scaled by the cosine of the middle latitude of the cluster, so that
+		// the edge lengths are about the same on the ground in every direction; the vertices of the hulls are then put back at the
+		// longitudes and latitudes of their records. A cluster across the antimeridian keeps going past 180 (or -180) degrees
+		private Geometry[] createGeodesicConcaveHulls(double[] xCoords, double[] yCoords, int[] pointsInCluster, double[] lambdaValues, JSONObject parameterObject)
+		{
+				int memberCount = pointsInCluster.length;
+				double firstLng = xCoords[pointsInCluster[0]];
+				double minLat = Double.MAX_VALUE;
+				double maxLat = -Double.MAX_VALUE;
+				for(int i=0;i<memberCount;i++)
+				{
+						minLat = Math.min(minLat, yCoords[pointsInCluster[i]]);
+						maxLat = Math.max(maxLat, yCoords[pointsInCluster[i]]);
+				}
+				final double cosLat = Math.max(1e-9, GeodesicDistance.getCosLat((minLat + maxLat) / 2));
+
+				double[] localX = new double[memberCount];
+				double[] localY = new double[memberCount];
+				int[] localPoints = new int[memberCount];
+				final HashMap<Coordinate, Coordinate> recordCoordinates = new HashMap<Coordinate, Coordinate>(memberCount * 2);
+				for(int i=0;i<memberCount;i++)
+				{
+						double lng = xCoords[pointsInCluster[i]];
+						if(lng - firstLng > 180) lng -= 360;
+						else if(lng - firstLng < -180) lng += 360;
+						localX[i] = (lng - firstLng) * cosLat;
+						localY[i] = yCoords[pointsInCluster[i]];
+						localPoints[i] = i;
+						recordCoordinates.put(new Coordinate(localX[i], localY[i]), new Coordinate(lng, localY[i]));
+				}
+
+				final double originLng = firstLng;
+				CoordinateFilter restoreFilter = new CoordinateFilter()
+				{
+						public void filter(Coordinate coordinate)
+						{
+								Coordinate recordCoordinate = recordCoordinates.get(coordinate);
+								coordinate.x = (recordCoordinate != null) ? recordCoordinate.x : originLng + coordinate.x / cosLat;
+						}
+				};
+				Geometry[] concaveHullGeometries = createPlanarConcaveHulls(localX, localY, localPoints, lambdaValues, parameterObject);
+				for(int i=0;i<concaveHullGeometries.length;i++)
+				{
+						if(concaveHullGeometries[i] == null) continue;
+						concaveHullGeometries[i] = (Geometry)concaveHullGeometries[i].clone();
+						concaveHullGeometries[i].apply(restoreFilter);
+						concaveHullGeometries[i].geometryChanged();
+				}
+				return concaveHullGeometries;
+		}
+
+
+		private Geometry[] createPlanarConcaveHulls(double[] xCoords, double[] yCoords, int[] pointsInCluster, double[] lambdaValues, JSONObject parameterObject)
+		{
+    			Geometry[] concaveHullGeometries = new Geometry[lambdaValues.length];
     			try 
     			{		
     				GeometryFactory gf = new GeometryFactory();
-    				int numberOfPointsInCluster = pointsInCluster.size();
+    				if(!parameterObject.optString("concaveHullEngine", "chi-shape").equals("opensphere"))
+    				{
+    						ChiShapeBuilder chiShapeBuilder = new ChiShapeBuilder(xCoords, yCoords, pointsInCluster, gf);
+    						return chiShapeBuilder.build(lambdaValues);
+    				}
+    				
+    				int numberOfPointsInCluster = pointsInCluster.length;
     				
     				 Coordinate[] vertices = new Coordinate[numberOfPointsInCluster];
     				 Point[] pointArray = new Point[numberOfPointsInCluster];
     				 
     				 for(int i=0;i<numberOfPointsInCluster;i++)
     				 {
-    					 double[] thisCoords = pointsInCluster.get(i).getPoint();
-    					 vertices[i] = new Coordinate(thisCoords[0],thisCoords[1]);
+    					 int pointIndex = pointsInCluster[i];
+    					 vertices[i] = new Coordinate(xCoords[pointIndex],yCoords[pointIndex]);
     					 pointArray[i] = gf.createPoint(vertices[i]);
     				 }
     				 
@@ -189,161 +574,41 @@ class ClusterAndShapeGenerator
     		        }
     		        // finish the longest edge
     				
-    		         double lambda = parameterObject.getDouble("lambda");
-    				 double edgeThreshold =  longestEdgeOfConvexhull * 0.01 * lambda;
-    				 
-    				 ConcaveHull concaveHull = new ConcaveHull(allPointCollection,edgeThreshold);
-    				 Geometry concaveHullResultGeometry = concaveHull.getConcaveHull();
-    				 
-    				 Hashtable<String, Long> recordAndUserTable = countRecordAndUserInAOI(concaveHullResultGeometry, parameterObject);
-    				 
-    				 
-    				 long recordCountInAOI = recordAndUserTable.get("recordCount");
+    		         for(int i=0;i<lambdaValues.length;i++)
+    		         {
+    		        	 double edgeThreshold =  longestEdgeOfConvexhull * 0.01 * lambdaValues[i];
+    		        	 
+    		        	 ConcaveHull concaveHull = new ConcaveHull(allPointCollection,edgeThreshold);
+    		        	 concaveHullGeometries[i] = concaveHull.getConcaveHull();
+    		         }
+    			} 
+    			catch (Exception e) 
+    			{
+    				e.printStackTrace();
+    			}
+    			return concaveHullGeometries;
+		}
+		
+		
+		void writeAOIFeature(EsriJSONWriter esriJSONWriter, Geometry concaveHullResultGeometry, int clusterId, long recordCountInAOI, long userCountInAOI, JSONObject parameterObject, JSONObject dataSummaryObject) throws Exception
+		{
     				 long totalRecordCount = dataSummaryObject.getLong("recordCount");
     				 double recordPercentageValue = (recordCountInAOI * 1.0)/ (totalRecordCount * 1.0);
     				 
-    				// double minPts = parameterObject.getDouble("minPts");	 
     				 int userIDIndex = parameterObject.getInt("userIDIndex");
     				 
-    				 long userCountInAOI = 0;    				 
-    				 long totalUserCount = 0;
-    				 double userPercentageValue = 0;
-    				 if(userIDIndex != -1)
-    				 {
-    						 userCountInAOI = recordAndUserTable.get("userCount");
-    						 totalUserCount = dataSummaryObject.getLong("userCount");
-    						 userPercentageValue = (userCountInAOI *1.0)/(totalUserCount * 1.0);
-    				 }
-
-    				 
-    				 /*if(parameterObject.getBoolean("minPtsPercentage"))
-    				 {
-    						 if(userIDIndex != -1)
-    						 {
-    								 if(userPercentageValue < minPts) return null;
-    						 }
-    						 else 
-    						 {
-								     if(recordPercentageValue < minPts) return null;
-						     }
-    				 }
-    				 else
-    				 {
-    						 if(userIDIndex != -1)
-    						 {
-    								 if(userCountInAOI < minPts) return null;
-    						 }
-    						 else 
-    						 {
-								     if(recordCountInAOI < minPts) return null;
-						     }
-				     }		*/	
-    				 
-    				 JSONObject thisFeatureObject = new JSONObject();
     				 if(userIDIndex != -1)
     				 {
-    						 thisFeatureObject.put("attributes", new JSONObject("{\"Cluster\" : \"cluster_"+clusterId+"\", \"UserCount\": \""+userCountInAOI+"\",\"UserPercent\": \""+userPercentageValue+"\","
-												+ "\"PointCount\": \""+recordCountInAOI+"\",\"PointPercent\": \""+recordPercentageValue+"\"}")); 
+    						 long totalUserCount = dataSummaryObject.getLong("userCount");
+    						 double userPercentageValue = (userCountInAOI *1.0)/(totalUserCount * 1.0);
+    						 esriJSONWriter.writeFeature(new String[]{"Cluster", "UserCount", "UserPercent", "PointCount", "PointPercent"},
+    								 new String[]{"cluster_"+clusterId, ""+userCountInAOI, ""+userPercentageValue, ""+recordCountInAOI, ""+recordPercentageValue}, concaveHullResultGeometry);
     				 }
     				 else 
     				 {
-    						 thisFeatureObject.put("attributes", new JSONObject("{\"Cluster\" : \"cluster_"+clusterId+"\", \"PointCount\": \""+recordCountInAOI+"\",\"PointPercent\": \""+recordPercentageValue+"\"}")); 
+    						 esriJSONWriter.writeFeature(new String[]{"Cluster", "PointCount", "PointPercent"},
+    								 new String[]{"cluster_"+clusterId, ""+recordCountInAOI, ""+recordPercentageValue}, concaveHullResultGeometry);
     				 }
-    				
-    				 JSONObject geometryObject = new JSONObject();
-    				 JSONArray ringsJsonArray = new JSONArray();
-    				 JSONArray coordsArray = new JSONArray();
-    
-    				 Coordinate[] concaveCoords = concaveHullResultGeometry.getCoordinates();
-    				 
-    				 for(int j=0;j<concaveCoords.length;j++)
-    				 {
-    					 JSONArray thisCoordArray = new JSONArray();
-    					 thisCoordArray.put(concaveCoords[j].x);
-    					 thisCoordArray.put(concaveCoords[j].y);
-    					 coordsArray.put(thisCoordArray);
-    				 }   				
-    				 ringsJsonArray.put(coordsArray);
-    				 geometryObject.put("rings", ringsJsonArray);
-    				 thisFeatureObject.put("geometry", geometryObject);
-    				 
-    				 return thisFeatureObject;
-    
-    			} 
-    			catch (Exception e) 
-    			{
-    				e.printStackTrace();
-    			}
-    			return null;
-		}
-		
-		
-		
-		Hashtable<String, Long> countRecordAndUserInAOI(Geometry aoiGeometry, JSONObject parameterObject)
-		{
-    			try 
-    			{
-    					// read parameters 
-    					String inputDataFilePath = parameterObject.getString("dataPath");
-    					int userIDIndex = parameterObject.getInt("userIDIndex");
-    				    int recordIDIndex = parameterObject.getInt("recordIDIndex"); 				    
-    				    int lngIndex =  parameterObject.getInt("lngIndex"); 
-    				    int latIndex = parameterObject.getInt("latIndex");
-    					
-    				    // read the input file
-    					File inputFile = new File(inputDataFilePath);
-    					FileReader inputFileReader = new FileReader(inputFile);
-    				    CSVReader inputFileCsvReader = new CSVReader(inputFileReader);
-    				
-    				    Hashtable<String, Integer> userTable = new Hashtable<>();
-    				    Hashtable<String, Integer> recordTable = new Hashtable<>();
-    				
-    				    GeometryFactory gf = new GeometryFactory();
-    				
-    				    String[] thisInputLine = inputFileCsvReader.readNext();
-    				    while((thisInputLine = inputFileCsvReader.readNext()) != null)
-    				    {
-            					String recordId = null;
-            					String ownerString = null;
-            					double latString = 0;
-            					double lngString = 0;
-    					
-            					try 
-            					{
-            						recordId = thisInputLine[recordIDIndex];
-            						if(userIDIndex != -1) ownerString = thisInputLine[userIDIndex];
-            						
-            						latString = Double.parseDouble(thisInputLine[latIndex]);
-            						lngString = Double.parseDouble(thisInputLine[lngIndex]);
-            					} 
-            					catch (Exception e) 
-            					{
-            						continue;
-            					}
-    					
-            					Coordinate vertice = new Coordinate(lngString,latString);
-            					Point point = gf.createPoint(vertice);
-    					
-            					if(aoiGeometry.covers(point))
-            					{
-            						if(userIDIndex != -1) userTable.put(ownerString, 1);
-            						recordTable.put(recordId,1);
-            					}
-    					
-    				    }
-    				    inputFileCsvReader.close();
-    				
-    				    Hashtable<String, Long> resultHashtable = new Hashtable<>();
-    				    resultHashtable.put("recordCount", new Long(recordTable.size()));
-    				    resultHashtable.put("userCount", new Long(userTable.size()));
-    				
-    				    return resultHashtable;
-    			} 
-    			catch (Exception e) 
-    			{
-    				e.printStackTrace();
-    			}
-    			return null;
 		}
 
 }
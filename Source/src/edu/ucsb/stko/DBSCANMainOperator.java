@@ -1,7 +1,6 @@
 package edu.ucsb.stko;
 
 import java.io.File;
-import java.io.FileWriter;
 
 import org.json.JSONObject;
 
@@ -17,54 +16,192 @@ public class DBSCANMainOperator
 				if(parameterObject ==  null) return;   
 			
 				
-				// summarize data
-				DataSummarizer dataSummarizer = new DataSummarizer();
-				JSONObject dataSummaryObject = dataSummarizer.summarizeData(parameterObject);
+				// the tiled mode keeps the records in tiles on disk instead of in memory, so it reads the input itself
+				if(parameterObject.optBoolean("tiledMode", false))
+				{
+						runTiledMode();
+						return;
+				}
+				
+				
+				// read and summarize data; this is the only pass over the input file
+				DataIngestor dataIngestor = new DataIngestor();
+				JSONObject dataSummaryObject = dataIngestor.ingestData(parameterObject);
 				if(dataSummaryObject ==  null) return;
 				
 							
 				// initialize Esri JSON object
 				EsriJSONInitialiser esriJSONInitialiser = new EsriJSONInitialiser();
-				JSONObject esriJsonObject = esriJSONInitialiser.initializeEsriJsonObject(parameterObject);
+				JSONObject esriJsonObject = esriJSONInitialiser.initializeEsriJsonObject(parameterObject, dataIngestor.getMapProjection());
 				if(esriJsonObject == null) return;
 				
 				
+				// a parameter sweep clusters the data with every combination of the eps and minPts values instead of running the steps below once
+				if(ParameterReader.isParameterSweep(parameterObject))
+				{
+						ParameterSweepRunner parameterSweepRunner = new ParameterSweepRunner();
+						JSONObject sweepResultObject = parameterSweepRunner.runParameterSweep(parameterObject, dataSummaryObject, esriJsonObject, dataIngestor);
+						if(sweepResultObject != null) System.out.println("The program has successfully completed.");
+						return;
+				}
+				
+				
+				// the incremental mode keeps the clusters of the last run in tempPath and only updates them, instead of preprocessing and clustering all the records
+				if(parameterObject.optBoolean("incrementalMode", false))
+				{
+						EsriJSONWriter[] esriJSONWriters = createOutputFiles(parameterObject.optDouble("eps", 0), false, ParameterReader.getLambdaValues(parameterObject), esriJsonObject);
+						if(esriJSONWriters == null) return;
+						
+						IncrementalClusterUpdater incrementalClusterUpdater = new IncrementalClusterUpdater();
+						JSONObject updateResultObject = incrementalClusterUpdater.updateClusterAndShapes(parameterObject, dataSummaryObject, dataIngestor, esriJSONWriters);
+						if(updateResultObject == null)
+						{
+								discardOutputFiles(esriJSONWriters);
+								return;
+						}
+						if(closeOutputFiles(esriJSONWriters)) System.out.println("The program has successfully completed.");
+						return;
+				}
+				
+				
+				// the windowed mode clusters the records of sliding time windows, updating the clusters of one window into those of the next
+				if(ParameterReader.isWindowedMode(parameterObject))
+				{
+						SlidingWindowClusterer slidingWindowClusterer = new SlidingWindowClusterer();
+						JSONObject windowResultObject = slidingWindowClusterer.clusterWindows(parameterObject, esriJsonObject, dataIngestor);
+						if(windowResultObject != null) System.out.println("The program has successfully completed.");
+						return;
+				}
+
+
 				// pre-process data
 				DataPreProcessor dataPreProcessor = new DataPreProcessor();
-				JSONObject processedDataSummaryObject = dataPreProcessor.preprocessData(parameterObject);
+				JSONObject processedDataSummaryObject = dataPreProcessor.preprocessData(parameterObject, dataIngestor);
 				if(processedDataSummaryObject == null) return;
 				
 				
-				// clustering and construct shapes
-				ClusterAndShapeGenerator clusterAndShapeGenerator = new ClusterAndShapeGenerator();
-				JSONObject clusteringResultObject = clusterAndShapeGenerator.generateClusterAndShapes(parameterObject, dataSummaryObject, processedDataSummaryObject);
-				if(clusteringResultObject ==  null) return;
+				// the k-distance analysis helps choosing eps; it replaces the clustering
+				if(parameterObject.optBoolean("kDistanceAnalysis", false))
+				{
+						KDistanceAnalyzer kDistanceAnalyzer = new KDistanceAnalyzer();
+						PointStore analyzedPointStore = parameterObject.optBoolean("inMemoryPipeline", true) ? dataPreProcessor.getProcessedPointStore() : null;
+						JSONObject kDistanceObject = kDistanceAnalyzer.analyzeKDistances(parameterObject, processedDataSummaryObject, analyzedPointStore);
+						if(kDistanceObject != null) System.out.println("The program has successfully completed.");
+						return;
+				}
 				
 				
-				// write the clustering result into output file
-				try
+				// the header of each output file is written now, and the AOIs are appended while they are constructed; a lambda sweep writes
+				// one output file for each lambda value, and the "optics" engine one for each eps value of opticsEps
+				double[] lambdaValues = ParameterReader.getLambdaValues(parameterObject);
+				double[] clusterEpsValues = ParameterReader.getClusterEpsValues(parameterObject);
+				
+				// in the in-memory pipeline the processed points are handed over directly instead of through the processed file
+				PointStore processedPointStore = null;
+				if(parameterObject.optBoolean("inMemoryPipeline", true)) processedPointStore = dataPreProcessor.getProcessedPointStore();
+				ClusterAndShapeGenerator clusterAndShapeGenerator = new ClusterAndShapeGenerator();
+				for(int e=0;e<clusterEpsValues.length;e++)
 				{
-						esriJsonObject.put("features", clusteringResultObject.getJSONArray("features"));
+						EsriJSONWriter[] esriJSONWriters = createOutputFiles(clusterEpsValues[e], clusterEpsValues.length > 1, lambdaValues, esriJsonObject);
+						if(esriJSONWriters == null) return;
 						
-						File outputFile = new File("result.json");
-						if(outputFile.exists())
+						
+						// clustering and construct shapes
+						JSONObject clusteringResultObject = clusterAndShapeGenerator.generateClusterAndShapes(parameterObject, dataSummaryObject, processedDataSummaryObject, processedPointStore, dataIngestor, clusterEpsValues[e], esriJSONWriters);
+						if(clusteringResultObject ==  null)
 						{
-							outputFile.delete();
-							outputFile.createNewFile();
+								discardOutputFiles(esriJSONWriters);
+								return;
 						}
-						FileWriter outputFileWriter = new FileWriter(outputFile);
-						outputFileWriter.write(esriJsonObject.toString());
-						outputFileWriter.close();
 						
-						System.out.println("The program has successfully completed.");
-				} 
-				catch (Exception e)
-				{
-						System.out.println("An error happened when writing the result into a file.");
+						
+						// finish the output files
+						if(!closeOutputFiles(esriJSONWriters)) return;
 				}
+				System.out.println("The program has successfully completed.");
+				
 				
 				
+		}
+		
+		
+		// read the input into tiles, then cluster them and write the AOIs
+		private static void runTiledMode()
+		{
+				TiledClusterer tiledClusterer = new TiledClusterer();
+				JSONObject dataSummaryObject = tiledClusterer.spillData(parameterObject);
+				if(dataSummaryObject == null) return;
+				
+				EsriJSONInitialiser esriJSONInitialiser = new EsriJSONInitialiser();
+				JSONObject esriJsonObject = esriJSONInitialiser.initializeEsriJsonObject(parameterObject, tiledClusterer.getMapProjection());
+				EsriJSONWriter[] esriJSONWriters = (esriJsonObject == null) ? null : createOutputFiles(parameterObject.optDouble("eps", 0), false, ParameterReader.getLambdaValues(parameterObject), esriJsonObject);
+				if(esriJSONWriters == null)
+				{
+						tiledClusterer.deleteSpillFiles();
+						return;
+				}
 				
+				JSONObject clusteringResultObject = tiledClusterer.clusterTiles(parameterObject, dataSummaryObject, esriJSONWriters);
+				if(clusteringResultObject == null)
+				{
+						discardOutputFiles(esriJSONWriters);
+						return;
+				}
+				if(closeOutputFiles(esriJSONWriters)) System.out.println("The program has successfully completed.");
+		}
+		
+		
+		// create the output file of each lambda value, whose names also hold the eps value if there are several of them; null if they cannot be created
+		private static EsriJSONWriter[] createOutputFiles(double epsValue, boolean isEpsList, double[] lambdaValues, JSONObject esriJsonObject)
+		{
+				EsriJSONWriter[] esriJSONWriters = new EsriJSONWriter[lambdaValues.length];
+				File resultFile = null;
+				try
+				{
+						for(int i=0;i<lambdaValues.length;i++)
+						{
+								String epsSuffix = isEpsList ? "_eps"+JSONObject.numberToString(epsValue) : "";
+								String lambdaSuffix = (lambdaValues.length == 1) ? "" : "_lambda"+JSONObject.numberToString(lambdaValues[i]);
+								resultFile = new File("result"+epsSuffix+lambdaSuffix+".json");
+								esriJSONWriters[i] = new EsriJSONWriter(resultFile, esriJsonObject);
+						}
+				}
+				catch (Exception ex)
+				{
+						System.out.println("An error happened when creating the output file "+resultFile.getPath()+"; The program has been canceled");
+						discardOutputFiles(esriJSONWriters);
+						return null;
+				}
+				return esriJSONWriters;
+		}
+		
+		
+		// finish the output files; false if they cannot be written
+		private static boolean closeOutputFiles(EsriJSONWriter[] esriJSONWriters)
+		{
+				try
+				{
+						for(EsriJSONWriter esriJSONWriter : esriJSONWriters)
+						{
+								esriJSONWriter.close();
+						}
+						return true;
+				} 
+				catch (Exception ex)
+				{
+						System.out.println("An error happened when writing the result into a file.");
+						return false;
+				}
+		}
+		
+		
+		// remove the output files which have been created so far
+		private static void discardOutputFiles(EsriJSONWriter[] esriJSONWriters)
+		{
+				for(EsriJSONWriter esriJSONWriter : esriJSONWriters)
+				{
+						if(esriJSONWriter != null) esriJSONWriter.discard();
+				}
 		}
 
 }
@@ -0,0 +1,78 @@
+package edu.ucsb.stko;
+
+// the labels produced by the built-in DBSCAN engines: a cluster number (or NOISE) and a point type for every point
+class DBSCANResult
+{
+		static final int NOISE = -1;
+
+		static final byte NOISE_POINT = 0;
+		static final byte CORE_POINT = 1;
+		static final byte BORDER_POINT = 2;
+
+		private final int[] clusterIds;
+		private final byte[] pointTypes;
+		private final int clusterCount;
+
+
+		DBSCANResult(int[] clusterIds, byte[] pointTypes, int clusterCount)
+		{
+				this.clusterIds = clusterIds;
+				this.pointTypes = pointTypes;
+				this.clusterCount = clusterCount;
+		}
+
+
+		int getClusterId(int pointIndex)
+		{
+				return clusterIds[pointIndex];
+		}
+
+		byte getPointType(int pointIndex)
+		{
+				return pointTypes[pointIndex];
+		}
+
+		int getClusterCount()
+		{
+				return clusterCount;
+		}
+
+		int getPointCount()
+		{
+				return clusterIds.length;
+		}
+
+
+		// the point indices of every cluster, in ascending order of the index
+		int[][] getClusterMembers()
+		{
+				int[] clusterSizes = new int[clusterCount];
+				for(int i=0;i<clusterIds.length;i++)
+				{
+						if(clusterIds[i] != NOISE) clusterSizes[clusterIds[i]]++;
+				}
+
+				int[][] clusterMembers = new int[clusterCount][];
+				for(int c=0;c<clusterCount;c++)
+				{
+						clusterMembers[c] = new int[clusterSizes[c]];
+				}
+
+				int[] fillPosition = new int[clusterCount];
+				for(int i=0;i<clusterIds.length;i++)
+				{
+						int clusterId = clusterIds[i];
+						if(clusterId != NOISE) clusterMembers[clusterId][fillPosition[clusterId]++] = i;
+				}
+				return clusterMembers;
+		}
+
+
+		static String getPointTypeName(byte pointType)
+		{
+				if(pointType == CORE_POINT) return "core";
+				if(pointType == BORDER_POINT) return "border";
+				return "noise";
+		}
+
+}
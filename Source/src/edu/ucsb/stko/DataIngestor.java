@@ -0,0 +1,318 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.JSONObject;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+// reads the input data once; the same pass summarizes the data and keeps a columnar copy of the valid records,
+// which is used by the preprocessing and by the AOI statistics instead of reading the file again.
+// The record id strings are only kept when the processed file is written, since no other stage needs them, and the timestamps only in the windowed mode.
+// The parsed records are also kept in a binary dataset cache, which replaces the csv in later runs on the same file.
+// With a "projection", the longitudes and latitudes of the records are projected in place right after they are read
+class DataIngestor
+{
+		private PointStore rawPointStore = null;
+		private MapProjection mapProjection = null;
+		private ArrayList<String> rawRecordIdList = null;
+		private LongList rawTimestampList = null;
+		private UserDictionary userDictionary = null;
+		private DatasetCache datasetCache = null;
+
+		public JSONObject ingestData(JSONObject parameterObject)
+		{
+				System.out.println("Reading and summarizing the input data...");
+				try
+				{
+						File inputFile = new File(parameterObject.getString("dataPath"));
+
+						// get the indexes
+						int recordIDIndex = parameterObject.getInt("recordIDIndex");
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						int lngIndex = parameterObject.getInt("lngIndex");
+						int latIndex = parameterObject.getInt("latIndex");
+						int timestampIndex = ParameterReader.isWindowedMode(parameterObject) ? parameterObject.getInt("timestampIndex") : -1;
+
+						boolean keepRecordIds = !parameterObject.optBoolean("inMemoryPipeline", true) || parameterObject.optBoolean("writeProcessedFile", false);
+						double[] boundingBox = ParameterReader.getBoundingBox(parameterObject);
+
+						// the cache holds no record ids and no timestamps, so it can only replace the csv when they are not needed
+						DatasetCache cache = parameterObject.optBoolean("datasetCache", true) ? new DatasetCache(parameterObject) : null;
+						DataSummarizer dataSummarizer = new DataSummarizer();
+						if(cache != null && !keepRecordIds && timestampIndex == -1 && cache.load(boundingBox))
+						{
+								rawPointStore = cache.getPointStore();
+								userDictionary = cache.getUserDictionary();
+								dataSummarizer.addRecords(cache.getRowCount());
+								System.out.println("The records have been loaded from the dataset cache "+cache.getCacheFile().getPath()+".");
+						}
+						else
+						{
+								long rowCount = 0;
+								if(parameterObject.optBoolean("fastCSVReader", true))
+								{
+										rowCount = readMappedFile(inputFile, parameterObject, recordIDIndex, userIDIndex, lngIndex, latIndex, timestampIndex, keepRecordIds);
+								}
+								else
+								{
+										rowCount = readCSVFile(inputFile, recordIDIndex, userIDIndex, lngIndex, latIndex, timestampIndex, keepRecordIds);
+								}
+								dataSummarizer.addRecords(rowCount);
+
+								if(rowCount > rawPointStore.size())
+										System.out.println((rowCount - rawPointStore.size())+" rows could not be read (missing columns or invalid coordinates"+((timestampIndex != -1) ? " or timestamps" : "")+") and have been skipped.");
+								// a cache which is up to date was skipped only because of the record ids or timestamps; it is left as it is, together with its duplicate flags
+								if(cache != null) cache = cache.isUpToDate() ? null : writeDatasetCache(cache, rowCount, parameterObject);
+						}
+
+						// the stored duplicate flags belong to all the unprojected records, so they cannot be used once the records are restricted or projected
+						String projection = parameterObject.optString("projection", "").trim();
+						if(boundingBox == null)
+						{
+								if(projection.isEmpty()) datasetCache = cache;
+						}
+						else
+						{
+								cropToBoundingBox(boundingBox);
+								dataSummarizer = new DataSummarizer();
+								dataSummarizer.addRecords(rawPointStore.size());
+								System.out.println(rawPointStore.size()+" records lie within the bounding box.");
+						}
+
+						// a geodesic eps is measured on the sphere, so the coordinates must be longitudes and latitudes
+						if(parameterObject.optBoolean("geodesicEps", false))
+						{
+								for(int i=0;i<rawPointStore.size();i++)
+								{
+										if(Math.abs(rawPointStore.getX(i)) > 180 || Math.abs(rawPointStore.getY(i)) > 90)
+										{
+												System.out.println("The geodesicEps needs longitudes within [-180, 180] and latitudes within [-90, 90], but row "+rawPointStore.getRecordRow(i)+" has ("+rawPointStore.getX(i)+", "+rawPointStore.getY(i)+"); please check lngIndex and latIndex, or use a boundingBox; The program has been canceled");
+												return null;
+										}
+								}
+						}
+
+						if(!projection.isEmpty())
+						{
+								mapProjection = projectRecords(projection, parameterObject);
+								if(mapProjection == null) return null;
+						}
+
+						return dataSummarizer.getSummaryObject(userIDIndex, userDictionary);
+				}
+				catch (Exception e)
+				{
+						System.out.println("An error happened in reading the input data; The program has been canceled");
+						return null;
+				}
+		}
+
+
+		// project the records in place; "utm" without a zone takes the zone of the middle of the records. Null if the projection is not valid
+		private MapProjection projectRecords(String projection, JSONObject parameterObject)
+		{
+				double minLng = 180;
+				double maxLng = -180;
+				double minLat = 90;
+				double maxLat = -90;
+				for(int i=0;i<rawPointStore.size();i++)
+				{
+						minLng = Math.min(minLng, rawPointStore.getX(i));
+						maxLng = Math.max(maxLng, rawPointStore.getX(i));
+						minLat = Math.min(minLat, rawPointStore.getY(i));
+						maxLat = Math.max(maxLat, rawPointStore.getY(i));
+				}
+				MapProjection mapProjection = createMapProjection(projection, rawPointStore.size(), minLng, minLat, maxLng, maxLat);
+				if(mapProjection == null) return null;
+				ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+				try
+				{
+						mapProjection.project(rawPointStore.getXCoords(), rawPointStore.getYCoords(), rawPointStore.size(), pool);
+				}
+				finally
+				{
+						pool.shutdown();
+				}
+				System.out.println("The records have been projected with "+mapProjection.getName()+".");
+				return mapProjection;
+		}
+
+
+		// the projection of records within the given longitudes and latitudes; null if they are not all longitudes and latitudes
+		static MapProjection createMapProjection(String projection, int recordCount, double minLng, double minLat, double maxLng, double maxLat)
+		{
+				if(recordCount > 0 && (minLng < -180 || maxLng > 180 || minLat < -90 || maxLat > 90))
+				{
+						System.out.println("The projection needs longitudes within [-180, 180] and latitudes within [-90, 90], but the records reach ("+minLng+", "+minLat+") to ("+maxLng+", "+maxLat+"); please check lngIndex and latIndex; The program has been canceled");
+						return null;
+				}
+				return MapProjection.create(projection, (minLng + maxLng) / 2, (minLat + maxLat) / 2);
+		}
+
+
+		// write the records into the cache; a cache that cannot be written only costs the next run the time to parse the csv
+		private DatasetCache writeDatasetCache(DatasetCache cache, long rowCount, JSONObject parameterObject)
+		{
+				try
+				{
+						cache.write(rawPointStore, userDictionary, rowCount, ParallelTasks.getThreadCount(parameterObject) > 1);
+						return cache;
+				}
+				catch (Exception e)
+				{
+						System.out.println("The dataset cache "+cache.getCacheFile().getPath()+" could not be written; the next run will read the csv file again.");
+						return null;
+				}
+		}
+
+
+		// read the file with the memory-mapped reader, in parallel byte ranges if there are several threads; returns the number of data rows
+		private long readMappedFile(File inputFile, JSONObject parameterObject, int recordIDIndex, int userIDIndex, int lngIndex, int latIndex, int timestampIndex, boolean keepRecordIds) throws Exception
+		{
+				MappedCSVReader mappedCSVReader = new MappedCSVReader(recordIDIndex, userIDIndex, lngIndex, latIndex, timestampIndex, keepRecordIds);
+				MappedCSVReader.CSVChunk chunk;
+				int threadCount = ParallelTasks.getThreadCount(parameterObject);
+				if(threadCount > 1)
+				{
+						ForkJoinPool pool = new ForkJoinPool(threadCount);
+						try
+						{
+								chunk = mappedCSVReader.readFile(inputFile, pool);
+						}
+						finally
+						{
+								pool.shutdown();
+						}
+				}
+				else
+				{
+						chunk = mappedCSVReader.readFile(inputFile);
+				}
+
+				rawPointStore = chunk.pointStore;
+				rawPointStore.trimToSize();
+				userDictionary = chunk.userDictionary;
+				rawRecordIdList = chunk.recordIdList;
+				rawTimestampList = chunk.timestampList;
+				return chunk.rowCount;
+		}
+
+
+		// read the file with opencsv; returns the number of data rows
+		private long readCSVFile(File inputFile, int recordIDIndex, int userIDIndex, int lngIndex, int latIndex, int timestampIndex, boolean keepRecordIds) throws Exception
+		{
+				FileReader inputFileReader = new FileReader(inputFile);
+				CSVReader inputCSVReader = new CSVReader(inputFileReader);
+				userDictionary = new UserDictionary();
+				rawPointStore = new PointStore(1000);
+				rawRecordIdList = keepRecordIds ? new ArrayList<String>(1000) : null;
+				rawTimestampList = (timestampIndex != -1) ? new LongList(1000) : null;
+				TimestampParser timestampParser = new TimestampParser();
+
+				int recordRow = -1;
+				String[] thisInputLine = inputCSVReader.readNext();
+				while((thisInputLine = inputCSVReader.readNext()) != null)
+				{
+						recordRow++;
+
+						// every line counts for the summary, even if its coordinates cannot be read
+						int userId = -1;
+						if((userIDIndex != -1) && (userIDIndex < thisInputLine.length)) userId = userDictionary.intern(thisInputLine[userIDIndex]);
+
+						String recordId = null;
+						double latValue = 0;
+						double lngValue = 0;
+						try
+						{
+								recordId = thisInputLine[recordIDIndex];
+								latValue = Double.parseDouble(thisInputLine[latIndex]);
+								lngValue = Double.parseDouble(thisInputLine[lngIndex]);
+								if(timestampIndex != -1)
+								{
+										byte[] timestampBytes = thisInputLine[timestampIndex].getBytes(StandardCharsets.UTF_8);
+										if(!timestampParser.parse(timestampBytes, 0, timestampBytes.length)) continue;
+								}
+						}
+						catch (Exception e)
+						{
+								continue;
+						}
+						if((userIDIndex != -1) && (userId == -1)) continue;
+
+						rawPointStore.add(lngValue, latValue, userId, recordRow);
+						if(keepRecordIds) rawRecordIdList.add(recordId);
+						if(timestampIndex != -1) rawTimestampList.add(timestampParser.getValue());
+				}
+				inputCSVReader.close();
+				rawPointStore.trimToSize();
+				return recordRow + 1;
+		}
+
+
+		// keep only the records within the bounding box; the users are renumbered so that the dictionary only holds the users of these records
+		private void cropToBoundingBox(double[] boundingBox)
+		{
+				PointStore croppedPointStore = new PointStore(rawPointStore.size());
+				UserDictionary croppedUserDictionary = new UserDictionary();
+				ArrayList<String> croppedRecordIdList = (rawRecordIdList != null) ? new ArrayList<String>() : null;
+				LongList croppedTimestampList = (rawTimestampList != null) ? new LongList() : null;
+				for(int i=0;i<rawPointStore.size();i++)
+				{
+						if(!DatasetCache.contains(boundingBox, rawPointStore.getX(i), rawPointStore.getY(i))) continue;
+
+						int userId = rawPointStore.getUserId(i);
+						if(userId != -1) userId = croppedUserDictionary.intern(userDictionary, userId);
+						croppedPointStore.add(rawPointStore.getX(i), rawPointStore.getY(i), userId, rawPointStore.getRecordRow(i));
+						if(croppedRecordIdList != null) croppedRecordIdList.add(rawRecordIdList.get(i));
+						if(croppedTimestampList != null) croppedTimestampList.add(rawTimestampList.get(i));
+				}
+				croppedPointStore.trimToSize();
+
+				rawPointStore = croppedPointStore;
+				userDictionary = croppedUserDictionary;
+				rawRecordIdList = croppedRecordIdList;
+				rawTimestampList = croppedTimestampList;
+		}
+
+
+		// the valid records of the input file in their original order; x is the longitude and y the latitude
+		PointStore getRawPointStore()
+		{
+				return rawPointStore;
+		}
+
+		// null unless the processed file is written
+		ArrayList<String> getRawRecordIdList()
+		{
+				return rawRecordIdList;
+		}
+
+		// the timestamps of the records of rawPointStore in seconds since 1970 (UTC); null unless the windowed mode reads them
+		LongList getRawTimestampList()
+		{
+				return rawTimestampList;
+		}
+
+		UserDictionary getUserDictionary()
+		{
+				return userDictionary;
+		}
+
+		// the projection of the records of rawPointStore; null if they keep the coordinates of the input
+		MapProjection getMapProjection()
+		{
+				return mapProjection;
+		}
+
+		// the dataset cache holding all the records of rawPointStore; null if the cache is not used or the records were restricted to a bounding box or projected
+		DatasetCache getDatasetCache()
+		{
+				return datasetCache;
+		}
+
+}
@@ -1,49 +1,57 @@
 package edu.ucsb.stko;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.Vector;
-
-import javafx.geometry.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.json.JSONObject;
 
-import au.com.bytecode.opencsv.CSVReader;
-
 class DataPreProcessor
 {
-		public JSONObject preprocessData(JSONObject parameterObject)
+		// users with at most this many records are deduplicated with a plain scan
+		private static final int SMALL_USER_RECORD_COUNT = 16;
+		private static final long MAX_CELL_INDEX = 1L << 40;
+		
+		private PointStore processedPointStore = null;
+		
+		public JSONObject preprocessData(JSONObject parameterObject, DataIngestor dataIngestor)
 		{
 				System.out.println("Preprocessing the input data...");
 				try
 				{
 						double duplicateDistance = parameterObject.getDouble("eps");
+						if(!(duplicateDistance > 0) || Double.isInfinite(duplicateDistance))
+						{
+								System.out.println("The duplicate records are removed within eps, which should be a positive number; The program has been canceled");
+								return null;
+						}
 						
 						String inputFilePath = parameterObject.getString("dataPath");
 						File inputFile = new File(inputFilePath);
-						FileReader inputFileReader = new FileReader(inputFile);
-						CSVReader inputCSVReader = new CSVReader(inputFileReader);
 						
 						String newLineSymbol = System.getProperty("line.separator");
 						
+						// the processed file is only needed when the clustering reads it back, or when it is asked for as a debug output
+						boolean writeProcessedFile = !parameterObject.optBoolean("inMemoryPipeline", true) || parameterObject.optBoolean("writeProcessedFile", false);
 						String tempFileName = parameterObject.getString("tempPath")+"/"+inputFile.getName().replace(".csv", "")+"_processed.csv";
-						File outputFile = new File(tempFileName);
-						if(outputFile.exists())
+						FileWriter outputFileWriter = null;
+						if(writeProcessedFile)
 						{
-							outputFile.delete();
-							outputFile.createNewFile();
+								File outputFile = new File(tempFileName);
+								if(outputFile.exists())
+								{
+									outputFile.delete();
+									outputFile.createNewFile();
+								}
+								outputFileWriter = new FileWriter(outputFile,true);
 						}
-						FileWriter outputFileWriter = new FileWriter(outputFile,true);
 						
 						
 						// get the indexes
-						int  recordIDIndex = parameterObject.getInt("recordIDIndex");   
 						int userIDIndex =  parameterObject.getInt("userIDIndex");        
-						int lngIndex = parameterObject.getInt("lngIndex");               
-						int latIndex =  parameterObject.getInt("latIndex");   
 						
 						/*boolean removeDuplicates = parameterObject.getBoolean("removeDuplicates");
 						if(removeDuplicates && (userIDIndex == -1))
@@ -54,93 +62,88 @@ class DataPreProcessor
 								return null;
 						}*/
 						
-						Hashtable<String, Vector<Point2D>> existingDataHashtable = new Hashtable<>(1000);
-						long totalProcessedDataRecord = 0;
-						String[] thisInputLine = inputCSVReader.readNext();
-						while((thisInputLine = inputCSVReader.readNext()) != null)
+						// the valid records read by the ingestion; the duplicates of each user are removed in the order of the input file
+						PointStore rawPointStore = dataIngestor.getRawPointStore();
+						ArrayList<String> recordIdList = dataIngestor.getRawRecordIdList();
+						UserDictionary userDictionary = dataIngestor.getUserDictionary();
+						int recordCount = rawPointStore.size();
+						
+						IntList[] userRecordLists = new IntList[0];
+						int processedUserCount = 0;
+						if(userIDIndex != -1)
 						{
-    							String recordId = null;
-    							String ownerString = null;
-    							double latString = 0;
-    							double lngString = 0;
-
-    							try 
-    							{
-        							recordId = thisInputLine[recordIDIndex];
-        							if(userIDIndex != -1)
-        									ownerString = thisInputLine[userIDIndex];
-        							
-        							latString = Double.parseDouble(thisInputLine[latIndex]);
-        							lngString = Double.parseDouble(thisInputLine[lngIndex]);
-    							} 
-    							catch (Exception e) 
-    							{
-    								continue;
-    							}
-							
-    							if(userIDIndex != -1)
-    							{
-    									boolean isDuplicated = false;
-    	    							if(existingDataHashtable.containsKey(ownerString))
-    	    							{
-    	    								Vector<Point2D> peopleCoordsVector = existingDataHashtable.get(ownerString);
-    	    								Iterator<Point2D> coordIterator = peopleCoordsVector.iterator();
-    	    								while(coordIterator.hasNext())
-    	    								{
-    	    									Point2D coordPoint = coordIterator.next();
-    	    									double thisDistance = Math.sqrt((coordPoint.getX() - lngString)*(coordPoint.getX() - lngString) + (coordPoint.getY() - latString) * (coordPoint.getY() - latString));
-    	    									if(thisDistance<= duplicateDistance)
-    	    									{
-    	    										isDuplicated = true;
-    	    										break;
-    	    									}
-    	    								}
-    	    							}
-    	    							else
-    	    							{
-    	    								Vector<Point2D> peopleCoordsVector = new Vector<>(10);
-    	    								existingDataHashtable.put(ownerString, peopleCoordsVector);
-    	    							}
-    								
-        								if(!isDuplicated)
-        								{
-        									// add this point to existing table       									
-        									Vector<Point2D> peopleCoordsVector = existingDataHashtable.get(ownerString);
-        									peopleCoordsVector.add(new Point2D(lngString, latString));
-        									existingDataHashtable.put(ownerString, peopleCoordsVector);
-        									
-        									outputFileWriter.append(recordId+","+ownerString+","+latString+","+lngString+newLineSymbol);
-        									totalProcessedDataRecord++;
-        								}
-    									
-    							}
-    							else
-    							{
-										/*if(userIDIndex != -1)
+								userRecordLists = groupRecordsByUser(rawPointStore, userDictionary.size());
+								for(int u=0;u<userRecordLists.length;u++)
+								{
+										if(userRecordLists[u].size() > 0) processedUserCount++;
+								}
+						}
+						
+						// the duplicate flags of an earlier run with the same eps are kept in the dataset cache; those of a geodesic eps (in metres) under its negative value
+						boolean isGeodesic = parameterObject.optBoolean("geodesicEps", false);
+						double cachedDistance = isGeodesic ? -duplicateDistance : duplicateDistance;
+						DatasetCache datasetCache = dataIngestor.getDatasetCache();
+						boolean[] cachedKeepFlags = (datasetCache != null) ? datasetCache.getKeepFlags(cachedDistance) : null;
+						
+						boolean[] keepRecord = cachedKeepFlags;
+						if(cachedKeepFlags != null)
+						{
+								System.out.println("The duplicate records have been taken from the dataset cache.");
+						}
+						else if(userIDIndex != -1)
+						{
+								ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+								keepRecord = findKeptRecords(userRecordLists, rawPointStore, duplicateDistance, isGeodesic, pool);
+								pool.shutdown();
+								
+								if(datasetCache != null)
+								{
+										try
+										{
+												datasetCache.writeDuplicateFlags(keepRecord, cachedDistance);
+										}
+										catch (Exception e)
 										{
-												existingDataHashtable.put(ownerString, new Vector<Point2D>(1));
-												outputFileWriter.append(recordId+","+ownerString+","+latString+","+lngString+newLineSymbol);
+												System.out.println("The duplicate records could not be stored in the dataset cache.");
 										}
+								}
+						}
+						else
+						{
+								keepRecord = new boolean[recordCount];
+								Arrays.fill(keepRecord, true);
+						}
+						
+						long totalProcessedDataRecord = 0;
+						processedPointStore = new PointStore(recordCount);
+						for(int i=0;i<recordCount;i++)
+						{
+								if(!keepRecord[i]) continue;
+								
+								double lngValue = rawPointStore.getX(i);
+								double latValue = rawPointStore.getY(i);
+								processedPointStore.add(lngValue, latValue, rawPointStore.getUserId(i), rawPointStore.getRecordRow(i));
+								if(outputFileWriter != null)
+								{
+										if(userIDIndex != -1)
+												outputFileWriter.append(recordIdList.get(i)+","+userDictionary.getUserName(rawPointStore.getUserId(i))+","+latValue+","+lngValue+newLineSymbol);
 										else
-										{*/
-										outputFileWriter.append(recordId+","+latString+","+lngString+newLineSymbol);
-										//}
-										totalProcessedDataRecord++;
+												outputFileWriter.append(recordIdList.get(i)+","+latValue+","+lngValue+newLineSymbol);
 								}
-    							
+								totalProcessedDataRecord++;
 						}
+						processedPointStore.trimToSize();
 						
-						inputCSVReader.close();
-						outputFileWriter.close();
+						if(outputFileWriter != null) outputFileWriter.close();
 						
 						JSONObject resultObject = new JSONObject();
 						resultObject.put("file", tempFileName);
 						if(userIDIndex != -1)
-								resultObject.put("userCount", existingDataHashtable.size());
+								resultObject.put("userCount", processedUserCount);
 						resultObject.put("recordCount", totalProcessedDataRecord);
 						
 						if(userIDIndex != -1)
-								System.out.println("After pre-processing, there are "+ totalProcessedDataRecord+" records and "+ existingDataHashtable.size()+" users in the data.");
+								System.out.println("After pre-processing, there are "+ totalProcessedDataRecord+" records and "+ processedUserCount+" users in the data.");
 						else 
 								System.out.println("After pre-processing, there are "+ totalProcessedDataRecord+" records in the data.");
 						System.out.println("---------------------------------------------------");
@@ -154,5 +157,178 @@ class DataPreProcessor
 						return null;
 				}
 		}
+		
+		
+		// the indexes of the records of every user, in the order of the input file
+		static IntList[] groupRecordsByUser(PointStore rawPointStore, int userCount)
+		{
+				IntList[] userRecordLists = new IntList[userCount];
+				for(int u=0;u<userCount;u++)
+				{
+						userRecordLists[u] = new IntList(4);
+				}
+				for(int i=0;i<rawPointStore.size();i++)
+				{
+						userRecordLists[rawPointStore.getUserId(i)].add(i);
+				}
+				return userRecordLists;
+		}
+		
+		
+		// the records that are not duplicates within duplicateDistance of an earlier record of the same user; the duplicate
+		// removal of one user never depends on another user, so the users are split across the threads of the pool.
+		// In the geodesic mode duplicateDistance is in metres and the records are longitudes and latitudes
+		static boolean[] findKeptRecords(final IntList[] userRecordLists, PointStore rawPointStore, final double duplicateDistance, final boolean isGeodesic, ForkJoinPool pool)
+		{
+				final boolean[] keepRecord = new boolean[rawPointStore.size()];
+				final double[] lngValues = rawPointStore.getXCoords();
+				final double[] latValues = rawPointStore.getYCoords();
+				ParallelTasks.forRange(pool, userRecordLists.length, (start, end) ->
+				{
+						for(int u=start;u<end;u++)
+						{
+								markFirstComeRecords(userRecordLists[u], lngValues, latValues, duplicateDistance, isGeodesic, keepRecord);
+						}
+				});
+				return keepRecord;
+		}
+		
+		
+		// keep a record of the user unless an earlier kept record of the same user lies within duplicateDistance;
+		// the kept records are hashed into cells of duplicateDistance, so only the adjacent cells need to be checked.
+		// In the geodesic mode the cells are duplicateDistance high in latitude, their columns wrap around the antimeridian,
+		// and the number of columns to check grows towards the poles
+		private static void markFirstComeRecords(IntList userRecords, double[] lngValues, double[] latValues, double duplicateDistance, boolean isGeodesic, boolean[] keepRecord)
+		{
+				int userRecordCount = userRecords.size();
+				double haversineLimit = isGeodesic ? GeodesicDistance.getHaversineLimit(duplicateDistance) : 0;
+				if(userRecordCount <= SMALL_USER_RECORD_COUNT)
+				{
+						// a few records: comparing with every kept record is cheaper than hashing
+						markFirstComeRecords(userRecords, 0, userRecordCount, lngValues, latValues, duplicateDistance, isGeodesic, haversineLimit, keepRecord);
+						return;
+				}
+				
+				double cellHeight = isGeodesic ? GeodesicDistance.toDegrees(duplicateDistance) : duplicateDistance;
+				long columnCount = isGeodesic ? Math.max(1, Math.min(1L << 30, (long)Math.floor(360 / cellHeight))) : 0;
+				double cellWidth = isGeodesic ? 360.0 / columnCount : duplicateDistance;
+				double originLng = isGeodesic ? -180 : 0;
+				HashMap<Long, IntList> keptRecordCells = new HashMap<>(userRecordCount * 2);
+				for(int i=0;i<userRecordCount;i++)
+				{
+						int record = userRecords.get(i);
+						double lng = lngValues[record];
+						double lat = latValues[record];
+						
+						double lngRadius = isGeodesic ? GeodesicDistance.getLongitudeRadius(lat, duplicateDistance) : duplicateDistance;
+						double latRadius = isGeodesic ? cellHeight * (1 + 1e-9) + 1e-12 : duplicateDistance;
+						long minCellX = toCellIndex((lng - lngRadius - originLng) / cellWidth);
+						long maxCellX = toCellIndex((lng + lngRadius - originLng) / cellWidth);
+						long minCellY = toCellIndex((lat - latRadius) / cellHeight);
+						long maxCellY = toCellIndex((lat + latRadius) / cellHeight);
+						if(isGeodesic && (maxCellX - minCellX + 1 >= columnCount || lngRadius >= 180))
+						{
+								minCellX = 0;
+								maxCellX = columnCount - 1;
+						}
+						
+						// near a pole, or with coordinates far from the origin, there can be more cells around the record than earlier records,
+						// which are then compared with it instead
+						boolean isDuplicated = false;
+						boolean isComparedWithAll = ((double)maxCellX - minCellX + 1) * ((double)maxCellY - minCellY + 1) > i;
+						if(isComparedWithAll)
+						{
+								markFirstComeRecords(userRecords, i, i+1, lngValues, latValues, duplicateDistance, isGeodesic, haversineLimit, keepRecord);
+								isDuplicated = !keepRecord[record];
+						}
+						for(long cx=minCellX;(cx<=maxCellX) && !isDuplicated && !isComparedWithAll;cx++)
+						{
+								long wrappedCellX = isGeodesic ? Math.floorMod(cx, columnCount) : cx;
+								for(long cy=minCellY;(cy<=maxCellY) && !isDuplicated;cy++)
+								{
+										IntList cellRecords = keptRecordCells.get(cellKey(wrappedCellX, cy));
+										if(cellRecords == null) continue;
+										
+										for(int j=0;j<cellRecords.size();j++)
+										{
+												if(isWithinDistance(cellRecords.get(j), record, lngValues, latValues, duplicateDistance, isGeodesic, haversineLimit))
+												{
+														isDuplicated = true;
+														break;
+												}
+										}
+								}
+						}
+						
+						if(!isDuplicated)
+						{
+								keepRecord[record] = true;
+								long thisCellX = toCellIndex((lng - originLng) / cellWidth);
+								if(isGeodesic) thisCellX = Math.floorMod(thisCellX, columnCount);
+								long thisCellKey = cellKey(thisCellX, toCellIndex(lat / cellHeight));
+								IntList cellRecords = keptRecordCells.get(thisCellKey);
+								if(cellRecords == null)
+								{
+										cellRecords = new IntList(4);
+										keptRecordCells.put(thisCellKey, cellRecords);
+								}
+								cellRecords.add(record);
+						}
+				}
+		}
+		
+		
+		// mark the records from first to end (exclusive) by comparing each of them with every earlier kept record of the user
+		private static void markFirstComeRecords(IntList userRecords, int first, int end, double[] lngValues, double[] latValues, double duplicateDistance, boolean isGeodesic, double haversineLimit, boolean[] keepRecord)
+		{
+				for(int i=first;i<end;i++)
+				{
+						int record = userRecords.get(i);
+						boolean isDuplicated = false;
+						for(int j=0;j<i;j++)
+						{
+								int keptRecord = userRecords.get(j);
+								if(keepRecord[keptRecord] && isWithinDistance(keptRecord, record, lngValues, latValues, duplicateDistance, isGeodesic, haversineLimit))
+								{
+										isDuplicated = true;
+										break;
+								}
+						}
+						keepRecord[record] = !isDuplicated;
+				}
+		}
+		
+		
+		private static boolean isWithinDistance(int recordA, int recordB, double[] lngValues, double[] latValues, double distance, boolean isGeodesic, double haversineLimit)
+		{
+				if(isGeodesic)
+				{
+						return GeodesicDistance.isWithin(lngValues[recordA], latValues[recordA], GeodesicDistance.getCosLat(latValues[recordA]),
+								lngValues[recordB], latValues[recordB], GeodesicDistance.getCosLat(latValues[recordB]), haversineLimit);
+				}
+				double dx = lngValues[recordA] - lngValues[recordB];
+				double dy = latValues[recordA] - latValues[recordB];
+				return Math.sqrt(dx*dx + dy*dy) <= distance;
+		}
+		
+		// the cell of a coordinate divided by the cell size, kept within +-2^40 so that a range of cells cannot overflow
+		private static long toCellIndex(double cellPosition)
+		{
+				if(Double.isNaN(cellPosition)) return 0;
+				return (long)Math.max(-MAX_CELL_INDEX, Math.min(MAX_CELL_INDEX, Math.floor(cellPosition)));
+		}
+		
+		private static long cellKey(long cx, long cy)
+		{
+				return (cx << 32) ^ (cy & 0xffffffffL);
+		}
+		
+		
+		// the records that survived the preprocessing, in the order of the input file
+		PointStore getProcessedPointStore()
+		{
+				return processedPointStore;
+		}
+
 
 }
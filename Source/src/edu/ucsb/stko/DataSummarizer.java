@@ -1,57 +1,39 @@
 package edu.ucsb.stko;
 
-import java.io.File;
-import java.io.FileReader;
-import java.util.Hashtable;
-
 import org.json.JSONObject;
 
-import au.com.bytecode.opencsv.CSVReader;
-
+// counts the records and users of the input data; the records are fed in by the DataIngestor while it reads the file,
+// and the users are the ones interned into the UserDictionary
 class DataSummarizer
 {
-		public JSONObject summarizeData(JSONObject parameterObject)
+		private long totalRecordCount = 0;
+
+		void addRecords(long recordCount)
+		{
+				totalRecordCount += recordCount;
+		}
+
+		public JSONObject getSummaryObject(int userIDIndex, UserDictionary userDictionary)
 		{
-				System.out.println("Summarizing the input data...");
 				try
 				{
-						File inputFile = new File(parameterObject.getString("dataPath"));
-						FileReader inputFileReader = new FileReader(inputFile);
-						CSVReader csvReader = new CSVReader(inputFileReader);
-											
-						int userIDIndex = parameterObject.getInt("userIDIndex");
-	
-						Hashtable<String, Integer> userHashtable = new Hashtable<>();
-						long totalRecordCount = 0;
-						String[] thisInputLine = csvReader.readNext();
-						while((thisInputLine = csvReader.readNext())!=null)
-						{
-								if(userIDIndex != -1)
-								{
-										String userIDString = thisInputLine[userIDIndex];
-										userHashtable.put(userIDString, 0);
-								}
-								totalRecordCount++;
-						}
-						csvReader.close();
-						
 						JSONObject summaryObject = new JSONObject();
 						summaryObject.put("recordCount", totalRecordCount);
-						
+
 						if(userIDIndex != -1)
 						{
-								summaryObject.put("userCount", userHashtable.size());
-								System.out.println("There are "+totalRecordCount+" records and "+userHashtable.size()+" users in the data.");
+								summaryObject.put("userCount", userDictionary.size());
+								System.out.println("There are "+totalRecordCount+" records and "+userDictionary.size()+" users in the data.");
 						}
 						else
 						{
 								System.out.println("There are "+totalRecordCount+" records in the data.");
 						}
-						
+
 						System.out.println("Data summary finished...");
 						System.out.println("---------------------------------------------------");
 						return summaryObject;
-				} 
+				}
 				catch (Exception e)
 				{
 						System.out.println("An error happened in the data summarizing process; The program has been canceled");
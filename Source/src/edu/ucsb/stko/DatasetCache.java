@@ -0,0 +1,490 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+// a binary copy of the parsed input data in tempPath, so that reruns with other parameters do not parse the csv again;
+// it stays valid as long as the size and modification time of the input file and the column indexes are unchanged.
+// The points are stored as columns in Hilbert order and grouped into pages with a bounding box each, so a run restricted
+// to a bounding box only reads the pages it overlaps. The duplicate flags of the preprocessing are stored for one eps
+class DatasetCache
+{
+		private static final long MAGIC = 0x4442534341444331L;
+		private static final int VERSION = 1;
+		private static final int HEADER_SIZE = 128;
+		private static final int DUPLICATE_DISTANCE_POSITION = 72;
+		private static final int PAGE_SIZE = 4096;
+
+		// columns are mapped in windows of at most this many bytes
+		private static final int MAX_WINDOW_SIZE = 1 << 30;
+
+		private final File cacheFile;
+		private final long inputFileSize;
+		private final long inputLastModified;
+		private final int[] columnIndexes;
+
+		private PointStore pointStore = null;
+		private UserDictionary userDictionary = null;
+		private long rowCount = 0;
+
+		// the position in the cache of every point of pointStore, and where the duplicate flags start
+		private int[] cachePositions = null;
+		private long flagsOffset = 0;
+
+		// the duplicate flags of the loaded points in the order of pointStore, computed with duplicateDistance (NaN if there are none)
+		private boolean[] keepFlags = null;
+		private double duplicateDistance = Double.NaN;
+
+
+		DatasetCache(JSONObject parameterObject) throws Exception
+		{
+				File inputFile = new File(parameterObject.getString("dataPath"));
+				this.cacheFile = new File(parameterObject.getString("tempPath")+"/"+inputFile.getName().replace(".csv", "")+"_dataset.bin");
+				this.inputFileSize = inputFile.length();
+				this.inputLastModified = inputFile.lastModified();
+				this.columnIndexes = new int[]{parameterObject.getInt("recordIDIndex"), parameterObject.getInt("userIDIndex"), parameterObject.getInt("lngIndex"), parameterObject.getInt("latIndex")};
+		}
+
+
+		// load the points that lie within boundingBox (all the points if it is null) in the order of the input file;
+		// returns false if there is no valid cache for the input file
+		boolean load(double[] boundingBox) throws Exception
+		{
+				if(!cacheFile.exists()) return false;
+
+				RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r");
+				try
+				{
+						FileChannel channel = randomAccessFile.getChannel();
+						ByteBuffer header = readHeader(channel);
+						if(header == null) return false;
+						long cachedRowCount = header.getLong();
+						int pointCount = header.getInt();
+						int pageCount = header.getInt();
+						int dictionaryLength = header.getInt();
+						header.getInt();
+						double cachedDuplicateDistance = header.getDouble();
+
+						long pageIndexOffset = HEADER_SIZE + (long)dictionaryLength;
+						long xOffset = pageIndexOffset + 32L * pageCount;
+						long yOffset = xOffset + 8L * pointCount;
+						long userIdOffset = yOffset + 8L * pointCount;
+						long recordRowOffset = userIdOffset + 4L * pointCount;
+						long cachedFlagsOffset = recordRowOffset + 4L * pointCount;
+						if(channel.size() != cachedFlagsOffset + pointCount) return false;
+
+						byte[] dictionaryBytes = new byte[dictionaryLength];
+						readBytes(channel, HEADER_SIZE, dictionaryBytes, 0, dictionaryLength);
+						double[] pageBounds = new double[4 * pageCount];
+						readDoubles(channel, pageIndexOffset, pageBounds, 0, pageBounds.length);
+
+						// read the runs of consecutive pages that overlap the bounding box
+						boolean isRestricted = (boundingBox != null);
+						IntList selectedPages = new IntList(Math.max(pageCount, 1));
+						for(int page=0;page<pageCount;page++)
+						{
+								if(!isRestricted || intersects(pageBounds, page, boundingBox)) selectedPages.add(page);
+						}
+						int readCapacity = (int)Math.min(pointCount, (long)selectedPages.size() * PAGE_SIZE);
+						double[] xValues = new double[readCapacity];
+						double[] yValues = new double[readCapacity];
+						int[] userIds = new int[readCapacity];
+						int[] recordRows = new int[readCapacity];
+						byte[] flags = new byte[readCapacity];
+						int[] positions = new int[readCapacity];
+						int readCount = 0;
+						int i = 0;
+						while(i < selectedPages.size())
+						{
+								int firstPage = selectedPages.get(i);
+								int lastPage = firstPage;
+								while(i + 1 < selectedPages.size() && selectedPages.get(i + 1) == lastPage + 1)
+								{
+										i++;
+										lastPage++;
+								}
+								i++;
+
+								int start = firstPage * PAGE_SIZE;
+								int count = Math.min(pointCount, (lastPage + 1) * PAGE_SIZE) - start;
+								readDoubles(channel, xOffset + 8L * start, xValues, readCount, count);
+								readDoubles(channel, yOffset + 8L * start, yValues, readCount, count);
+								readInts(channel, userIdOffset + 4L * start, userIds, readCount, count);
+								readInts(channel, recordRowOffset + 4L * start, recordRows, readCount, count);
+								readBytes(channel, cachedFlagsOffset + start, flags, readCount, count);
+								for(int k=0;k<count;k++)
+								{
+										positions[readCount + k] = start + k;
+								}
+								readCount += count;
+						}
+
+						// put the points back into the order of the input file, by their record rows which are unique; all the points are
+						// placed through a table indexed by the row, while the few points of a bounding box are sorted by their rows instead
+						int[] fileOrder = isRestricted ? sortByRecordRow(boundingBox, xValues, yValues, recordRows, readCount) : orderByRecordRow(recordRows, readCount);
+						pointStore = new PointStore(fileOrder.length);
+						cachePositions = new int[fileOrder.length];
+						keepFlags = new boolean[fileOrder.length];
+						for(int j=0;j<fileOrder.length;j++)
+						{
+								int k = fileOrder[j];
+								cachePositions[j] = positions[k];
+								keepFlags[j] = (flags[k] != 0);
+								pointStore.add(xValues[k], yValues[k], userIds[k], recordRows[k]);
+						}
+						pointStore.trimToSize();
+
+						userDictionary = UserDictionary.fromByteArray(dictionaryBytes);
+						rowCount = cachedRowCount;
+						flagsOffset = cachedFlagsOffset;
+						// the flags are only used and updated when all the points are loaded
+						duplicateDistance = isRestricted ? Double.NaN : cachedDuplicateDistance;
+						return true;
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+
+		// the indexes of all the read points in the order of their record rows
+		private static int[] orderByRecordRow(int[] recordRows, int readCount)
+		{
+				int maxRecordRow = -1;
+				for(int k=0;k<readCount;k++)
+				{
+						maxRecordRow = Math.max(maxRecordRow, recordRows[k]);
+				}
+				int[] slotOfRow = new int[maxRecordRow + 1];
+				for(int k=0;k<readCount;k++)
+				{
+						slotOfRow[recordRows[k]] = k + 1;
+				}
+				int[] fileOrder = new int[readCount];
+				int j = 0;
+				for(int row=0;row<slotOfRow.length;row++)
+				{
+						if(slotOfRow[row] != 0) fileOrder[j++] = slotOfRow[row] - 1;
+				}
+				return fileOrder;
+		}
+
+
+		// the indexes of the read points within the bounding box in the order of their record rows
+		private static int[] sortByRecordRow(double[] boundingBox, double[] xValues, double[] yValues, int[] recordRows, int readCount)
+		{
+				long[] rowKeys = new long[readCount];
+				int keptCount = 0;
+				for(int k=0;k<readCount;k++)
+				{
+						if(contains(boundingBox, xValues[k], yValues[k])) rowKeys[keptCount++] = ((long)recordRows[k] << 32) | k;
+				}
+				Arrays.sort(rowKeys, 0, keptCount);
+				int[] fileOrder = new int[keptCount];
+				for(int j=0;j<keptCount;j++)
+				{
+						fileOrder[j] = (int)(rowKeys[j] & 0xffffffffL);
+				}
+				return fileOrder;
+		}
+
+
+		// whether the cache belongs to the current input file and column indexes
+		boolean isUpToDate() throws Exception
+		{
+				if(!cacheFile.exists()) return false;
+
+				RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "r");
+				try
+				{
+						return readHeader(randomAccessFile.getChannel()) != null;
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+		// the header positioned after the input file and column indexes, or null if they do not match
+		private ByteBuffer readHeader(FileChannel channel) throws Exception
+		{
+				if(channel.size() < HEADER_SIZE) return null;
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				channel.read(header, 0);
+				header.flip();
+
+				if(header.getLong() != MAGIC || header.getInt() != VERSION || header.getInt() != PAGE_SIZE) return null;
+				if(header.getLong() != inputFileSize || header.getLong() != inputLastModified) return null;
+				for(int i=0;i<4;i++)
+				{
+						if(header.getInt() != columnIndexes[i]) return null;
+				}
+				return header;
+		}
+
+
+		// write the points of the whole input file (in file order) into the cache, replacing an older one
+		void write(PointStore rawPointStore, UserDictionary rawUserDictionary, long inputRowCount, boolean parallelSort) throws Exception
+		{
+				int pointCount = rawPointStore.size();
+				double[] xValues = rawPointStore.getXCoords();
+				double[] yValues = rawPointStore.getYCoords();
+				int[] userIds = rawPointStore.getUserIds();
+				int[] recordRows = rawPointStore.getRecordRows();
+
+				double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+				double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+				for(int i=0;i<pointCount;i++)
+				{
+						minX = Math.min(minX, xValues[i]);
+						maxX = Math.max(maxX, xValues[i]);
+						minY = Math.min(minY, yValues[i]);
+						maxY = Math.max(maxY, yValues[i]);
+				}
+
+				// sort by the Hilbert index; the point index in the low 31 bits keeps equal cells in file order
+				long[] sortKeys = new long[pointCount];
+				for(int i=0;i<pointCount;i++)
+				{
+						long hilbertIndex = SpaceFillingCurve.hilbertIndex(SpaceFillingCurve.toGridCell(xValues[i], minX, maxX), SpaceFillingCurve.toGridCell(yValues[i], minY, maxY));
+						sortKeys[i] = (hilbertIndex << 31) | i;
+				}
+				if(parallelSort) Arrays.parallelSort(sortKeys);
+				else Arrays.sort(sortKeys);
+				int[] order = new int[pointCount];
+				cachePositions = new int[pointCount];
+				for(int k=0;k<pointCount;k++)
+				{
+						order[k] = (int)(sortKeys[k] & 0x7fffffffL);
+						cachePositions[order[k]] = k;
+				}
+				sortKeys = null;
+
+				int pageCount = (pointCount + PAGE_SIZE - 1) / PAGE_SIZE;
+				byte[] dictionaryBytes = rawUserDictionary.toByteArray();
+
+				File partialFile = new File(cacheFile.getPath()+".part");
+				RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw");
+				try
+				{
+						randomAccessFile.setLength(0);
+						FileChannel channel = randomAccessFile.getChannel();
+						ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+						buffer.putLong(MAGIC).putInt(VERSION).putInt(PAGE_SIZE);
+						buffer.putLong(inputFileSize).putLong(inputLastModified);
+						for(int i=0;i<4;i++)
+						{
+								buffer.putInt(columnIndexes[i]);
+						}
+						buffer.putLong(inputRowCount);
+						buffer.putInt(pointCount).putInt(pageCount).putInt(dictionaryBytes.length).putInt(0);
+						buffer.putDouble(Double.NaN);
+						buffer.position(HEADER_SIZE);
+						writeBuffer(channel, buffer);
+
+						channel.write(ByteBuffer.wrap(dictionaryBytes));
+
+						for(int page=0;page<pageCount;page++)
+						{
+								double pageMinX = Double.POSITIVE_INFINITY, pageMinY = Double.POSITIVE_INFINITY;
+								double pageMaxX = Double.NEGATIVE_INFINITY, pageMaxY = Double.NEGATIVE_INFINITY;
+								int pageEnd = Math.min(pointCount, (page + 1) * PAGE_SIZE);
+								for(int k=page*PAGE_SIZE;k<pageEnd;k++)
+								{
+										pageMinX = Math.min(pageMinX, xValues[order[k]]);
+										pageMaxX = Math.max(pageMaxX, xValues[order[k]]);
+										pageMinY = Math.min(pageMinY, yValues[order[k]]);
+										pageMaxY = Math.max(pageMaxY, yValues[order[k]]);
+								}
+								if(buffer.remaining() < 32) writeBuffer(channel, buffer);
+								buffer.putDouble(pageMinX).putDouble(pageMinY).putDouble(pageMaxX).putDouble(pageMaxY);
+						}
+
+						for(int k=0;k<pointCount;k++)
+						{
+								if(buffer.remaining() < 8) writeBuffer(channel, buffer);
+								buffer.putDouble(xValues[order[k]]);
+						}
+						for(int k=0;k<pointCount;k++)
+						{
+								if(buffer.remaining() < 8) writeBuffer(channel, buffer);
+								buffer.putDouble(yValues[order[k]]);
+						}
+						for(int k=0;k<pointCount;k++)
+						{
+								if(buffer.remaining() < 4) writeBuffer(channel, buffer);
+								buffer.putInt(userIds[order[k]]);
+						}
+						for(int k=0;k<pointCount;k++)
+						{
+								if(buffer.remaining() < 4) writeBuffer(channel, buffer);
+								buffer.putInt(recordRows[order[k]]);
+						}
+						for(int k=0;k<pointCount;k++)
+						{
+								if(buffer.remaining() < 1) writeBuffer(channel, buffer);
+								buffer.put((byte)0);
+						}
+						writeBuffer(channel, buffer);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+
+				if(cacheFile.exists()) cacheFile.delete();
+				if(!partialFile.renameTo(cacheFile)) throw new Exception("The dataset cache "+cacheFile.getPath()+" could not be written");
+
+				flagsOffset = HEADER_SIZE + (long)dictionaryBytes.length + 32L * pageCount + 24L * pointCount;
+				keepFlags = null;
+				duplicateDistance = Double.NaN;
+		}
+
+
+		// store the duplicate flags of the preprocessing; keepRecord is in the order of the points that were written or loaded,
+		// which must be all the points of the cache
+		void writeDuplicateFlags(boolean[] keepRecord, double newDuplicateDistance) throws Exception
+		{
+				byte[] flags = new byte[keepRecord.length];
+				for(int i=0;i<keepRecord.length;i++)
+				{
+						if(keepRecord[i]) flags[cachePositions[i]] = 1;
+				}
+
+				RandomAccessFile randomAccessFile = new RandomAccessFile(cacheFile, "rw");
+				try
+				{
+						// the old flags are marked as invalid while they are overwritten
+						FileChannel channel = randomAccessFile.getChannel();
+						channel.write((ByteBuffer)ByteBuffer.allocate(8).putDouble(Double.NaN).flip(), DUPLICATE_DISTANCE_POSITION);
+						long position = flagsOffset;
+						int start = 0;
+						while(start < flags.length)
+						{
+								int count = Math.min(MAX_WINDOW_SIZE, flags.length - start);
+								ByteBuffer flagBuffer = ByteBuffer.wrap(flags, start, count);
+								while(flagBuffer.hasRemaining())
+								{
+										position += channel.write(flagBuffer, position);
+								}
+								start += count;
+						}
+						channel.write((ByteBuffer)ByteBuffer.allocate(8).putDouble(newDuplicateDistance).flip(), DUPLICATE_DISTANCE_POSITION);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+				keepFlags = keepRecord;
+				duplicateDistance = newDuplicateDistance;
+		}
+
+
+		PointStore getPointStore()
+		{
+				return pointStore;
+		}
+
+		UserDictionary getUserDictionary()
+		{
+				return userDictionary;
+		}
+
+		// the number of data rows in the input file, including the ones without valid coordinates
+		long getRowCount()
+		{
+				return rowCount;
+		}
+
+		File getCacheFile()
+		{
+				return cacheFile;
+		}
+
+		// the stored duplicate flags in the order of the loaded points, or null if they were computed with another distance
+		boolean[] getKeepFlags(double forDuplicateDistance)
+		{
+				if(keepFlags == null || Double.compare(duplicateDistance, forDuplicateDistance) != 0) return null;
+				return keepFlags;
+		}
+
+
+		private static boolean intersects(double[] pageBounds, int page, double[] boundingBox)
+		{
+				return pageBounds[4*page] <= boundingBox[2] && pageBounds[4*page+2] >= boundingBox[0]
+								&& pageBounds[4*page+1] <= boundingBox[3] && pageBounds[4*page+3] >= boundingBox[1];
+		}
+
+		// boundingBox is {minX, minY, maxX, maxY}
+		static boolean contains(double[] boundingBox, double x, double y)
+		{
+				return x >= boundingBox[0] && x <= boundingBox[2] && y >= boundingBox[1] && y <= boundingBox[3];
+		}
+
+		// the buffer helpers are also used for the neighbourhood graph and OPTICS ordering files
+		static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws Exception
+		{
+				buffer.flip();
+				while(buffer.hasRemaining())
+				{
+						channel.write(buffer);
+				}
+				buffer.clear();
+		}
+
+		static void readDoubles(FileChannel channel, long offset, double[] target, int targetOffset, int count) throws Exception
+		{
+				while(count > 0)
+				{
+						int windowCount = Math.min(count, MAX_WINDOW_SIZE / 8);
+						channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L * windowCount).asDoubleBuffer().get(target, targetOffset, windowCount);
+						offset += 8L * windowCount;
+						targetOffset += windowCount;
+						count -= windowCount;
+				}
+		}
+
+		static void readInts(FileChannel channel, long offset, int[] target, int targetOffset, int count) throws Exception
+		{
+				while(count > 0)
+				{
+						int windowCount = Math.min(count, MAX_WINDOW_SIZE / 4);
+						channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * windowCount).asIntBuffer().get(target, targetOffset, windowCount);
+						offset += 4L * windowCount;
+						targetOffset += windowCount;
+						count -= windowCount;
+				}
+		}
+
+		static void readLongs(FileChannel channel, long offset, long[] target, int targetOffset, int count) throws Exception
+		{
+				while(count > 0)
+				{
+						int windowCount = Math.min(count, MAX_WINDOW_SIZE / 8);
+						channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L * windowCount).asLongBuffer().get(target, targetOffset, windowCount);
+						offset += 8L * windowCount;
+						targetOffset += windowCount;
+						count -= windowCount;
+				}
+		}
+
+		static void readBytes(FileChannel channel, long offset, byte[] target, int targetOffset, int count) throws Exception
+		{
+				while(count > 0)
+				{
+						int windowCount = Math.min(count, MAX_WINDOW_SIZE);
+						channel.map(FileChannel.MapMode.READ_ONLY, offset, windowCount).get(target, targetOffset, windowCount);
+						offset += windowCount;
+						targetOffset += windowCount;
+						count -= windowCount;
+				}
+		}
+
+}
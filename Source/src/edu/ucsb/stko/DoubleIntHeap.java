@@ -0,0 +1,107 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+// a binary min-heap of (double key, int value) pairs kept in two primitive arrays; pairs with equal keys come out by
+// increasing value, so the order in which the pairs leave the heap does not depend on the order they were added
+class DoubleIntHeap
+{
+		private double[] keys;
+		private int[] values;
+		private int size = 0;
+
+
+		DoubleIntHeap(int initialCapacity)
+		{
+				int capacity = Math.max(initialCapacity, 16);
+				keys = new double[capacity];
+				values = new int[capacity];
+		}
+
+
+		void add(double key, int value)
+		{
+				if(size == keys.length)
+				{
+						keys = Arrays.copyOf(keys, size * 2);
+						values = Arrays.copyOf(values, size * 2);
+				}
+
+				// sift up
+				int position = size++;
+				while(position > 0)
+				{
+						int parent = (position - 1) >>> 1;
+						if(!isLess(key, value, keys[parent], values[parent])) break;
+						keys[position] = keys[parent];
+						values[position] = values[parent];
+						position = parent;
+				}
+				keys[position] = key;
+				values[position] = value;
+		}
+
+
+		// the smallest key; the heap must not be empty
+		double peekKey()
+		{
+				return keys[0];
+		}
+
+		int peekValue()
+		{
+				return values[0];
+		}
+
+
+		// remove the smallest pair and return its value
+		int poll()
+		{
+				int result = values[0];
+				size--;
+				if(size > 0)
+				{
+						double key = keys[size];
+						int value = values[size];
+
+						// sift down
+						int position = 0;
+						while(true)
+						{
+								int child = 2 * position + 1;
+								if(child >= size) break;
+								if(child + 1 < size && isLess(keys[child+1], values[child+1], keys[child], values[child])) child++;
+								if(!isLess(keys[child], values[child], key, value)) break;
+								keys[position] = keys[child];
+								values[position] = values[child];
+								position = child;
+						}
+						keys[position] = key;
+						values[position] = value;
+				}
+				return result;
+		}
+
+
+		int size()
+		{
+				return size;
+		}
+
+		boolean isEmpty()
+		{
+				return size == 0;
+		}
+
+		void clear()
+		{
+				size = 0;
+		}
+
+
+		private static boolean isLess(double keyA, int valueA, double keyB, int valueB)
+		{
+				return keyA < keyB || (keyA == keyB && valueA < valueB);
+		}
+
+}
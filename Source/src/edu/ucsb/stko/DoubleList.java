@@ -0,0 +1,55 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+// a growable list of primitive doubles, used instead of List<Double> in the hot loops
+class DoubleList
+{
+		private double[] values;
+		private int size = 0;
+
+		DoubleList()
+		{
+				this(16);
+		}
+
+		DoubleList(int initialCapacity)
+		{
+				values = new double[Math.max(initialCapacity, 4)];
+		}
+
+		void add(double value)
+		{
+				if(size == values.length)
+				{
+						values = Arrays.copyOf(values, values.length * 2);
+				}
+				values[size++] = value;
+		}
+
+		double get(int index)
+		{
+				return values[index];
+		}
+
+		void set(int index, double value)
+		{
+				values[index] = value;
+		}
+
+		int size()
+		{
+				return size;
+		}
+
+		void clear()
+		{
+				size = 0;
+		}
+
+		double[] toArray()
+		{
+				return Arrays.copyOf(values, size);
+		}
+
+}
@@ -6,7 +6,8 @@ import org.json.JSONObject;
 class EsriJSONInitialiser
 {
 		
-		public JSONObject initializeEsriJsonObject(JSONObject parameterObject)
+		// the spatial reference of a projection made while ingesting the records replaces the configured one; mapProjection may be null
+		public JSONObject initializeEsriJsonObject(JSONObject parameterObject, MapProjection mapProjection)
 		{
 				System.out.println("Initialize Esri JSON object...");
 				try
@@ -16,7 +17,12 @@ class EsriJSONInitialiser
 						 
 						 // add spatial reference
 						 String spatialReferenceString = parameterObject.getString("spatialReference");
-						 if(spatialReferenceString.equals(""))  // this is WGS 84
+						 if(mapProjection != null)
+						 {
+								 if(!spatialReferenceString.equals("")) System.out.println("The spatialReference of the projection "+mapProjection.getName()+" is used instead of the configured one.");
+								 jsonObject.put("spatialReference", mapProjection.getSpatialReference());
+						 }
+						 else if(spatialReferenceString.equals(""))  // this is WGS 84
 						 {
 								 JSONObject spatialRefObject = new JSONObject();
 								 spatialRefObject.put("wkid", 4326);
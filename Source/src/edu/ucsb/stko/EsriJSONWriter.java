@@ -0,0 +1,120 @@
+package edu.ucsb.stko;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.json.JSONObject;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+
+// writes the EsriJSON result progressively: the header prepared by the EsriJSONInitialiser is written first, and every
+// feature is appended (and flushed) as soon as it is complete, so the features are never held in memory together and
+// the file can be followed while it grows. The features array is closed by close()
+class EsriJSONWriter
+{
+		private final File outputFile;
+		private final Writer outputWriter;
+		private final StringBuilder featureBuilder = new StringBuilder(1 << 12);
+		private int featureCount = 0;
+
+
+		EsriJSONWriter(File outputFile, JSONObject esriJsonObject) throws Exception
+		{
+				this.outputFile = outputFile;
+				this.outputWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8), 1 << 16);
+
+				outputWriter.write("{");
+				Iterator<?> keys = esriJsonObject.keys();
+				while(keys.hasNext())
+				{
+						String key = keys.next().toString();
+						if(key.equals("features")) continue;
+						outputWriter.write(JSONObject.quote(key)+":"+JSONObject.valueToString(esriJsonObject.get(key))+",");
+				}
+				outputWriter.write("\"features\":[");
+				outputWriter.flush();
+		}
+
+
+		// append a polygon feature; the attribute values are written as strings, and the coordinates of the geometry form one ring
+		void writeFeature(String[] attributeNames, String[] attributeValues, Geometry geometry) throws Exception
+		{
+				featureBuilder.setLength(0);
+				if(featureCount > 0) featureBuilder.append(',');
+				featureBuilder.append("{\"attributes\":{");
+				for(int i=0;i<attributeNames.length;i++)
+				{
+						if(i > 0) featureBuilder.append(',');
+						featureBuilder.append(JSONObject.quote(attributeNames[i])).append(':').append(JSONObject.quote(attributeValues[i]));
+				}
+
+				featureBuilder.append("},\"geometry\":{\"rings\":[[");
+				Coordinate[] coordinates = geometry.getCoordinates();
+				for(int j=0;j<coordinates.length;j++)
+				{
+						if(j > 0) featureBuilder.append(',');
+						featureBuilder.append('[');
+						appendNumber(coordinates[j].x);
+						featureBuilder.append(',');
+						appendNumber(coordinates[j].y);
+						featureBuilder.append(']');
+				}
+				featureBuilder.append("]]}}");
+
+				outputWriter.append(featureBuilder);
+				outputWriter.flush();
+				featureCount++;
+		}
+
+
+		int getFeatureCount()
+		{
+				return featureCount;
+		}
+
+
+		// close the features array and the file
+		void close() throws Exception
+		{
+				outputWriter.write("]}");
+				outputWriter.close();
+		}
+
+		// close the file and remove it, e.g. when the program has been canceled
+		void discard()
+		{
+				try
+				{
+						outputWriter.close();
+				}
+				catch (Exception e)
+				{
+				}
+				outputFile.delete();
+		}
+
+
+		// the same text as JSONObject.numberToString: the shortest representation, without trailing zeros after the decimal point
+		private void appendNumber(double value) throws Exception
+		{
+				if(Double.isNaN(value) || Double.isInfinite(value)) throw new Exception("JSON does not allow non-finite numbers");
+
+				int start = featureBuilder.length();
+				featureBuilder.append(value);
+				int end = featureBuilder.length();
+				for(int i=start;i<end;i++)
+				{
+						if(featureBuilder.charAt(i) == 'E') return;
+				}
+				while(featureBuilder.charAt(end-1) == '0') end--;
+				if(featureBuilder.charAt(end-1) == '.') end--;
+				featureBuilder.setLength(end);
+		}
+
+}
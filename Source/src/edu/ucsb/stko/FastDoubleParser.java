@@ -0,0 +1,133 @@
+package edu.ucsb.stko;
+
+import java.nio.charset.StandardCharsets;
+
+// parses decimal numbers straight from bytes; the plain forms found in coordinate columns ("-118.2437", "3.4e5")
+// are converted exactly with at most one rounding, everything else is handed to Double.parseDouble, so the
+// result is always the same as Double.parseDouble. Not thread-safe: every reader thread uses its own parser
+class FastDoubleParser
+{
+		private static final double[] POWERS_OF_TEN = {
+				1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+				1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+		// mantissas up to 2^53 are exact in a double
+		private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+		private double value;
+
+
+		// returns false if the bytes are not a number; the parsed number is then available from getValue()
+		boolean parse(byte[] buffer, int offset, int length)
+		{
+				int position = offset;
+				int end = offset + length;
+
+				// Double.parseDouble ignores leading and trailing whitespace
+				while(position < end && (buffer[position] & 0xff) <= ' ') position++;
+				while(end > position && (buffer[end-1] & 0xff) <= ' ') end--;
+				if(position == end) return false;
+
+				boolean negative = false;
+				if(buffer[position] == '-' || buffer[position] == '+')
+				{
+						negative = (buffer[position] == '-');
+						position++;
+				}
+
+				long mantissa = 0;
+				int significantDigits = 0;
+				int exponent = 0;
+				int digitCount = 0;
+
+				while(position < end && buffer[position] >= '0' && buffer[position] <= '9')
+				{
+						if(mantissa != 0 || buffer[position] != '0')
+						{
+								mantissa = mantissa * 10 + (buffer[position] - '0');
+								significantDigits++;
+						}
+						digitCount++;
+						position++;
+				}
+				if(position < end && buffer[position] == '.')
+				{
+						position++;
+						while(position < end && buffer[position] >= '0' && buffer[position] <= '9')
+						{
+								if(mantissa != 0 || buffer[position] != '0')
+								{
+										mantissa = mantissa * 10 + (buffer[position] - '0');
+										significantDigits++;
+								}
+								exponent--;
+								digitCount++;
+								position++;
+						}
+				}
+				if(digitCount == 0) return parseSlowly(buffer, offset, length);
+
+				if(position < end && (buffer[position] == 'e' || buffer[position] == 'E'))
+				{
+						position++;
+						boolean negativeExponent = false;
+						if(position < end && (buffer[position] == '-' || buffer[position] == '+'))
+						{
+								negativeExponent = (buffer[position] == '-');
+								position++;
+						}
+						int exponentValue = 0;
+						int exponentDigits = 0;
+						while(position < end && buffer[position] >= '0' && buffer[position] <= '9' && exponentDigits < 4)
+						{
+								exponentValue = exponentValue * 10 + (buffer[position] - '0');
+								exponentDigits++;
+								position++;
+						}
+						if(exponentDigits == 0) return false;
+						exponent += negativeExponent ? -exponentValue : exponentValue;
+				}
+
+				// anything left over (such as a "d" or "f" suffix, or a hexadecimal number) goes the slow way
+				if(position != end || significantDigits > 18) return parseSlowly(buffer, offset, length);
+
+				double result;
+				if(mantissa == 0)
+				{
+						result = 0.0;
+				}
+				else if(mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22)
+				{
+						// both operands are exact, so the single rounding of the product or quotient gives the correctly rounded result
+						result = (exponent >= 0) ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+				}
+				else
+				{
+						return parseSlowly(buffer, offset, length);
+				}
+
+				value = negative ? -result : result;
+				return true;
+		}
+
+
+		double getValue()
+		{
+				return value;
+		}
+
+
+		private boolean parseSlowly(byte[] buffer, int offset, int length)
+		{
+				try
+				{
+						value = Double.parseDouble(new String(buffer, offset, length, StandardCharsets.UTF_8));
+						return true;
+				}
+				catch (NumberFormatException e)
+				{
+						return false;
+				}
+		}
+
+}
@@ -0,0 +1,65 @@
+package edu.ucsb.stko;
+
+// distances on the sphere for the geodesic mode ("geodesicEps"), in which the coordinates are longitudes and latitudes (WGS84) and
+// eps is in metres. Whether two points are within a distance is decided by the haversine formula, but the sines are only computed
+// near the boundary: sin(t) is at most t and at least t(1 - t*t/6), so the equirectangular value (without the sines) gives an upper
+// and a lower bound of the haversine, which settle all pairs except those within a tiny fraction of the distance from the boundary
+class GeodesicDistance
+{
+		// the mean radius of the earth in metres
+		static final double EARTH_RADIUS = 6371008.8;
+
+		static final double METRES_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+
+		// the haversine of the angle of a distance in metres, which isWithin compares with
+		static double getHaversineLimit(double distance)
+		{
+				double halfAngle = Math.min(distance / EARTH_RADIUS, Math.PI) / 2;
+				return Math.sin(halfAngle) * Math.sin(halfAngle);
+		}
+
+
+		// whether the great-circle distance between two points is at most the distance of haversineLimit; cosLat is the cosine of the latitude
+		static boolean isWithin(double lng1, double lat1, double cosLat1, double lng2, double lat2, double cosLat2, double haversineLimit)
+		{
+				double lngDifference = Math.abs(lng1 - lng2);
+				if(lngDifference > 180) lngDifference = 360 - lngDifference;
+				double halfLat = Math.toRadians(lat1 - lat2) / 2;
+				double halfLng = Math.toRadians(lngDifference) / 2;
+
+				double upperBound = halfLat * halfLat + cosLat1 * cosLat2 * halfLng * halfLng;
+				if(upperBound <= haversineLimit) return true;
+				double largestSquare = Math.max(halfLat * halfLat, halfLng * halfLng);
+				if(upperBound * (1 - largestSquare / 3) > haversineLimit) return false;
+
+				double sinHalfLat = Math.sin(halfLat);
+				double sinHalfLng = Math.sin(halfLng);
+				return sinHalfLat * sinHalfLat + cosLat1 * cosLat2 * sinHalfLng * sinHalfLng <= haversineLimit;
+		}
+
+
+		static double getCosLat(double lat)
+		{
+				return Math.cos(Math.toRadians(lat));
+		}
+
+
+		// the difference of latitude in degrees over a distance in metres
+		static double toDegrees(double distance)
+		{
+				return distance / METRES_PER_DEGREE;
+		}
+
+
+		// the largest difference of longitude in degrees between a point at the latitude and the points within the distance; 180 if the
+		// distance reaches a pole. It is rounded up a little, as it is used to find the cells of the candidates
+		static double getLongitudeRadius(double lat, double distance)
+		{
+				double angle = distance / EARTH_RADIUS;
+				double cosLat = getCosLat(lat);
+				if(angle >= Math.PI / 2 || Math.sin(angle) >= cosLat) return 180;
+				return Math.min(180, Math.toDegrees(Math.asin(Math.sin(angle) / cosLat)) * (1 + 1e-9) + 1e-12);
+		}
+
+}
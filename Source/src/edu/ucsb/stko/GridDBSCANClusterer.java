@@ -0,0 +1,137 @@
+package edu.ucsb.stko;
+
+// DBSCAN with the region queries answered by a uniform grid of eps-sized cells;
+// points are visited in the same order as the commons-math DBSCANClusterer, so the clusters are the same
+class GridDBSCANClusterer
+{
+		private static final byte UNVISITED = 0;
+		private static final byte VISITED_NOISE = 1;
+		private static final byte PART_OF_CLUSTER = 2;
+
+		private final double eps;
+		private final int minPts;
+		private final boolean isGeodesic;
+
+
+		GridDBSCANClusterer(double eps, int minPts)
+		{
+				this(eps, minPts, false);
+		}
+
+		// in the geodesic mode eps is in metres and the points are longitudes and latitudes
+		GridDBSCANClusterer(double eps, int minPts, boolean isGeodesic)
+		{
+				this.eps = eps;
+				this.minPts = minPts;
+				this.isGeodesic = isGeodesic;
+		}
+
+
+		DBSCANResult cluster(double[] xCoords, double[] yCoords, int pointCount)
+		{
+				return cluster(GridIndex.create(xCoords, yCoords, pointCount, eps, isGeodesic), null);
+		}
+
+
+		// cluster the points of an existing grid index, which may have any cell size; if isIncluded is not null, only the included points
+		// take part, as if the others had been removed before building the index, and the others are labelled as noise
+		DBSCANResult cluster(GridIndex gridIndex, boolean[] isIncluded)
+		{
+				int pointCount = gridIndex.getPointCount();
+				int[] clusterIds = new int[pointCount];
+				byte[] pointTypes = new byte[pointCount];
+				byte[] status = new byte[pointCount];
+				int[] seedMark = new int[pointCount];  // the (cluster number + 1) whose seed list already holds the point
+
+				IntList neighbours = new IntList();
+				IntList candidates = new IntList();
+				IntList seeds = new IntList();
+				int clusterCount = 0;
+
+				for(int i=0;i<pointCount;i++)
+				{
+						clusterIds[i] = DBSCANResult.NOISE;
+				}
+
+				for(int i=0;i<pointCount;i++)
+				{
+						if(status[i] != UNVISITED) continue;
+						if(isIncluded != null && !isIncluded[i]) continue;
+
+						queryNeighbours(gridIndex, i, isIncluded, candidates, neighbours);
+						if(neighbours.size() < minPts)
+						{
+								status[i] = VISITED_NOISE;
+								continue;
+						}
+
+						// expand a new cluster from this core point
+						int clusterId = clusterCount++;
+						int mark = clusterId + 1;
+						pointTypes[i] = DBSCANResult.CORE_POINT;
+						status[i] = PART_OF_CLUSTER;
+						clusterIds[i] = clusterId;
+
+						seeds.clear();
+						for(int n=0;n<neighbours.size();n++)
+						{
+								int neighbour = neighbours.get(n);
+								if(seedMark[neighbour] != mark)
+								{
+										seedMark[neighbour] = mark;
+										seeds.add(neighbour);
+								}
+						}
+
+						for(int s=0;s<seeds.size();s++)
+						{
+								int current = seeds.get(s);
+								if(status[current] == UNVISITED)
+								{
+										queryNeighbours(gridIndex, current, isIncluded, candidates, neighbours);
+										if(neighbours.size() >= minPts)
+										{
+												pointTypes[current] = DBSCANResult.CORE_POINT;
+												for(int n=0;n<neighbours.size();n++)
+												{
+														int neighbour = neighbours.get(n);
+														if(seedMark[neighbour] != mark)
+														{
+																seedMark[neighbour] = mark;
+																seeds.add(neighbour);
+														}
+												}
+										}
+								}
+
+								if(status[current] != PART_OF_CLUSTER)
+								{
+										status[current] = PART_OF_CLUSTER;
+										clusterIds[current] = clusterId;
+										if(pointTypes[current] != DBSCANResult.CORE_POINT)
+												pointTypes[current] = DBSCANResult.BORDER_POINT;
+								}
+						}
+				}
+
+				return new DBSCANResult(clusterIds, pointTypes, clusterCount);
+		}
+
+
+		private void queryNeighbours(GridIndex gridIndex, int pointIndex, boolean[] isIncluded, IntList candidates, IntList neighbours)
+		{
+				if(isIncluded == null)
+				{
+						gridIndex.queryNeighbours(pointIndex, eps, neighbours);
+						return;
+				}
+
+				gridIndex.queryNeighbours(pointIndex, eps, candidates);
+				neighbours.clear();
+				for(int n=0;n<candidates.size();n++)
+				{
+						if(isIncluded[candidates.get(n)]) neighbours.add(candidates.get(n));
+				}
+		}
+
+}
@@ -0,0 +1,336 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+// a uniform grid over a set of points; points are bucketed into square cells of the given size,
+// so a radius query only needs to look at the cells overlapping the search window.
+// In the geodesic mode the points are longitudes and latitudes, the radius of a query is in metres, and the cells are eps high
+// in latitude and about as wide on the ground at the middle latitude of the data; the columns of cells wrap around the antimeridian
+class GridIndex
+{
+		private final double[] xCoords;
+		private final double[] yCoords;
+		private final int pointCount;
+		private final double cellSize;
+		private final double cellWidth;
+		private final double originX;
+		private final double originY;
+
+		// the geodesic mode: the cosine of the latitude of every point, and the number of columns around the earth
+		private final boolean isGeodesic;
+		private double[] cosLats;
+		private long columnCount;
+
+		// point indices grouped by cell; the points of cell c are cellPoints[cellStart[c]] ... cellPoints[cellStart[c+1]-1]
+		private int[] cellStart;
+		private int[] cellPoints;
+
+		// the cell indexes are kept within this bound, so that a range of cells stays countable even for coordinates far from the origin
+		private static final long MAX_CELL_INDEX = 1L << 40;
+
+		// open addressing table from the cell key to the cell number
+		private long[] tableKeys;
+		private int[] tableCells;
+		private int tableMask;
+
+
+		GridIndex(double[] xCoords, double[] yCoords, int pointCount, double cellSize)
+		{
+				this.xCoords = xCoords;
+				this.yCoords = yCoords;
+				this.pointCount = pointCount;
+				this.cellSize = cellSize;
+				this.cellWidth = cellSize;
+				this.isGeodesic = false;
+
+				double minX = Double.MAX_VALUE;
+				double minY = Double.MAX_VALUE;
+				for(int i=0;i<pointCount;i++)
+				{
+						if(xCoords[i] < minX) minX = xCoords[i];
+						if(yCoords[i] < minY) minY = yCoords[i];
+				}
+				this.originX = (pointCount == 0) ? 0 : minX;
+				this.originY = (pointCount == 0) ? 0 : minY;
+
+				buildCells();
+		}
+
+
+		// the geodesic grid for queries of radius eps (in metres)
+		private GridIndex(double[] xCoords, double[] yCoords, int pointCount, double eps, boolean isGeodesic)
+		{
+				this.xCoords = xCoords;
+				this.yCoords = yCoords;
+				this.pointCount = pointCount;
+				this.isGeodesic = isGeodesic;
+				this.cellSize = GeodesicDistance.toDegrees(eps);
+				this.originX = -180;
+				this.originY = -90;
+
+				double minY = 90;
+				double maxY = -90;
+				cosLats = new double[pointCount];
+				for(int i=0;i<pointCount;i++)
+				{
+						if(yCoords[i] < minY) minY = yCoords[i];
+						if(yCoords[i] > maxY) maxY = yCoords[i];
+						cosLats[i] = GeodesicDistance.getCosLat(yCoords[i]);
+				}
+				double middleCosLat = (pointCount == 0) ? 1 : GeodesicDistance.getCosLat((minY + maxY) / 2);
+				columnCount = Math.max(1, Math.min(1L << 30, (long)Math.floor(360 * middleCosLat / cellSize)));
+				this.cellWidth = 360.0 / columnCount;
+
+				buildCells();
+		}
+
+
+		// a grid for queries of radius eps; in the geodesic mode eps is in metres and the points are longitudes and latitudes
+		static GridIndex create(double[] xCoords, double[] yCoords, int pointCount, double eps, boolean isGeodesic)
+		{
+				if(isGeodesic) return new GridIndex(xCoords, yCoords, pointCount, eps, true);
+				return new GridIndex(xCoords, yCoords, pointCount, eps);
+		}
+
+
+		private void buildCells()
+		{
+				int tableSize = 16;
+				while(tableSize < pointCount * 2) tableSize <<= 1;
+				tableKeys = new long[tableSize];
+				tableCells = new int[tableSize];
+				Arrays.fill(tableCells, -1);
+				tableMask = tableSize - 1;
+
+				// first pass: number the cells in the order they are first seen and count their points
+				int[] pointCell = new int[pointCount];
+				IntList cellCounts = new IntList(Math.max(16, pointCount / 4));
+				for(int i=0;i<pointCount;i++)
+				{
+						long cx = isGeodesic ? Math.floorMod(cellX(xCoords[i]), columnCount) : cellX(xCoords[i]);
+						long key = cellKey(cx, cellY(yCoords[i]));
+						int slot = findSlot(key);
+						int cell = tableCells[slot];
+						if(cell == -1)
+						{
+								cell = cellCounts.size();
+								tableKeys[slot] = key;
+								tableCells[slot] = cell;
+								cellCounts.add(0);
+						}
+						cellCounts.set(cell, cellCounts.get(cell) + 1);
+						pointCell[i] = cell;
+				}
+
+				// second pass: counting sort of the points by cell, which keeps the input order inside a cell
+				int cellCount = cellCounts.size();
+				cellStart = new int[cellCount + 1];
+				for(int c=0;c<cellCount;c++)
+				{
+						cellStart[c+1] = cellStart[c] + cellCounts.get(c);
+				}
+				int[] fillPosition = new int[cellCount];
+				System.arraycopy(cellStart, 0, fillPosition, 0, cellCount);
+				cellPoints = new int[pointCount];
+				for(int i=0;i<pointCount;i++)
+				{
+						cellPoints[fillPosition[pointCell[i]]++] = i;
+				}
+		}
+
+
+		// collect the points whose distance to the given point is at most radius; the point itself is excluded
+		void queryNeighbours(int pointIndex, double radius, IntList result)
+		{
+				if(isGeodesic)
+				{
+						queryGeodesicCircle(xCoords[pointIndex], yCoords[pointIndex], cosLats[pointIndex], radius, pointIndex, result);
+						return;
+				}
+				queryCircle(xCoords[pointIndex], yCoords[pointIndex], radius, pointIndex, result);
+		}
+
+
+		// collect the points whose distance to (x, y) is at most radius, except excludedPoint (-1 excludes none); (x, y) need not be a point of the index
+		void queryCircle(double x, double y, double radius, int excludedPoint, IntList result)
+		{
+				if(isGeodesic)
+				{
+						queryGeodesicCircle(x, y, GeodesicDistance.getCosLat(y), radius, excludedPoint, result);
+						return;
+				}
+				result.clear();
+				long minCellX = cellX(x - radius);
+				long maxCellX = cellX(x + radius);
+				long minCellY = cellY(y - radius);
+				long maxCellY = cellY(y + radius);
+
+				// a circle covering more cells than there are points is answered by going through the points
+				boolean isComparedWithAll = getCellRangeSize(minCellX, maxCellX, minCellY, maxCellY) > pointCount;
+				for(long cx = minCellX; cx <= maxCellX && !isComparedWithAll; cx++)
+				{
+						for(long cy = minCellY; cy <= maxCellY; cy++)
+						{
+								int cell = tableCells[findSlot(cellKey(cx, cy))];
+								if(cell == -1) continue;
+
+								for(int p=cellStart[cell];p<cellStart[cell+1];p++)
+								{
+										addIfWithin(cellPoints[p], x, y, radius, excludedPoint, result);
+								}
+						}
+				}
+				for(int i=0;i<pointCount && isComparedWithAll;i++)
+				{
+						addIfWithin(i, x, y, radius, excludedPoint, result);
+				}
+		}
+
+		private void addIfWithin(int candidate, double x, double y, double radius, int excludedPoint, IntList result)
+		{
+				if(candidate == excludedPoint) return;
+
+				double dx = xCoords[candidate] - x;
+				double dy = yCoords[candidate] - y;
+				if(Math.sqrt(dx*dx + dy*dy) <= radius)
+						result.add(candidate);
+		}
+
+
+		// the geodesic query: the candidates are the points of the cells within the latitudes and longitudes the circle can reach
+		private void queryGeodesicCircle(double x, double y, double cosY, double radius, int excludedPoint, IntList result)
+		{
+				result.clear();
+				double haversineLimit = GeodesicDistance.getHaversineLimit(radius);
+				double latRadius = GeodesicDistance.toDegrees(radius) * (1 + 1e-9) + 1e-12;
+				double lngRadius = GeodesicDistance.getLongitudeRadius(y, radius);
+				long minCellX = cellX(x - lngRadius);
+				long maxCellX = cellX(x + lngRadius);
+				if(maxCellX - minCellX + 1 >= columnCount || lngRadius >= 180)
+				{
+						minCellX = 0;
+						maxCellX = columnCount - 1;
+				}
+				long minCellY = cellY(Math.max(-90, y - latRadius));
+				long maxCellY = cellY(Math.min(90, y + latRadius));
+
+				// a circle covering more cells than there are points, such as one around a pole, is answered by going through the points
+				if(getCellRangeSize(minCellX, maxCellX, minCellY, maxCellY) > pointCount)
+				{
+						for(int i=0;i<pointCount;i++)
+						{
+								if(i != excludedPoint && GeodesicDistance.isWithin(x, y, cosY, xCoords[i], yCoords[i], cosLats[i], haversineLimit)) result.add(i);
+						}
+						return;
+				}
+
+				for(long cx = minCellX; cx <= maxCellX; cx++)
+				{
+						long wrappedCellX = Math.floorMod(cx, columnCount);
+						for(long cy = minCellY; cy <= maxCellY; cy++)
+						{
+								int cell = tableCells[findSlot(cellKey(wrappedCellX, cy))];
+								if(cell == -1) continue;
+
+								for(int p=cellStart[cell];p<cellStart[cell+1];p++)
+								{
+										int candidate = cellPoints[p];
+										if(candidate == excludedPoint) continue;
+
+										if(GeodesicDistance.isWithin(x, y, cosY, xCoords[candidate], yCoords[candidate], cosLats[candidate], haversineLimit))
+												result.add(candidate);
+								}
+						}
+				}
+		}
+
+
+		// collect the points inside the rectangle [minX, maxX] x [minY, maxY], boundary included
+		void queryEnvelope(double minX, double minY, double maxX, double maxY, IntList result)
+		{
+				result.clear();
+				long minCellX = cellX(minX);
+				long maxCellX = cellX(maxX);
+				if(isGeodesic && maxCellX - minCellX + 1 > columnCount) maxCellX = minCellX + columnCount - 1;
+				long minCellY = cellY(minY);
+				long maxCellY = cellY(maxY);
+
+				// a rectangle covering more cells than there are points is answered by going through the points
+				if(getCellRangeSize(minCellX, maxCellX, minCellY, maxCellY) > pointCount)
+				{
+						for(int i=0;i<pointCount;i++)
+						{
+								if(xCoords[i] >= minX && xCoords[i] <= maxX && yCoords[i] >= minY && yCoords[i] <= maxY) result.add(i);
+						}
+						return;
+				}
+
+				for(long cx = minCellX; cx <= maxCellX; cx++)
+				{
+						long wrappedCellX = isGeodesic ? Math.floorMod(cx, columnCount) : cx;
+						for(long cy = minCellY; cy <= maxCellY; cy++)
+						{
+								int cell = tableCells[findSlot(cellKey(wrappedCellX, cy))];
+								if(cell == -1) continue;
+
+								for(int p=cellStart[cell];p<cellStart[cell+1];p++)
+								{
+										int candidate = cellPoints[p];
+										if(xCoords[candidate] >= minX && xCoords[candidate] <= maxX && yCoords[candidate] >= minY && yCoords[candidate] <= maxY)
+												result.add(candidate);
+								}
+						}
+				}
+		}
+
+
+		int getPointCount()
+		{
+				return pointCount;
+		}
+
+		double getCellSize()
+		{
+				return cellSize;
+		}
+
+
+		private long cellX(double x)
+		{
+				return toCellIndex(Math.floor((x - originX) / cellWidth));
+		}
+
+		private long cellY(double y)
+		{
+				return toCellIndex(Math.floor((y - originY) / cellSize));
+		}
+
+		private static long toCellIndex(double cell)
+		{
+				if(Double.isNaN(cell)) return 0;
+				return (long)Math.max(-MAX_CELL_INDEX, Math.min(MAX_CELL_INDEX, cell));
+		}
+
+		// the number of cells of a range, computed without overflow
+		private static double getCellRangeSize(long minCellX, long maxCellX, long minCellY, long maxCellY)
+		{
+				return ((double)maxCellX - minCellX + 1) * ((double)maxCellY - minCellY + 1);
+		}
+
+		private static long cellKey(long cx, long cy)
+		{
+				return (cx << 32) ^ (cy & 0xffffffffL);
+		}
+
+		private int findSlot(long key)
+		{
+				long h = key * 0x9E3779B97F4A7C15L;
+				int slot = (int)(h ^ (h >>> 32)) & tableMask;
+				while(tableCells[slot] != -1 && tableKeys[slot] != key)
+				{
+						slot = (slot + 1) & tableMask;
+				}
+				return slot;
+		}
+
+}
@@ -0,0 +1,205 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// HDBSCAN* (Campello et al., 2013): instead of cutting the data at one eps, the DBSCAN* clusters of all the eps values form a hierarchy,
+// and the clusters that persist over the widest range of densities are chosen from it, so that dense city centres and sparse suburbs can
+// both come out as clusters. The hierarchy is the minimum spanning tree of the points under the mutual reachability distance, in which
+// minPts is the number of neighbours of a core point (not counting the point itself, as in the other engines) and also the smallest
+// size of a cluster
+class HDBSCANClusterer
+{
+		private final int minPts;
+		private final ForkJoinPool pool;
+
+
+		HDBSCANClusterer(int minPts, ForkJoinPool pool)
+		{
+				this.minPts = minPts;
+				this.pool = pool;
+		}
+
+
+		// the points of the chosen clusters are labelled as core points, and the others as noise; the clusters are numbered in the order of
+		// their first point
+		DBSCANResult cluster(double[] xCoords, double[] yCoords, int pointCount)
+		{
+				int[] clusterIds = new int[pointCount];
+				byte[] pointTypes = new byte[pointCount];
+				Arrays.fill(clusterIds, DBSCANResult.NOISE);
+				if(pointCount <= minPts) return new DBSCANResult(clusterIds, pointTypes, 0);
+
+				// the core distances, found with the kd-tree in the order of the tree
+				final KDTree kdTree = new KDTree(xCoords, yCoords, pointCount, pool);
+				final double[] coreDistances = new double[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						double[] nearestDistances = new double[minPts];
+						for(int p=start;p<end;p++)
+						{
+								coreDistances[kdTree.getPointIndex(p)] = kdTree.kthNeighbourDistance(p, minPts, nearestDistances);
+						}
+				});
+
+				int edgeCount = pointCount - 1;
+				int[] edgeFrom = new int[edgeCount];
+				int[] edgeTo = new int[edgeCount];
+				double[] edgeWeights = new double[edgeCount];
+				kdTree.buildMutualReachabilityTree(coreDistances, pool, edgeFrom, edgeTo, edgeWeights);
+
+				// the single linkage dendrogram: the points are nodes 0 ... n-1, and merging the edges from the shortest one creates
+				// the nodes n ... 2n-2, whose children, size and merge distance are kept
+				int[] mergedLeft = new int[edgeCount];
+				int[] mergedRight = new int[edgeCount];
+				double[] mergeDistances = new double[edgeCount];
+				int[] nodeSizes = new int[pointCount + edgeCount];
+				Arrays.fill(nodeSizes, 0, pointCount, 1);
+				DoubleIntHeap edgeHeap = new DoubleIntHeap(edgeCount);
+				double smallestPositiveWeight = Double.POSITIVE_INFINITY;
+				for(int e=0;e<edgeCount;e++)
+				{
+						edgeHeap.add(edgeWeights[e], e);
+						if(edgeWeights[e] > 0) smallestPositiveWeight = Math.min(smallestPositiveWeight, edgeWeights[e]);
+				}
+				int[] pointParents = new int[pointCount];
+				int[] rootNodes = new int[pointCount];
+				for(int i=0;i<pointCount;i++)
+				{
+						pointParents[i] = i;
+						rootNodes[i] = i;
+				}
+				for(int m=0;m<edgeCount;m++)
+				{
+						int e = edgeHeap.poll();
+						int rootA = findRoot(pointParents, edgeFrom[e]);
+						int rootB = findRoot(pointParents, edgeTo[e]);
+						int node = pointCount + m;
+						mergedLeft[m] = rootNodes[rootA];
+						mergedRight[m] = rootNodes[rootB];
+						mergeDistances[m] = edgeWeights[e];
+						nodeSizes[node] = nodeSizes[mergedLeft[m]] + nodeSizes[mergedRight[m]];
+						pointParents[rootB] = rootA;
+						rootNodes[rootA] = node;
+				}
+
+				// the density of a merge is lambda = 1 / distance; merges of identical points get a finite lambda above all the others
+				double largestLambda = (smallestPositiveWeight == Double.POSITIVE_INFINITY) ? 1 : 2 / smallestPositiveWeight;
+
+				// condense the dendrogram: going down from the root, a split into two parts of at least minPts points creates two new clusters,
+				// while the points of a smaller part fall out of the cluster. The stability of a cluster sums (lambda - birth lambda) over its points
+				// and child clusters, weighted by their size
+				int[] pointClusters = new int[pointCount];
+				int[] clusterParents = new int[pointCount];
+				double[] birthLambdas = new double[pointCount];
+				double[] stabilities = new double[pointCount];
+				int clusterCount = 1;
+				clusterParents[0] = -1;
+				IntList pendingNodes = new IntList();
+				IntList pendingClusters = new IntList();
+				IntList fallingNodes = new IntList();
+				pendingNodes.add(pointCount + edgeCount - 1);
+				pendingClusters.add(0);
+				while(pendingNodes.size() > 0)
+				{
+						int node = pendingNodes.removeLast();
+						int cluster = pendingClusters.removeLast();
+
+						int m = node - pointCount;
+						double lambda = (mergeDistances[m] > 0) ? Math.min(1 / mergeDistances[m], largestLambda) : largestLambda;
+						int left = mergedLeft[m];
+						int right = mergedRight[m];
+						boolean isLeftCluster = nodeSizes[left] >= minPts;
+						boolean isRightCluster = nodeSizes[right] >= minPts;
+						stabilities[cluster] += (lambda - birthLambdas[cluster]) * ((isLeftCluster ? 0 : nodeSizes[left]) + (isRightCluster ? 0 : nodeSizes[right]));
+						if(isLeftCluster && isRightCluster)
+						{
+								for(int child : new int[]{left, right})
+								{
+										int childCluster = clusterCount++;
+										clusterParents[childCluster] = cluster;
+										birthLambdas[childCluster] = lambda;
+										stabilities[cluster] += (lambda - birthLambdas[cluster]) * nodeSizes[child];
+										pendingNodes.add(child);
+										pendingClusters.add(childCluster);
+								}
+								continue;
+						}
+
+						// the smaller parts fall out of the cluster, and a part of at least minPts points carries on as the same cluster
+						for(int child : new int[]{left, right})
+						{
+								if(nodeSizes[child] >= minPts)
+								{
+										pendingNodes.add(child);
+										pendingClusters.add(cluster);
+										continue;
+								}
+								fallingNodes.clear();
+								fallingNodes.add(child);
+								while(fallingNodes.size() > 0)
+								{
+										int fallingNode = fallingNodes.removeLast();
+										if(fallingNode < pointCount)
+										{
+												pointClusters[fallingNode] = cluster;
+										}
+										else
+										{
+												fallingNodes.add(mergedLeft[fallingNode - pointCount]);
+												fallingNodes.add(mergedRight[fallingNode - pointCount]);
+										}
+								}
+						}
+				}
+
+				// choose the clusters by excess of mass: going up from the leaves, a cluster is chosen if it is more stable than the chosen clusters
+				// below it together; the root, which holds all the points, is not a cluster
+				boolean[] isChosen = new boolean[clusterCount];
+				double[] childStabilities = new double[clusterCount];
+				for(int c=clusterCount-1;c>0;c--)
+				{
+						double subtreeStability = childStabilities[c];
+						if(stabilities[c] >= childStabilities[c])
+						{
+								isChosen[c] = true;
+								subtreeStability = stabilities[c];
+						}
+						childStabilities[clusterParents[c]] += subtreeStability;
+				}
+				int[] chosenClusters = new int[clusterCount];
+				chosenClusters[0] = -1;
+				for(int c=1;c<clusterCount;c++)
+				{
+						// the clusters are created after their parent, so the parent already knows its chosen ancestor
+						int chosenAncestor = chosenClusters[clusterParents[c]];
+						chosenClusters[c] = (chosenAncestor != -1) ? chosenAncestor : (isChosen[c] ? c : -1);
+				}
+
+				// a point belongs to the chosen cluster it fell out of, or to the chosen cluster above it
+				int[] clusterNumbers = new int[clusterCount];
+				Arrays.fill(clusterNumbers, -1);
+				int numberedClusterCount = 0;
+				for(int i=0;i<pointCount;i++)
+				{
+						int chosenCluster = chosenClusters[pointClusters[i]];
+						if(chosenCluster == -1) continue;
+						if(clusterNumbers[chosenCluster] == -1) clusterNumbers[chosenCluster] = numberedClusterCount++;
+						clusterIds[i] = clusterNumbers[chosenCluster];
+						pointTypes[i] = DBSCANResult.CORE_POINT;
+				}
+				return new DBSCANResult(clusterIds, pointTypes, numberedClusterCount);
+		}
+
+
+		private static int findRoot(int[] parents, int p)
+		{
+				while(parents[p] != p)
+				{
+						parents[p] = parents[parents[p]];
+						p = parents[p];
+				}
+				return p;
+		}
+
+}
@@ -0,0 +1,282 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+
+// what the incremental mode keeps in tempPath between runs: the records of the last run (their coordinates and user keys, so that the records
+// of the next run can be matched with them), whether each record survived the duplicate removal, the neighbour count, cluster and type of every
+// preprocessed record, and the shapes of the AOIs together with the records and users they cover. The state is only used by a run with the
+// same settings, which are stored as a checksum
+class IncrementalClusterState
+{
+		private static final long MAGIC = 0x4442534E494E4331L;
+		private static final int VERSION = 1;
+		private static final int HEADER_SIZE = 64;
+
+		// the bits of the record flags
+		static final byte KEPT = 1;
+		static final byte CORE = 2;
+		static final byte SHARED_BORDER = 4;
+
+		final long settingsChecksum;
+		final int recordCount;
+		final double[] xCoords;
+		final double[] yCoords;
+		final long[] userKeys;
+		final byte[] flags;
+
+		// the number of neighbours within eps of a kept record, and its cluster (-1 for noise and for the records that are not kept)
+		final int[] neighbourCounts;
+		final int[] clusterSlots;
+		final int slotCount;
+
+		final ArrayList<AOIShapeState> shapes;
+
+
+		IncrementalClusterState(long settingsChecksum, int recordCount, double[] xCoords, double[] yCoords, long[] userKeys, byte[] flags, int[] neighbourCounts, int[] clusterSlots, int slotCount, ArrayList<AOIShapeState> shapes)
+		{
+				this.settingsChecksum = settingsChecksum;
+				this.recordCount = recordCount;
+				this.xCoords = xCoords;
+				this.yCoords = yCoords;
+				this.userKeys = userKeys;
+				this.flags = flags;
+				this.neighbourCounts = neighbourCounts;
+				this.clusterSlots = clusterSlots;
+				this.slotCount = slotCount;
+				this.shapes = shapes;
+		}
+
+
+		// the state before the first run, which has no records
+		static IncrementalClusterState createEmpty(long settingsChecksum)
+		{
+				return new IncrementalClusterState(settingsChecksum, 0, new double[0], new double[0], new long[0], new byte[0], new int[0], new int[0], 0, new ArrayList<AOIShapeState>());
+		}
+
+
+		boolean isKept(int record)
+		{
+				return (flags[record] & KEPT) != 0;
+		}
+
+		boolean isCore(int record)
+		{
+				return (flags[record] & CORE) != 0;
+		}
+
+
+		void save(File stateFile) throws Exception
+		{
+				File partialFile = new File(stateFile.getPath()+".part");
+				RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw");
+				try
+				{
+						randomAccessFile.setLength(0);
+						FileChannel channel = randomAccessFile.getChannel();
+						ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+						buffer.putLong(MAGIC).putInt(VERSION).putInt(0);
+						buffer.putLong(settingsChecksum);
+						buffer.putInt(recordCount).putInt(slotCount).putInt(shapes.size());
+						buffer.position(HEADER_SIZE);
+						DatasetCache.writeBuffer(channel, buffer);
+
+						for(int i=0;i<recordCount;i++)
+						{
+								if(buffer.remaining() < 8) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putDouble(xCoords[i]);
+						}
+						for(int i=0;i<recordCount;i++)
+						{
+								if(buffer.remaining() < 8) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putDouble(yCoords[i]);
+						}
+						for(int i=0;i<recordCount;i++)
+						{
+								if(buffer.remaining() < 8) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putLong(userKeys[i]);
+						}
+						for(int i=0;i<recordCount;i++)
+						{
+								if(buffer.remaining() < 4) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putInt(neighbourCounts[i]);
+						}
+						for(int i=0;i<recordCount;i++)
+						{
+								if(buffer.remaining() < 4) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putInt(clusterSlots[i]);
+						}
+						for(int i=0;i<recordCount;i++)
+						{
+								if(!buffer.hasRemaining()) DatasetCache.writeBuffer(channel, buffer);
+								buffer.put(flags[i]);
+						}
+
+						// every shape: its slot and lambda, the records it covers, its geometry as WKB and the number of records of every user it covers
+						WKBWriter wkbWriter = new WKBWriter();
+						for(AOIShapeState shape : shapes)
+						{
+								byte[] geometryBytes = wkbWriter.write(shape.geometry);
+								int shapeSize = 28 + geometryBytes.length + 12 * shape.userKeys.length;
+								if(buffer.remaining() < shapeSize) DatasetCache.writeBuffer(channel, buffer);
+								if(buffer.capacity() < shapeSize) buffer = ByteBuffer.allocate(shapeSize);
+								buffer.putInt(shape.slot).putInt(shape.lambdaIndex).putLong(shape.recordCount);
+								buffer.putInt(geometryBytes.length).putInt(shape.userKeys.length).putInt(0);
+								buffer.put(geometryBytes);
+								for(int u=0;u<shape.userKeys.length;u++)
+								{
+										buffer.putLong(shape.userKeys[u]).putInt(shape.userRecordCounts[u]);
+								}
+						}
+						DatasetCache.writeBuffer(channel, buffer);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+
+				if(stateFile.exists()) stateFile.delete();
+				if(!partialFile.renameTo(stateFile)) throw new Exception("The incremental state "+stateFile.getPath()+" could not be written");
+		}
+
+
+		// the saved state, or null if there is none for these settings
+		static IncrementalClusterState load(File stateFile, long settingsChecksum) throws Exception
+		{
+				if(!stateFile.exists()) return null;
+
+				RandomAccessFile randomAccessFile = new RandomAccessFile(stateFile, "r");
+				try
+				{
+						FileChannel channel = randomAccessFile.getChannel();
+						if(channel.size() < HEADER_SIZE) return null;
+						ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+						channel.read(header, 0);
+						header.flip();
+
+						if(header.getLong() != MAGIC || header.getInt() != VERSION) return null;
+						header.getInt();
+						if(header.getLong() != settingsChecksum) return null;
+						int recordCount = header.getInt();
+						int slotCount = header.getInt();
+						int shapeCount = header.getInt();
+						long shapesOffset = HEADER_SIZE + 33L * recordCount;
+						if(channel.size() < shapesOffset) return null;
+
+						double[] xCoords = new double[recordCount];
+						double[] yCoords = new double[recordCount];
+						long[] userKeys = new long[recordCount];
+						int[] neighbourCounts = new int[recordCount];
+						int[] clusterSlots = new int[recordCount];
+						byte[] flags = new byte[recordCount];
+						DatasetCache.readDoubles(channel, HEADER_SIZE, xCoords, 0, recordCount);
+						DatasetCache.readDoubles(channel, HEADER_SIZE + 8L * recordCount, yCoords, 0, recordCount);
+						DatasetCache.readLongs(channel, HEADER_SIZE + 16L * recordCount, userKeys, 0, recordCount);
+						DatasetCache.readInts(channel, HEADER_SIZE + 24L * recordCount, neighbourCounts, 0, recordCount);
+						DatasetCache.readInts(channel, HEADER_SIZE + 28L * recordCount, clusterSlots, 0, recordCount);
+						DatasetCache.readBytes(channel, HEADER_SIZE + 32L * recordCount, flags, 0, recordCount);
+
+						MappedByteBuffer shapeBuffer = channel.map(FileChannel.MapMode.READ_ONLY, shapesOffset, channel.size() - shapesOffset);
+						WKBReader wkbReader = new WKBReader();
+						ArrayList<AOIShapeState> shapes = new ArrayList<AOIShapeState>(shapeCount);
+						for(int k=0;k<shapeCount;k++)
+						{
+								int slot = shapeBuffer.getInt();
+								int lambdaIndex = shapeBuffer.getInt();
+								long shapeRecordCount = shapeBuffer.getLong();
+								byte[] geometryBytes = new byte[shapeBuffer.getInt()];
+								int userEntryCount = shapeBuffer.getInt();
+								shapeBuffer.getInt();
+								shapeBuffer.get(geometryBytes);
+								long[] shapeUserKeys = new long[userEntryCount];
+								int[] userRecordCounts = new int[userEntryCount];
+								for(int u=0;u<userEntryCount;u++)
+								{
+										shapeUserKeys[u] = shapeBuffer.getLong();
+										userRecordCounts[u] = shapeBuffer.getInt();
+								}
+								shapes.add(new AOIShapeState(slot, lambdaIndex, wkbReader.read(geometryBytes), shapeRecordCount, shapeUserKeys, userRecordCounts));
+						}
+						if(shapeBuffer.hasRemaining()) return null;
+
+						return new IncrementalClusterState(settingsChecksum, recordCount, xCoords, yCoords, userKeys, flags, neighbourCounts, clusterSlots, slotCount, shapes);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+
+		// the shape of an AOI for one lambda value, the number of records it covers and the number of records of every user it covers;
+		// the users are sorted by their key
+		static class AOIShapeState
+		{
+				final int slot;
+				final int lambdaIndex;
+				final Geometry geometry;
+				long recordCount;
+				long[] userKeys;
+				int[] userRecordCounts;
+
+				AOIShapeState(int slot, int lambdaIndex, Geometry geometry, long recordCount, long[] userKeys, int[] userRecordCounts)
+				{
+						this.slot = slot;
+						this.lambdaIndex = lambdaIndex;
+						this.geometry = geometry;
+						this.recordCount = recordCount;
+						this.userKeys = userKeys;
+						this.userRecordCounts = userRecordCounts;
+				}
+
+				// count the given records of some users as well (recordChange 1) or no longer (recordChange -1)
+				void changeRecords(long[] changedUserKeys, int[] recordChanges, int changeCount)
+				{
+						HashMap<Long, Integer> userRecordTable = new HashMap<>(2 * (userKeys.length + changeCount));
+						for(int u=0;u<userKeys.length;u++)
+						{
+								userRecordTable.put(userKeys[u], userRecordCounts[u]);
+						}
+						for(int c=0;c<changeCount;c++)
+						{
+								recordCount += recordChanges[c];
+								if(changedUserKeys == null) continue;
+								Integer userRecordCount = userRecordTable.get(changedUserKeys[c]);
+								int newCount = ((userRecordCount == null) ? 0 : userRecordCount) + recordChanges[c];
+								if(newCount > 0) userRecordTable.put(changedUserKeys[c], newCount);
+								else userRecordTable.remove(changedUserKeys[c]);
+						}
+
+						long[] sortedUserKeys = new long[userRecordTable.size()];
+						int k = 0;
+						for(Long userKey : userRecordTable.keySet())
+						{
+								sortedUserKeys[k++] = userKey;
+						}
+						Arrays.sort(sortedUserKeys);
+						userKeys = sortedUserKeys;
+						userRecordCounts = new int[sortedUserKeys.length];
+						for(int u=0;u<sortedUserKeys.length;u++)
+						{
+								userRecordCounts[u] = userRecordTable.get(sortedUserKeys[u]);
+						}
+				}
+
+				long getUserCount()
+				{
+						return userKeys.length;
+				}
+		}
+
+}
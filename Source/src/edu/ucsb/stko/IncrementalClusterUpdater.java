@@ -0,0 +1,695 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.json.JSONObject;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+// the incremental mode ("incrementalMode": true) replaces the preprocessing and the clustering: the records, clusters and AOIs of the last run are
+// kept in tempPath, and the next run only works on what has changed. The records of the input are matched with the stored ones in their order,
+// so the rows appended to the file are inserted and the rows removed from it are deleted. The duplicates are removed again only for the users of
+// these records, the neighbour counts are updated around the changed points, and only the clusters that lost a core point or gained one are
+// linked again. The AOIs whose members are the same keep their shapes, and only the records and users they cover are updated; the other AOIs are
+// rebuilt. The clusters follow the rules of the grid engine (numbered by their first core point, a border point joins the earliest cluster among
+// its core neighbours), so the result is the same as that of a full run
+class IncrementalClusterUpdater
+{
+		// what the last update has done, for the progress messages
+		private int processedPointCount = 0;
+		private int linkedCoreCount = 0;
+		private int rebuiltClusterCount = 0;
+		private int aoiClusterCount = 0;
+
+
+		public JSONObject updateClusterAndShapes(JSONObject parameterObject, JSONObject dataSummaryObject, DataIngestor dataIngestor, EsriJSONWriter[] esriJSONWriters)
+		{
+				System.out.println("Updating the clusters and shapes incrementally...");
+				ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+				try
+				{
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						double[] lambdaValues = ParameterReader.getLambdaValues(parameterObject);
+						PointStore rawPointStore = dataIngestor.getRawPointStore();
+						UserDictionary userDictionary = dataIngestor.getUserDictionary();
+						int recordCount = rawPointStore.size();
+
+						// the users are identified by their key, since their numbers may change between runs
+						long[] recordUserKeys = new long[recordCount];
+						boolean[] hasRecords = new boolean[userDictionary.size()];
+						int processedUserCount = 0;
+						if(userIDIndex != -1)
+						{
+								long[] userKeys = new long[userDictionary.size()];
+								for(int u=0;u<userKeys.length;u++)
+								{
+										userKeys[u] = userDictionary.getUserKey(u);
+								}
+								for(int r=0;r<recordCount;r++)
+								{
+										int userId = rawPointStore.getUserId(r);
+										recordUserKeys[r] = userKeys[userId];
+										if(!hasRecords[userId]) processedUserCount++;
+										hasRecords[userId] = true;
+								}
+						}
+
+						// the first record of every user is never a duplicate, so minPts is known before the duplicates are removed
+						final int minPts = ClusterAndShapeGenerator.getMinPts(parameterObject.getDouble("minPts"), parameterObject.getBoolean("minPtsPercentage"), userIDIndex, recordCount, processedUserCount);
+
+						File inputFile = new File(parameterObject.getString("dataPath"));
+						String tempName = parameterObject.getString("tempPath")+"/"+inputFile.getName().replace(".csv", "");
+						File stateFile = new File(tempName+"_incremental.bin");
+						long settingsChecksum = getSettingsChecksum(parameterObject, minPts, lambdaValues);
+						IncrementalClusterState state = null;
+						try
+						{
+								state = IncrementalClusterState.load(stateFile, settingsChecksum);
+						}
+						catch (Exception e)
+						{
+								state = null;
+						}
+						if(state == null)
+						{
+								System.out.println("There is no state of an earlier run with the same settings; all the records are clustered.");
+								state = IncrementalClusterState.createEmpty(settingsChecksum);
+						}
+
+
+						// match the records with the stored ones in their order: a stored record that is not found at its place has been removed,
+						// and the records left over after the last stored one have been added
+						int[] matchedRecords = new int[recordCount];
+						IntList removedRecords = new IntList();
+						int storedRecord = 0;
+						for(int r=0;r<recordCount;r++)
+						{
+								while(storedRecord < state.recordCount && !isSameRecord(state, storedRecord, rawPointStore, recordUserKeys, r))
+								{
+										removedRecords.add(storedRecord++);
+								}
+								matchedRecords[r] = (storedRecord < state.recordCount) ? storedRecord++ : -1;
+						}
+						while(storedRecord < state.recordCount) removedRecords.add(storedRecord++);
+						if(state.recordCount > 0) System.out.println("Since the last run, "+(recordCount - (state.recordCount - removedRecords.size()))+" records have been added and "+removedRecords.size()+" removed.");
+
+						IncrementalClusterState newState = updateClusters(state, rawPointStore, recordUserKeys, userDictionary.size(), matchedRecords, removedRecords, minPts, parameterObject, dataSummaryObject, new File(tempName+"_clustered.csv"), esriJSONWriters, pool);
+						if(userIDIndex != -1)
+								System.out.println("After pre-processing, there are "+processedPointCount+" records and "+processedUserCount+" users in the data.");
+						else
+								System.out.println("After pre-processing, there are "+processedPointCount+" records in the data.");
+
+						// keep the state for the next run
+						try
+						{
+								newState.save(stateFile);
+						}
+						catch (Exception e)
+						{
+								System.out.println("The incremental state could not be saved in "+stateFile.getPath()+"; the next run will cluster all the records again.");
+						}
+
+						JSONObject clusterResultObject = new JSONObject();
+						clusterResultObject.put("aoiCount", esriJSONWriters[0].getFeatureCount());
+
+						System.out.println(linkedCoreCount+" core points have been linked again, and the shapes of "+rebuiltClusterCount+" of the "+aoiClusterCount+" clusters have been rebuilt.");
+						for(int i=0;i<esriJSONWriters.length;i++)
+						{
+								if(esriJSONWriters.length == 1)
+										System.out.println(esriJSONWriters[i].getFeatureCount()+" AOIs have been written.");
+								else
+										System.out.println(esriJSONWriters[i].getFeatureCount()+" AOIs have been written for lambda "+JSONObject.numberToString(lambdaValues[i])+".");
+						}
+						System.out.println("Incremental update has finished...");
+						System.out.println("---------------------------------------------------");
+						return clusterResultObject;
+				}
+				catch (Exception e)
+				{
+						System.out.println("An error happened in the incremental update of the clusters and shapes; The program has been canceled");
+						return null;
+				}
+				finally
+				{
+						pool.shutdownNow();
+				}
+		}
+
+
+		// one update of the clusters: the records of recordStore are the stored records given by matchedRecords (-1 for a new record), and the
+		// stored records in removedRecords are gone. The duplicates are removed again for the users of the changed records, the clusters are
+		// updated and written to clusteredFile, and the AOIs to esriJSONWriters; returns the state of the records for the next update
+		IncrementalClusterState updateClusters(IncrementalClusterState state, PointStore recordStore, long[] recordUserKeys, int userIdCount, int[] matchedRecords, IntList removedRecords, int minPts, JSONObject parameterObject, JSONObject dataSummaryObject, File clusteredFile, EsriJSONWriter[] esriJSONWriters, ForkJoinPool pool) throws Exception
+		{
+				final double eps = parameterObject.getDouble("eps");
+				boolean isGeodesic = parameterObject.optBoolean("geodesicEps", false);
+				int userIDIndex = parameterObject.getInt("userIDIndex");
+				double[] lambdaValues = ParameterReader.getLambdaValues(parameterObject);
+				int recordCount = recordStore.size();
+				IntList insertedRecords = new IntList();
+				for(int r=0;r<recordCount;r++)
+				{
+						if(matchedRecords[r] == -1) insertedRecords.add(r);
+				}
+
+
+				// remove the duplicates again for the users who have added or removed records; the other users keep their stored flags
+				boolean[] keepRecord = new boolean[recordCount];
+				if(userIDIndex == -1)
+				{
+						Arrays.fill(keepRecord, true);
+				}
+				else
+				{
+						HashSet<Long> changedUserKeys = new HashSet<Long>();
+						for(int i=0;i<insertedRecords.size();i++) changedUserKeys.add(recordUserKeys[insertedRecords.get(i)]);
+						for(int i=0;i<removedRecords.size();i++) changedUserKeys.add(state.userKeys[removedRecords.get(i)]);
+
+						IntList[] userRecordLists = new IntList[userIdCount];
+						boolean[] isCheckedUser = new boolean[userIdCount];
+						ArrayList<IntList> changedUserRecordLists = new ArrayList<IntList>();
+						for(int r=0;r<recordCount;r++)
+						{
+								int userId = recordStore.getUserId(r);
+								if(!isCheckedUser[userId])
+								{
+										isCheckedUser[userId] = true;
+										if(changedUserKeys.contains(recordUserKeys[r])) userRecordLists[userId] = new IntList(4);
+								}
+								IntList userRecords = userRecordLists[userId];
+								if(userRecords == null)
+								{
+										keepRecord[r] = state.isKept(matchedRecords[r]);
+										continue;
+								}
+								if(userRecords.size() == 0) changedUserRecordLists.add(userRecords);
+								userRecords.add(r);
+						}
+						boolean[] changedKeepRecord = DataPreProcessor.findKeptRecords(changedUserRecordLists.toArray(new IntList[0]), recordStore, eps, isGeodesic, pool);
+						for(IntList userRecords : changedUserRecordLists)
+						{
+								for(int i=0;i<userRecords.size();i++)
+								{
+										keepRecord[userRecords.get(i)] = changedKeepRecord[userRecords.get(i)];
+								}
+						}
+				}
+
+				// the preprocessed points in the order of the records; the points which were not preprocessed points in the last run are new,
+				// and the stored preprocessed points which are no longer kept have been deleted
+				IntList keptRecordList = new IntList();
+				for(int r=0;r<recordCount;r++)
+				{
+						if(keepRecord[r]) keptRecordList.add(r);
+				}
+				final int pointCount = keptRecordList.size();
+				final int[] keptRecords = keptRecordList.toArray();
+				double[] xCoords = new double[pointCount];
+				double[] yCoords = new double[pointCount];
+				final int[] storedPoints = new int[pointCount];
+				final boolean[] isNewPoint = new boolean[pointCount];
+				for(int p=0;p<pointCount;p++)
+				{
+						int r = keptRecords[p];
+						xCoords[p] = recordStore.getX(r);
+						yCoords[p] = recordStore.getY(r);
+						storedPoints[p] = matchedRecords[r];
+						isNewPoint[p] = (storedPoints[p] == -1) || !state.isKept(storedPoints[p]);
+				}
+				IntList deletedPoints = new IntList();
+				for(int i=0;i<removedRecords.size();i++)
+				{
+						if(state.isKept(removedRecords.get(i))) deletedPoints.add(removedRecords.get(i));
+				}
+				for(int r=0;r<recordCount;r++)
+				{
+						if(!keepRecord[r] && matchedRecords[r] != -1 && state.isKept(matchedRecords[r])) deletedPoints.add(matchedRecords[r]);
+				}
+
+				final IncrementalClusterState storedState = state;
+				final GridIndex gridIndex = GridIndex.create(xCoords, yCoords, pointCount, eps, isGeodesic);
+
+				// step 1: the neighbour counts; a new point counts its neighbours, and changes the counts of the stored points around it,
+				// as does a deleted point
+				final int[] neighbourCounts = new int[pointCount];
+				final boolean[] hasStoredNeighbour = new boolean[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList neighbours = new IntList();
+						for(int p=start;p<end;p++)
+						{
+								if(!isNewPoint[p])
+								{
+										neighbourCounts[p] = storedState.neighbourCounts[storedPoints[p]];
+										continue;
+								}
+								gridIndex.queryNeighbours(p, eps, neighbours);
+								neighbourCounts[p] = neighbours.size();
+								for(int n=0;n<neighbours.size() && !hasStoredNeighbour[p];n++)
+								{
+										if(!isNewPoint[neighbours.get(n)]) hasStoredNeighbour[p] = true;
+								}
+						}
+				});
+				IntList neighbours = new IntList();
+				for(int p=0;p<pointCount;p++)
+				{
+						if(!hasStoredNeighbour[p]) continue;
+						gridIndex.queryNeighbours(p, eps, neighbours);
+						for(int n=0;n<neighbours.size();n++)
+						{
+								if(!isNewPoint[neighbours.get(n)]) neighbourCounts[neighbours.get(n)]++;
+						}
+				}
+				for(int i=0;i<deletedPoints.size();i++)
+				{
+						int d = deletedPoints.get(i);
+						gridIndex.queryCircle(state.xCoords[d], state.yCoords[d], eps, -1, neighbours);
+						for(int n=0;n<neighbours.size();n++)
+						{
+								if(!isNewPoint[neighbours.get(n)]) neighbourCounts[neighbours.get(n)]--;
+						}
+				}
+
+				// step 2: the core points; a stored cluster that lost a core point may fall apart, so all its core points are linked again,
+				// together with the new core points. The core points of the other stored clusters are still connected, and each of these
+				// clusters is represented by its first core point, its anchor
+				final boolean[] isCore = new boolean[pointCount];
+				final int[] storedSlots = new int[pointCount];
+				boolean[] isBrokenSlot = new boolean[state.slotCount];
+				for(int p=0;p<pointCount;p++)
+				{
+						isCore[p] = neighbourCounts[p] >= minPts;
+						storedSlots[p] = isNewPoint[p] ? -1 : state.clusterSlots[storedPoints[p]];
+						if(!isNewPoint[p] && state.isCore(storedPoints[p]) && !isCore[p]) isBrokenSlot[storedSlots[p]] = true;
+				}
+				for(int i=0;i<deletedPoints.size();i++)
+				{
+						if(state.isCore(deletedPoints.get(i))) isBrokenSlot[state.clusterSlots[deletedPoints.get(i)]] = true;
+				}
+				final boolean[] isFreeCore = new boolean[pointCount];
+				final int[] anchors = new int[state.slotCount];
+				Arrays.fill(anchors, -1);
+				int freeCoreCount = 0;
+				for(int p=0;p<pointCount;p++)
+				{
+						if(!isCore[p]) continue;
+						isFreeCore[p] = isNewPoint[p] || !state.isCore(storedPoints[p]) || isBrokenSlot[storedSlots[p]];
+						if(isFreeCore[p]) freeCoreCount++;
+						else if(anchors[storedSlots[p]] == -1) anchors[storedSlots[p]] = p;
+				}
+
+				// step 3: link the free core points to their core neighbours with a concurrent union-find whose roots are the smallest points of
+				// their trees; the non-core points around the free core points may change their cluster, and are marked
+				final boolean[] isRelabelled = new boolean[pointCount];
+				final AtomicIntegerArray parent = new AtomicIntegerArray(pointCount);
+				for(int p=0;p<pointCount;p++)
+				{
+						parent.set(p, p);
+				}
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList coreNeighbours = new IntList();
+						for(int p=start;p<end;p++)
+						{
+								if(!isFreeCore[p]) continue;
+
+								gridIndex.queryNeighbours(p, eps, coreNeighbours);
+								for(int n=0;n<coreNeighbours.size();n++)
+								{
+										int neighbour = coreNeighbours.get(n);
+										if(!isCore[neighbour])
+										{
+												isRelabelled[neighbour] = true;
+										}
+										else if(!isFreeCore[neighbour])
+										{
+												union(parent, p, anchors[storedSlots[neighbour]]);
+										}
+										else if(neighbour < p)
+										{
+												union(parent, p, neighbour);
+										}
+								}
+						}
+				});
+
+				// the non-core points around the other changes are marked as well: the new points, the deleted points and the former core points
+				for(int p=0;p<pointCount;p++)
+				{
+						if(isCore[p] || !(isNewPoint[p] || state.isCore(storedPoints[p]))) continue;
+						isRelabelled[p] = true;
+						gridIndex.queryNeighbours(p, eps, neighbours);
+						for(int n=0;n<neighbours.size();n++)
+						{
+								if(!isCore[neighbours.get(n)]) isRelabelled[neighbours.get(n)] = true;
+						}
+				}
+				for(int i=0;i<deletedPoints.size();i++)
+				{
+						int d = deletedPoints.get(i);
+						gridIndex.queryCircle(state.xCoords[d], state.yCoords[d], eps, -1, neighbours);
+						for(int n=0;n<neighbours.size();n++)
+						{
+								if(!isCore[neighbours.get(n)]) isRelabelled[neighbours.get(n)] = true;
+						}
+				}
+
+				// step 4: the clusters, numbered in the order of their first core point; a cluster is changed if it holds a free core point
+				final int[] roots = new int[pointCount];
+				boolean[] isChangedRoot = new boolean[pointCount];
+				for(int p=0;p<pointCount;p++)
+				{
+						roots[p] = -1;
+						if(!isCore[p]) continue;
+						roots[p] = find(parent, isFreeCore[p] ? p : anchors[storedSlots[p]]);
+						if(isFreeCore[p]) isChangedRoot[roots[p]] = true;
+				}
+				final int[] rootClusters = new int[pointCount];
+				int clusterCount = 0;
+				for(int p=0;p<pointCount;p++)
+				{
+						if(roots[p] == p) rootClusters[p] = clusterCount++;
+				}
+
+				// the border points of the broken and changed clusters and the points next to several clusters are labelled again;
+				// the other non-core points keep the cluster of their anchor
+				for(int p=0;p<pointCount;p++)
+				{
+						if(isCore[p] || isNewPoint[p]) continue;
+						int storedSlot = storedSlots[p];
+						if((state.flags[storedPoints[p]] & IncrementalClusterState.SHARED_BORDER) != 0) isRelabelled[p] = true;
+						if(storedSlot == -1 || isRelabelled[p]) continue;
+						if(isBrokenSlot[storedSlot] || isChangedRoot[find(parent, anchors[storedSlot])]) isRelabelled[p] = true;
+						else roots[p] = find(parent, anchors[storedSlot]);
+				}
+				final boolean[] isSharedBorder = new boolean[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList coreNeighbours = new IntList();
+						for(int p=start;p<end;p++)
+						{
+								if(!isRelabelled[p] || isCore[p]) continue;
+
+								gridIndex.queryNeighbours(p, eps, coreNeighbours);
+								int earliestRoot = Integer.MAX_VALUE;
+								int latestRoot = -1;
+								for(int n=0;n<coreNeighbours.size();n++)
+								{
+										int neighbour = coreNeighbours.get(n);
+										if(!isCore[neighbour]) continue;
+										int root = find(parent, isFreeCore[neighbour] ? neighbour : anchors[storedSlots[neighbour]]);
+										earliestRoot = Math.min(earliestRoot, root);
+										latestRoot = Math.max(latestRoot, root);
+								}
+								roots[p] = (latestRoot == -1) ? -1 : earliestRoot;
+								isSharedBorder[p] = (latestRoot != -1) && (latestRoot != earliestRoot);
+						}
+				});
+
+
+				// the members of every cluster; a cluster keeps its stored shapes if it is made of the same points as a stored cluster
+				int[] clusterSizes = new int[clusterCount];
+				int[] clusterLabels = new int[pointCount];
+				int[] storedSlotOfCluster = new int[clusterCount];
+				Arrays.fill(storedSlotOfCluster, -2);
+				for(int p=0;p<pointCount;p++)
+				{
+						clusterLabels[p] = (roots[p] == -1) ? DBSCANResult.NOISE : rootClusters[roots[p]];
+						if(clusterLabels[p] == DBSCANResult.NOISE) continue;
+						int c = clusterLabels[p];
+						clusterSizes[c]++;
+						if(storedSlotOfCluster[c] == -2) storedSlotOfCluster[c] = storedSlots[p];
+						else if(storedSlotOfCluster[c] != storedSlots[p]) storedSlotOfCluster[c] = -1;
+				}
+				int[] storedSlotSizes = new int[state.slotCount];
+				for(int i=0;i<state.recordCount;i++)
+				{
+						if(state.clusterSlots[i] != -1) storedSlotSizes[state.clusterSlots[i]]++;
+				}
+				for(int c=0;c<clusterCount;c++)
+				{
+						int storedSlot = storedSlotOfCluster[c];
+						if(storedSlot < 0 || isBrokenSlot[storedSlot] || isChangedRoot[find(parent, anchors[storedSlot])] || storedSlotSizes[storedSlot] != clusterSizes[c]) storedSlotOfCluster[c] = -1;
+				}
+				int[][] clusterMembers = new DBSCANResult(clusterLabels, new byte[pointCount], clusterCount).getClusterMembers();
+
+				// write the clustered result into a file
+				if(clusteredFile.exists())
+				{
+						clusteredFile.delete();
+						clusteredFile.createNewFile();
+				}
+				FileWriter clusterFileWriter = new FileWriter(clusteredFile, true);
+				String newLineSymbol = System.getProperty("line.separator");
+				int clusterIndex = 1;
+				for(int c=0;c<clusterCount;c++)
+				{
+						if(clusterSizes[c] < minPts) continue;
+						for(int p : clusterMembers[c])
+						{
+								String pointTypeName = DBSCANResult.getPointTypeName(isCore[p] ? DBSCANResult.CORE_POINT : DBSCANResult.BORDER_POINT);
+								clusterFileWriter.append(xCoords[p]+","+yCoords[p]+","+"cluster_"+clusterIndex+","+pointTypeName+newLineSymbol);
+						}
+						clusterIndex++;
+				}
+				clusterFileWriter.close();
+
+
+				// the stored shapes of the unchanged AOIs, with the added and removed records they cover
+				ArrayList<ArrayList<IncrementalClusterState.AOIShapeState>> slotShapes = new ArrayList<ArrayList<IncrementalClusterState.AOIShapeState>>(state.slotCount);
+				for(int s=0;s<state.slotCount;s++)
+				{
+						slotShapes.add(null);
+				}
+				for(IncrementalClusterState.AOIShapeState shape : state.shapes)
+				{
+						if(slotShapes.get(shape.slot) == null) slotShapes.set(shape.slot, new ArrayList<IncrementalClusterState.AOIShapeState>());
+						slotShapes.get(shape.slot).add(shape);
+				}
+				PointStore changedPointStore = new PointStore(insertedRecords.size() + removedRecords.size());
+				long[] changedUserKeys = new long[insertedRecords.size() + removedRecords.size()];
+				for(int i=0;i<insertedRecords.size();i++)
+				{
+						int r = insertedRecords.get(i);
+						changedUserKeys[changedPointStore.size()] = recordUserKeys[r];
+						changedPointStore.add(recordStore.getX(r), recordStore.getY(r), -1, r);
+				}
+				for(int i=0;i<removedRecords.size();i++)
+				{
+						int r = removedRecords.get(i);
+						changedUserKeys[changedPointStore.size()] = state.userKeys[r];
+						changedPointStore.add(state.xCoords[r], state.yCoords[r], -1, r);
+				}
+				AOIMembershipCounter changeCounter = (changedPointStore.size() > 0) ? new AOIMembershipCounter(changedPointStore, -1, eps, isGeodesic) : null;
+
+				// the shapes of the other AOIs are built again on the pool, starting with the largest clusters
+				IntList aoiClusters = new IntList();
+				IntList rebuiltClusters = new IntList();
+				for(int c=0;c<clusterCount;c++)
+				{
+						if(clusterSizes[c] < minPts) continue;
+						aoiClusters.add(c);
+						if(storedSlotOfCluster[c] == -1) rebuiltClusters.add(c);
+				}
+				long[] sizeOrder = new long[rebuiltClusters.size()];
+				for(int k=0;k<rebuiltClusters.size();k++)
+				{
+						sizeOrder[k] = ((long)(Integer.MAX_VALUE - clusterSizes[rebuiltClusters.get(k)]) << 32) | k;
+				}
+				Arrays.sort(sizeOrder);
+				final ClusterAndShapeGenerator clusterAndShapeGenerator = new ClusterAndShapeGenerator();
+				final AOIMembershipCounter aoiMembershipCounter = (rebuiltClusters.size() > 0) ? new AOIMembershipCounter(recordStore, -1, eps, isGeodesic) : null;
+				ArrayList<ForkJoinTask<ArrayList<IncrementalClusterState.AOIShapeState>>> shapeTasks = new ArrayList<ForkJoinTask<ArrayList<IncrementalClusterState.AOIShapeState>>>(Collections.<ForkJoinTask<ArrayList<IncrementalClusterState.AOIShapeState>>>nCopies(clusterCount, null));
+				for(int rank=0;rank<sizeOrder.length;rank++)
+				{
+						final int c = rebuiltClusters.get((int)(sizeOrder[rank] & 0xffffffffL));
+						final int[] members = clusterMembers[c];
+						shapeTasks.set(c, pool.submit(() -> buildShapes(c, xCoords, yCoords, members, clusterAndShapeGenerator, aoiMembershipCounter, recordUserKeys, userIDIndex, lambdaValues, parameterObject)));
+				}
+
+				// write the AOIs in the order of the clusters, and keep their shapes for the next run
+				ArrayList<IncrementalClusterState.AOIShapeState> shapes = new ArrayList<IncrementalClusterState.AOIShapeState>();
+				for(int k=0;k<aoiClusters.size();k++)
+				{
+						int c = aoiClusters.get(k);
+						ArrayList<IncrementalClusterState.AOIShapeState> clusterShapes = null;
+						if(storedSlotOfCluster[c] == -1)
+						{
+								clusterShapes = shapeTasks.get(c).get();
+								shapeTasks.set(c, null);
+						}
+						else
+						{
+								clusterShapes = slotShapes.get(storedSlotOfCluster[c]);
+								if(clusterShapes == null) clusterShapes = new ArrayList<IncrementalClusterState.AOIShapeState>();
+								for(int i=0;i<clusterShapes.size();i++)
+								{
+										IncrementalClusterState.AOIShapeState shape = clusterShapes.get(i);
+										if(changeCounter != null) countChangedRecords(shape, changeCounter, changedUserKeys, insertedRecords.size(), userIDIndex);
+										clusterShapes.set(i, new IncrementalClusterState.AOIShapeState(c, shape.lambdaIndex, shape.geometry, shape.recordCount, shape.userKeys, shape.userRecordCounts));
+								}
+						}
+						for(IncrementalClusterState.AOIShapeState shape : clusterShapes)
+						{
+								EsriJSONWriter esriJSONWriter = esriJSONWriters[shape.lambdaIndex];
+								clusterAndShapeGenerator.writeAOIFeature(esriJSONWriter, shape.geometry, esriJSONWriter.getFeatureCount()+1, shape.recordCount, shape.getUserCount(), parameterObject, dataSummaryObject);
+								shapes.add(shape);
+						}
+				}
+
+
+				processedPointCount = pointCount;
+				linkedCoreCount = freeCoreCount;
+				rebuiltClusterCount = rebuiltClusters.size();
+				aoiClusterCount = aoiClusters.size();
+
+				// the state for the next update
+				byte[] flags = new byte[recordCount];
+				int[] recordNeighbourCounts = new int[recordCount];
+				int[] recordClusterSlots = new int[recordCount];
+				Arrays.fill(recordClusterSlots, -1);
+				for(int p=0;p<pointCount;p++)
+				{
+						int r = keptRecords[p];
+						flags[r] = IncrementalClusterState.KEPT;
+						if(isCore[p]) flags[r] |= IncrementalClusterState.CORE;
+						if(isSharedBorder[p]) flags[r] |= IncrementalClusterState.SHARED_BORDER;
+						recordNeighbourCounts[r] = neighbourCounts[p];
+						recordClusterSlots[r] = clusterLabels[p];
+				}
+				return new IncrementalClusterState(state.settingsChecksum, recordCount, Arrays.copyOf(recordStore.getXCoords(), recordCount), Arrays.copyOf(recordStore.getYCoords(), recordCount), recordUserKeys, flags, recordNeighbourCounts, recordClusterSlots, clusterCount, shapes);
+		}
+
+
+		int getProcessedPointCount()
+		{
+				return processedPointCount;
+		}
+
+		int getLinkedCoreCount()
+		{
+				return linkedCoreCount;
+		}
+
+		int getRebuiltClusterCount()
+		{
+				return rebuiltClusterCount;
+		}
+
+
+		// the shapes of a cluster for each lambda value, with the records and users they cover; a shape that could not be constructed is left out
+		private static ArrayList<IncrementalClusterState.AOIShapeState> buildShapes(int cluster, double[] xCoords, double[] yCoords, int[] members, ClusterAndShapeGenerator clusterAndShapeGenerator, AOIMembershipCounter aoiMembershipCounter, long[] recordUserKeys, int userIDIndex, double[] lambdaValues, JSONObject parameterObject)
+		{
+				Geometry[] concaveHullGeometries = clusterAndShapeGenerator.createConcaveHulls(xCoords, yCoords, members, lambdaValues, parameterObject);
+				ArrayList<IncrementalClusterState.AOIShapeState> shapes = new ArrayList<IncrementalClusterState.AOIShapeState>();
+				for(int i=0;i<lambdaValues.length;i++)
+				{
+						if(concaveHullGeometries[i] == null) continue;
+
+						IntList coveredRecords = aoiMembershipCounter.findCoveredRecords(concaveHullGeometries[i]);
+						long[] coveredUserKeys = new long[coveredRecords.size()];
+						int[] recordChanges = new int[coveredRecords.size()];
+						for(int k=0;k<coveredRecords.size();k++)
+						{
+								coveredUserKeys[k] = recordUserKeys[coveredRecords.get(k)];
+								recordChanges[k] = 1;
+						}
+						IncrementalClusterState.AOIShapeState shape = new IncrementalClusterState.AOIShapeState(cluster, i, concaveHullGeometries[i], 0, new long[0], new int[0]);
+						shape.changeRecords((userIDIndex != -1) ? coveredUserKeys : null, recordChanges, coveredRecords.size());
+						shapes.add(shape);
+				}
+				return shapes;
+		}
+
+
+		// count the added records covered by a kept shape, and no longer count the removed ones; the first insertedCount changed records are the added ones
+		private static void countChangedRecords(IncrementalClusterState.AOIShapeState shape, AOIMembershipCounter changeCounter, long[] changedUserKeys, int insertedCount, int userIDIndex)
+		{
+				IntList coveredRecords = changeCounter.findCoveredRecords(shape.geometry);
+				if(coveredRecords.size() == 0) return;
+
+				long[] coveredUserKeys = new long[coveredRecords.size()];
+				int[] recordChanges = new int[coveredRecords.size()];
+				for(int k=0;k<coveredRecords.size();k++)
+				{
+						coveredUserKeys[k] = changedUserKeys[coveredRecords.get(k)];
+						recordChanges[k] = (coveredRecords.get(k) < insertedCount) ? 1 : -1;
+				}
+				shape.changeRecords((userIDIndex != -1) ? coveredUserKeys : null, recordChanges, coveredRecords.size());
+		}
+
+
+		private static boolean isSameRecord(IncrementalClusterState state, int storedRecord, PointStore rawPointStore, long[] recordUserKeys, int record)
+		{
+				return state.xCoords[storedRecord] == rawPointStore.getX(record) && state.yCoords[storedRecord] == rawPointStore.getY(record) && state.userKeys[storedRecord] == recordUserKeys[record];
+		}
+
+
+		// the settings the stored state depends on; a state stored with other settings is not used
+		static long getSettingsChecksum(JSONObject parameterObject, int minPts, double[] lambdaValues) throws Exception
+		{
+				StringBuilder settings = new StringBuilder();
+				settings.append(parameterObject.getDouble("eps")).append(';').append(minPts);
+				settings.append(';').append(parameterObject.getInt("userIDIndex")).append(';').append(parameterObject.getInt("lngIndex")).append(';').append(parameterObject.getInt("latIndex"));
+				settings.append(';').append(parameterObject.optString("concaveHullEngine", "chi-shape")).append(';').append(parameterObject.optString("boundingBox", "").trim());
+				if(parameterObject.optBoolean("geodesicEps", false)) settings.append(";geodesic");
+				if(!parameterObject.optString("projection", "").trim().isEmpty()) settings.append(';').append(parameterObject.getString("projection").trim());
+				for(double lambdaValue : lambdaValues)
+				{
+						settings.append(';').append(lambdaValue);
+				}
+
+				long checksum = 0xCBF29CE484222325L;
+				for(int i=0;i<settings.length();i++)
+				{
+						checksum ^= settings.charAt(i);
+						checksum *= 0x100000001B3L;
+				}
+				return checksum;
+		}
+
+
+		private static int find(AtomicIntegerArray parent, int point)
+		{
+				while(true)
+				{
+						int pointParent = parent.get(point);
+						if(pointParent == point) return point;
+
+						// path halving
+						int grandParent = parent.get(pointParent);
+						if(pointParent != grandParent) parent.compareAndSet(point, pointParent, grandParent);
+						point = pointParent;
+				}
+		}
+
+
+		// always hang the larger root below the smaller one, so that every root is the smallest point of its tree
+		private static void union(AtomicIntegerArray parent, int pointA, int pointB)
+		{
+				while(true)
+				{
+						int rootA = find(parent, pointA);
+						int rootB = find(parent, pointB);
+						if(rootA == rootB) return;
+
+						if(rootA < rootB)
+						{
+								int swap = rootA;
+								rootA = rootB;
+								rootB = swap;
+						}
+						if(parent.compareAndSet(rootA, rootA, rootB)) return;
+				}
+		}
+
+}
@@ -0,0 +1,61 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+// a growable list of primitive ints, used instead of List<Integer> in the hot loops
+class IntList
+{
+		private int[] values;
+		private int size = 0;
+
+		IntList()
+		{
+				this(16);
+		}
+
+		IntList(int initialCapacity)
+		{
+				values = new int[Math.max(initialCapacity, 4)];
+		}
+
+		void add(int value)
+		{
+				if(size == values.length)
+				{
+						values = Arrays.copyOf(values, values.length * 2);
+				}
+				values[size++] = value;
+		}
+
+		int get(int index)
+		{
+				return values[index];
+		}
+
+		void set(int index, int value)
+		{
+				values[index] = value;
+		}
+
+		int size()
+		{
+				return size;
+		}
+
+		void clear()
+		{
+				size = 0;
+		}
+
+		// remove the last value and return it, so that the list can be used as a stack
+		int removeLast()
+		{
+				return values[--size];
+		}
+
+		int[] toArray()
+		{
+				return Arrays.copyOf(values, size);
+		}
+
+}
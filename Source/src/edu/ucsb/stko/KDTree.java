@@ -0,0 +1,392 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// a static 2-d tree over a set of points for nearest neighbour queries, kept in primitive arrays: the points are reordered so
+// that every node is a range of positions whose median position holds the splitting point, with the smaller coordinates before
+// it and the larger ones after it. Unlike a grid, the tree adapts to the density of the points, so the queries stay fast in the
+// dense centres of social media data as well as in the sparse outskirts
+class KDTree
+{
+		// ranges of at most this many points are not split, but scanned
+		private static final int LEAF_SIZE = 8;
+
+		// ranges of at least this many points are partitioned on separate tasks
+		private static final int PARALLEL_BUILD_SIZE = 1 << 16;
+
+		private final double[] treeX;
+		private final double[] treeY;
+		private final int[] pointIndexes;
+		private final boolean[] splitsOnY;
+
+
+		KDTree(double[] xCoords, double[] yCoords, int pointCount, ForkJoinPool pool)
+		{
+				treeX = new double[pointCount];
+				treeY = new double[pointCount];
+				pointIndexes = new int[pointCount];
+				splitsOnY = new boolean[pointCount];
+				for(int i=0;i<pointCount;i++)
+				{
+						treeX[i] = xCoords[i];
+						treeY[i] = yCoords[i];
+						pointIndexes[i] = i;
+				}
+				pool.invoke(new BuildTask(0, pointCount));
+		}
+
+
+		private class BuildTask extends RecursiveAction
+		{
+				private static final long serialVersionUID = 1L;
+
+				private final int start;
+				private final int end;
+
+				BuildTask(int start, int end)
+				{
+						this.start = start;
+						this.end = end;
+				}
+
+				@Override
+				protected void compute()
+				{
+						int rangeStart = start;
+						int rangeEnd = end;
+						while(rangeEnd - rangeStart > LEAF_SIZE)
+						{
+								int median = split(rangeStart, rangeEnd);
+								if(rangeEnd - rangeStart >= PARALLEL_BUILD_SIZE)
+								{
+										invokeAll(new BuildTask(rangeStart, median), new BuildTask(median + 1, rangeEnd));
+										return;
+								}
+								new BuildTask(rangeStart, median).compute();
+								rangeStart = median + 1;
+						}
+				}
+		}
+
+
+		// split the range along its wider side at the median position, and return that position
+		private int split(int start, int end)
+		{
+				double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+				double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+				for(int p=start;p<end;p++)
+				{
+						minX = Math.min(minX, treeX[p]);
+						maxX = Math.max(maxX, treeX[p]);
+						minY = Math.min(minY, treeY[p]);
+						maxY = Math.max(maxY, treeY[p]);
+				}
+				boolean onY = (maxY - minY) > (maxX - minX);
+				int median = (start + end) >>> 1;
+				select(start, end - 1, median, onY);
+				splitsOnY[median] = onY;
+				return median;
+		}
+
+		// quickselect: put the point of rank k (within [left, right]) at position k, with no larger coordinate before it and no smaller one after it
+		private void select(int left, int right, int k, boolean onY)
+		{
+				double[] keys = onY ? treeY : treeX;
+				while(right > left)
+				{
+						double pivot = keys[(left + right) >>> 1];
+						int i = left;
+						int j = right;
+						while(i <= j)
+						{
+								while(keys[i] < pivot) i++;
+								while(keys[j] > pivot) j--;
+								if(i <= j)
+								{
+										swap(i, j);
+										i++;
+										j--;
+								}
+						}
+						if(k <= j) right = j;
+						else if(k >= i) left = i;
+						else return;
+				}
+		}
+
+		private void swap(int a, int b)
+		{
+				double x = treeX[a];
+				treeX[a] = treeX[b];
+				treeX[b] = x;
+				double y = treeY[a];
+				treeY[a] = treeY[b];
+				treeY[b] = y;
+				int index = pointIndexes[a];
+				pointIndexes[a] = pointIndexes[b];
+				pointIndexes[b] = index;
+		}
+
+
+		int size()
+		{
+				return treeX.length;
+		}
+
+		// the index of the point at a position of the tree; going through the positions in order visits nearby points together
+		int getPointIndex(int treePosition)
+		{
+				return pointIndexes[treePosition];
+		}
+
+
+		// the distance from the point at treePosition to its k-th nearest other point (infinity if there are not k other points);
+		// nearestDistances is scratch space for k values, used as a max-heap of the k smallest squared distances found so far
+		double kthNeighbourDistance(int treePosition, int k, double[] nearestDistances)
+		{
+				int foundCount = search(0, treeX.length, treePosition, treeX[treePosition], treeY[treePosition], k, nearestDistances, 0);
+				return (foundCount < k) ? Double.POSITIVE_INFINITY : Math.sqrt(nearestDistances[0]);
+		}
+
+		private int search(int start, int end, int queryPosition, double x, double y, int k, double[] nearestDistances, int foundCount)
+		{
+				if(end - start <= LEAF_SIZE)
+				{
+						for(int p=start;p<end;p++)
+						{
+								if(p != queryPosition) foundCount = offer(nearestDistances, foundCount, k, squaredDistance(p, x, y));
+						}
+						return foundCount;
+				}
+
+				int median = (start + end) >>> 1;
+				if(median != queryPosition) foundCount = offer(nearestDistances, foundCount, k, squaredDistance(median, x, y));
+				double difference = splitsOnY[median] ? (y - treeY[median]) : (x - treeX[median]);
+
+				// the side of the query point first; the other side only if it can hold a point closer than the k-th found so far
+				if(difference < 0)
+				{
+						foundCount = search(start, median, queryPosition, x, y, k, nearestDistances, foundCount);
+						if(foundCount < k || difference * difference < nearestDistances[0]) foundCount = search(median + 1, end, queryPosition, x, y, k, nearestDistances, foundCount);
+				}
+				else
+				{
+						foundCount = search(median + 1, end, queryPosition, x, y, k, nearestDistances, foundCount);
+						if(foundCount < k || difference * difference < nearestDistances[0]) foundCount = search(start, median, queryPosition, x, y, k, nearestDistances, foundCount);
+				}
+				return foundCount;
+		}
+
+		private double squaredDistance(int p, double x, double y)
+		{
+				double dx = treeX[p] - x;
+				double dy = treeY[p] - y;
+				return dx*dx + dy*dy;
+		}
+
+		// the minimum spanning tree of the points under the mutual reachability distance max(core(a), core(b), d(a, b)) of HDBSCAN*, built with
+		// Boruvka's algorithm: in every round, each point looks for its nearest point in another component on the pool, skipping the subtrees
+		// that lie entirely in its own component or whose core distances are all too large, and every component is joined to the nearest
+		// one found by its points. coreDistances are indexed by point; the n-1 edges are written to edgeFrom and edgeTo (point indexes) and edgeWeights
+		void buildMutualReachabilityTree(double[] coreDistances, ForkJoinPool pool, int[] edgeFrom, int[] edgeTo, double[] edgeWeights)
+		{
+				final int pointCount = treeX.length;
+				final double[] treeCores = new double[pointCount];
+				for(int p=0;p<pointCount;p++)
+				{
+						treeCores[p] = coreDistances[pointIndexes[p]];
+				}
+
+				// the smallest core distance within every node, stored at the position of its splitting point
+				final double[] nodeMinCores = new double[pointCount];
+				findNodeMinCores(0, pointCount, treeCores, nodeMinCores);
+
+				// the components are a union-find forest over the positions; in each round, every position gets the root of its component,
+				// and every node the component of all its points (-1 if they are in different components)
+				int[] componentParents = new int[pointCount];
+				for(int p=0;p<pointCount;p++)
+				{
+						componentParents[p] = p;
+				}
+				final int[] components = new int[pointCount];
+				final int[] nodeComponents = new int[pointCount];
+				final double[] nearestDistances = new double[pointCount];
+				final int[] nearestPositions = new int[pointCount];
+				int[] componentNearest = new int[pointCount];
+
+				int edgeCount = 0;
+				while(edgeCount < pointCount - 1)
+				{
+						for(int p=0;p<pointCount;p++)
+						{
+								components[p] = findRoot(componentParents, p);
+						}
+						labelNodes(0, pointCount, components, nodeComponents);
+
+						ParallelTasks.forRange(pool, pointCount, (start, end) ->
+						{
+								double[] nearest = new double[2];
+								for(int p=start;p<end;p++)
+								{
+										nearest[0] = Double.POSITIVE_INFINITY;
+										nearest[1] = -1;
+										searchOtherComponent(0, pointCount, p, components[p], treeCores, nodeMinCores, components, nodeComponents, nearest);
+										nearestDistances[p] = nearest[0];
+										nearestPositions[p] = (int)nearest[1];
+								}
+						});
+
+						// the nearest point in another component of each component, and the edges to them; a pair of components
+						// that found each other is only joined once
+						Arrays.fill(componentNearest, -1);
+						for(int p=0;p<pointCount;p++)
+						{
+								int component = components[p];
+								if(nearestPositions[p] != -1 && (componentNearest[component] == -1 || nearestDistances[p] < nearestDistances[componentNearest[component]])) componentNearest[component] = p;
+						}
+						int roundEdgeCount = 0;
+						for(int component=0;component<pointCount;component++)
+						{
+								int p = componentNearest[component];
+								if(p == -1) continue;
+								int rootA = findRoot(componentParents, p);
+								int rootB = findRoot(componentParents, nearestPositions[p]);
+								if(rootA == rootB) continue;
+
+								componentParents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+								edgeFrom[edgeCount] = pointIndexes[p];
+								edgeTo[edgeCount] = pointIndexes[nearestPositions[p]];
+								edgeWeights[edgeCount] = nearestDistances[p];
+								edgeCount++;
+								roundEdgeCount++;
+						}
+						if(roundEdgeCount == 0) break;
+				}
+		}
+
+		private double findNodeMinCores(int start, int end, double[] treeCores, double[] nodeMinCores)
+		{
+				if(end - start <= LEAF_SIZE)
+				{
+						double minCore = Double.POSITIVE_INFINITY;
+						for(int p=start;p<end;p++)
+						{
+								minCore = Math.min(minCore, treeCores[p]);
+						}
+						return minCore;
+				}
+				int median = (start + end) >>> 1;
+				double minCore = Math.min(treeCores[median], Math.min(findNodeMinCores(start, median, treeCores, nodeMinCores), findNodeMinCores(median + 1, end, treeCores, nodeMinCores)));
+				nodeMinCores[median] = minCore;
+				return minCore;
+		}
+
+		private int labelNodes(int start, int end, int[] components, int[] nodeComponents)
+		{
+				if(end - start <= LEAF_SIZE)
+				{
+						for(int p=start+1;p<end;p++)
+						{
+								if(components[p] != components[start]) return -1;
+						}
+						return (end > start) ? components[start] : -2;
+				}
+				int median = (start + end) >>> 1;
+				int left = labelNodes(start, median, components, nodeComponents);
+				int right = labelNodes(median + 1, end, components, nodeComponents);
+				int component = components[median];
+				if((left != -2 && left != component) || (right != -2 && right != component)) component = -1;
+				nodeComponents[median] = component;
+				return component;
+		}
+
+		// the nearest point to the point at queryPosition outside its component under the mutual reachability distance; nearest holds the
+		// distance and the position found so far
+		private void searchOtherComponent(int start, int end, int queryPosition, int queryComponent, double[] treeCores, double[] nodeMinCores, int[] components, int[] nodeComponents, double[] nearest)
+		{
+				double queryCore = treeCores[queryPosition];
+				if(end - start <= LEAF_SIZE)
+				{
+						for(int p=start;p<end;p++)
+						{
+								if(components[p] != queryComponent) offerOtherComponent(p, queryPosition, treeCores, nearest);
+						}
+						return;
+				}
+
+				int median = (start + end) >>> 1;
+				if(nodeComponents[median] == queryComponent || Math.max(queryCore, nodeMinCores[median]) >= nearest[0]) return;
+				if(components[median] != queryComponent) offerOtherComponent(median, queryPosition, treeCores, nearest);
+
+				double difference = splitsOnY[median] ? (treeY[queryPosition] - treeY[median]) : (treeX[queryPosition] - treeX[median]);
+				if(difference < 0)
+				{
+						searchOtherComponent(start, median, queryPosition, queryComponent, treeCores, nodeMinCores, components, nodeComponents, nearest);
+						if(Math.max(queryCore, -difference) < nearest[0]) searchOtherComponent(median + 1, end, queryPosition, queryComponent, treeCores, nodeMinCores, components, nodeComponents, nearest);
+				}
+				else
+				{
+						searchOtherComponent(median + 1, end, queryPosition, queryComponent, treeCores, nodeMinCores, components, nodeComponents, nearest);
+						if(Math.max(queryCore, difference) < nearest[0]) searchOtherComponent(start, median, queryPosition, queryComponent, treeCores, nodeMinCores, components, nodeComponents, nearest);
+				}
+		}
+
+		private void offerOtherComponent(int p, int queryPosition, double[] treeCores, double[] nearest)
+		{
+				double distance = Math.max(Math.max(treeCores[queryPosition], treeCores[p]), Math.sqrt(squaredDistance(p, treeX[queryPosition], treeY[queryPosition])));
+				if(distance < nearest[0])
+				{
+						nearest[0] = distance;
+						nearest[1] = p;
+				}
+		}
+
+		private static int findRoot(int[] parents, int p)
+		{
+				while(parents[p] != p)
+				{
+						parents[p] = parents[parents[p]];
+						p = parents[p];
+				}
+				return p;
+		}
+
+
+		// add a distance to the bounded max-heap; returns the new number of distances in it
+		private static int offer(double[] heap, int size, int capacity, double distance)
+		{
+				int position;
+				if(size < capacity)
+				{
+						// sift up from the new leaf
+						position = size++;
+						while(position > 0)
+						{
+								int parent = (position - 1) >>> 1;
+								if(heap[parent] >= distance) break;
+								heap[position] = heap[parent];
+								position = parent;
+						}
+						heap[position] = distance;
+						return size;
+				}
+				if(distance >= heap[0]) return size;
+
+				// replace the largest distance and sift it down
+				position = 0;
+				while(true)
+				{
+						int child = 2 * position + 1;
+						if(child >= size) break;
+						if(child + 1 < size && heap[child+1] > heap[child]) child++;
+						if(heap[child] <= distance) break;
+						heap[position] = heap[child];
+						position = child;
+				}
+				heap[position] = distance;
+				return size;
+		}
+
+}
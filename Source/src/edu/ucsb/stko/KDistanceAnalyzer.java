@@ -0,0 +1,120 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.JSONObject;
+
+// helps choosing eps: the distance of every processed point to its k-th nearest neighbour is found with a kd-tree, and the sorted
+// distances form the k-distance curve. With k = minPts, a point is a core point exactly when its k-distance is at most eps, so the
+// knee of the curve, where the distances start to grow quickly, separates the points of dense areas from the scattered ones
+class KDistanceAnalyzer
+{
+		// the curve file holds at most this many points, taken at evenly spaced ranks
+		private static final int MAX_CURVE_POINTS = 10000;
+
+		public JSONObject analyzeKDistances(JSONObject parameterObject, JSONObject processedDataSummaryObject, PointStore processedPointStore)
+		{
+				System.out.println("Computing the k-distances of the points...");
+				try
+				{
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						String tempFileName = processedDataSummaryObject.getString("file");
+						long recordCount = processedDataSummaryObject.getLong("recordCount");
+						long userCount = (userIDIndex != -1) ? processedDataSummaryObject.getLong("userCount") : 0;
+						if(processedPointStore == null) processedPointStore = ClusterAndShapeGenerator.readProcessedFile(tempFileName, userIDIndex);
+						int pointCount = processedPointStore.size();
+
+						// k defaults to minPts, as DBSCAN counts the neighbours of a point without the point itself
+						int k = parameterObject.optInt("kDistanceK", 0);
+						if(k <= 0) k = ClusterAndShapeGenerator.getMinPts(parameterObject.getDouble("minPts"), parameterObject.getBoolean("minPtsPercentage"), userIDIndex, recordCount, userCount);
+						if(k >= pointCount)
+						{
+								System.out.println("The k-distances need more than k = "+k+" points, but there are only "+pointCount+"; The program has been canceled");
+								return null;
+						}
+
+						final int neighbourCount = k;
+						final double[] kDistances = new double[pointCount];
+						ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+						try
+						{
+								final KDTree kdTree = new KDTree(processedPointStore.getXCoords(), processedPointStore.getYCoords(), pointCount, pool);
+
+								// the points are visited in the order of the tree, so that consecutive queries touch the same parts of it
+								ParallelTasks.forRange(pool, pointCount, (start, end) ->
+								{
+										double[] nearestDistances = new double[neighbourCount];
+										for(int p=start;p<end;p++)
+										{
+												kDistances[p] = kdTree.kthNeighbourDistance(p, neighbourCount, nearestDistances);
+										}
+								});
+						}
+						finally
+						{
+								pool.shutdown();
+						}
+						Arrays.parallelSort(kDistances);
+
+						int kneeRank = findKnee(kDistances);
+						double suggestedEps = kDistances[kneeRank];
+
+						// write the curve: the rank of a point among the sorted k-distances and its k-distance
+						File curveFile = new File(tempFileName.replaceAll("processed.csv", "")+"kdistance.csv");
+						FileWriter curveFileWriter = new FileWriter(curveFile);
+						String newLineSymbol = System.getProperty("line.separator");
+						curveFileWriter.append("rank,kDistance"+newLineSymbol);
+						int curvePointCount = Math.min(pointCount, MAX_CURVE_POINTS);
+						for(int c=0;c<curvePointCount;c++)
+						{
+								int rank = (curvePointCount == 1) ? 0 : (int)Math.round(c * (pointCount - 1.0) / (curvePointCount - 1.0));
+								curveFileWriter.append(rank+","+kDistances[rank]+newLineSymbol);
+						}
+						curveFileWriter.close();
+
+						JSONObject kDistanceObject = new JSONObject();
+						kDistanceObject.put("k", k);
+						kDistanceObject.put("suggestedEps", suggestedEps);
+						kDistanceObject.put("file", curveFile.getPath());
+
+						System.out.println("The k-distance curve for k = "+k+" has been written to "+curveFile.getPath()+".");
+						System.out.println("The knee of the curve suggests eps = "+suggestedEps+"; with minPts = "+k+", "+(Math.round((kneeRank + 1) * 1000.0 / pointCount) / 10.0)+"% of the points would be core points.");
+						System.out.println("K-distance analysis has finished...");
+						System.out.println("---------------------------------------------------");
+						return kDistanceObject;
+				}
+				catch (Exception e)
+				{
+						System.out.println("An error happened in the k-distance analysis; The program has been canceled");
+						return null;
+				}
+		}
+
+
+		// the knee of the ascending curve (Satopaa et al., 2011): with the ranks and the distances both scaled to [0, 1], the point
+		// farthest below the straight line from the first to the last point of the curve
+		private static int findKnee(double[] sortedDistances)
+		{
+				int pointCount = sortedDistances.length;
+				double smallest = sortedDistances[0];
+				double largest = sortedDistances[pointCount - 1];
+				if(pointCount < 3 || !(largest > smallest) || Double.isInfinite(largest)) return pointCount - 1;
+
+				int kneeRank = pointCount - 1;
+				double largestGap = 0;
+				for(int i=0;i<pointCount;i++)
+				{
+						double gap = i / (pointCount - 1.0) - (sortedDistances[i] - smallest) / (largest - smallest);
+						if(gap > largestGap)
+						{
+								largestGap = gap;
+								kneeRank = i;
+						}
+				}
+				return kneeRank;
+		}
+
+}
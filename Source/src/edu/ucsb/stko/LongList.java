@@ -0,0 +1,56 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+// a growable list of primitive longs, such as the timestamps of the records
+class LongList
+{
+		private long[] values;
+		private int size = 0;
+
+		LongList()
+		{
+				this(16);
+		}
+
+		LongList(int initialCapacity)
+		{
+				values = new long[Math.max(initialCapacity, 4)];
+		}
+
+		void add(long value)
+		{
+				if(size == values.length)
+				{
+						values = Arrays.copyOf(values, values.length * 2);
+				}
+				values[size++] = value;
+		}
+
+		// append all the values of another list
+		void addAll(LongList other)
+		{
+				if(size + other.size > values.length)
+				{
+						values = Arrays.copyOf(values, Math.max(size + other.size, values.length * 2));
+				}
+				System.arraycopy(other.values, 0, values, size, other.size);
+				size += other.size;
+		}
+
+		long get(int index)
+		{
+				return values[index];
+		}
+
+		int size()
+		{
+				return size;
+		}
+
+		long[] toArray()
+		{
+				return Arrays.copyOf(values, size);
+		}
+
+}
@@ -0,0 +1,309 @@
+package edu.ucsb.stko;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.JSONObject;
+
+// the map projections of the "projection" parameter, which turn the longitudes and latitudes (in degrees) of the input into metres while
+// the records are ingested. Like an AffineTransformation of JTS, a projection works on whole coordinate arrays: the constants of the
+// projection are derived once, and the points are projected in place without creating a Coordinate for each of them.
+// The projections are the ellipsoidal Albers equal-area conic and transverse Mercator (UTM) of Snyder (1987) and Karney (2011),
+// and the spherical Web Mercator; no datum shift is applied, so NAD83 and WGS84 coordinates are treated alike
+abstract class MapProjection
+{
+		// the semi-major axis and the flattening of the ellipsoids
+		static final double WGS84_A = 6378137.0;
+		static final double WGS84_F = 1 / 298.257223563;
+		static final double GRS80_F = 1 / 298.257222101;
+
+		// Web Mercator is only defined up to this latitude, where the map becomes square
+		static final double WEB_MERCATOR_MAX_LAT = 85.0511287798066;
+
+
+		// project the points from start to end (exclusive) in place
+		abstract void project(double[] xCoords, double[] yCoords, int start, int end);
+
+		// the spatialReference of the projected coordinates in the Esri JSON output
+		abstract JSONObject getSpatialReference() throws Exception;
+
+		// the projection as it would be written in the configuration file, with the zone of "utm" filled in
+		abstract String getName();
+
+
+		// project the first pointCount points in place on the threads of the pool
+		void project(final double[] xCoords, final double[] yCoords, int pointCount, ForkJoinPool pool)
+		{
+				ParallelTasks.forRange(pool, pointCount, (start, end) -> project(xCoords, yCoords, start, end));
+		}
+
+
+		// the projection of a "projection" value; "utm" without a zone takes the zone of (middleLng, middleLat). Null if the value is not valid
+		static MapProjection create(String specification, double middleLng, double middleLat)
+		{
+				String value = specification.trim().toLowerCase();
+				try
+				{
+						if(value.equals("web-mercator")) return new WebMercator();
+						if(value.equals("albers-california")) return new AlbersEqualArea(-120, 0, 34, 40.5, 0, -4000000, WGS84_A, GRS80_F, 3310, value);
+						if(value.equals("albers-conus")) return new AlbersEqualArea(-96, 37.5, 29.5, 45.5, 0, 0, WGS84_A, GRS80_F, 102003, value);
+						if(value.startsWith("albers:"))
+						{
+								String[] values = value.substring("albers:".length()).split(",");
+								if(values.length != 4 && values.length != 6) return null;
+								double[] parameters = new double[]{0, 0, 0, 0, 0, 0};
+								for(int i=0;i<values.length;i++)
+								{
+										parameters[i] = Double.parseDouble(values[i].trim());
+								}
+								if(Math.abs(parameters[1]) >= 90 || Math.abs(parameters[2]) >= 90 || Math.abs(parameters[3]) >= 90 || parameters[2] + parameters[3] == 0) return null;
+								return new AlbersEqualArea(parameters[0], parameters[1], parameters[2], parameters[3], parameters[4], parameters[5], WGS84_A, WGS84_F, 0, value);
+						}
+						if(value.equals("utm"))
+						{
+								int zone = (int)Math.floor((Math.max(-180, Math.min(179.999999, middleLng)) + 180) / 6) + 1;
+								return new TransverseMercator(zone, middleLat >= 0, WGS84_A, WGS84_F);
+						}
+						if(value.startsWith("utm:"))
+						{
+								String zoneValue = value.substring("utm:".length()).trim();
+								boolean isNorth = true;
+								if(zoneValue.endsWith("n") || zoneValue.endsWith("s"))
+								{
+										isNorth = zoneValue.endsWith("n");
+										zoneValue = zoneValue.substring(0, zoneValue.length() - 1);
+								}
+								int zone = Integer.parseInt(zoneValue.trim());
+								if(zone < 1 || zone > 60) return null;
+								return new TransverseMercator(zone, isNorth, WGS84_A, WGS84_F);
+						}
+				}
+				catch (NumberFormatException e)
+				{
+						return null;
+				}
+				return null;
+		}
+
+
+		// the longitude difference in radians, wrapped into [-pi, pi]
+		private static double wrapLongitude(double lngDifference)
+		{
+				if(lngDifference > 180) lngDifference -= 360 * Math.ceil((lngDifference - 180) / 360);
+				else if(lngDifference < -180) lngDifference += 360 * Math.ceil((-180 - lngDifference) / 360);
+				return Math.toRadians(lngDifference);
+		}
+
+
+		// the ellipsoidal Albers equal-area conic (Snyder, 1987, p. 101)
+		private static class AlbersEqualArea extends MapProjection
+		{
+				private final double lng0;
+				private final double falseEasting;
+				private final double falseNorthing;
+				private final double e;
+				private final double eSquared;
+				private final double n;
+				private final double c;
+				private final double aOverN;
+				private final double rho0;
+				private final int wkid;
+				private final String name;
+				private final double[] parameters;
+
+				AlbersEqualArea(double lng0, double lat0, double lat1, double lat2, double falseEasting, double falseNorthing, double semiMajorAxis, double flattening, int wkid, String name)
+				{
+						this.lng0 = lng0;
+						this.falseEasting = falseEasting;
+						this.falseNorthing = falseNorthing;
+						this.eSquared = flattening * (2 - flattening);
+						this.e = Math.sqrt(eSquared);
+						this.wkid = wkid;
+						this.name = name;
+						this.parameters = new double[]{lng0, lat0, lat1, lat2, falseEasting, falseNorthing};
+
+						double m1 = m(Math.toRadians(lat1));
+						double m2 = m(Math.toRadians(lat2));
+						double q1 = q(Math.sin(Math.toRadians(lat1)));
+						double q2 = q(Math.sin(Math.toRadians(lat2)));
+						n = (lat1 == lat2) ? Math.sin(Math.toRadians(lat1)) : (m1 * m1 - m2 * m2) / (q2 - q1);
+						c = m1 * m1 + n * q1;
+						aOverN = semiMajorAxis / n;
+						rho0 = aOverN * Math.sqrt(c - n * q(Math.sin(Math.toRadians(lat0))));
+				}
+
+				private double m(double lat)
+				{
+						double sinLat = Math.sin(lat);
+						return Math.cos(lat) / Math.sqrt(1 - eSquared * sinLat * sinLat);
+				}
+
+				private double q(double sinLat)
+				{
+						return (1 - eSquared) * (sinLat / (1 - eSquared * sinLat * sinLat) - Math.log((1 - e * sinLat) / (1 + e * sinLat)) / (2 * e));
+				}
+
+				void project(double[] xCoords, double[] yCoords, int start, int end)
+				{
+						for(int i=start;i<end;i++)
+						{
+								double rho = aOverN * Math.sqrt(c - n * q(Math.sin(Math.toRadians(yCoords[i]))));
+								double theta = n * wrapLongitude(xCoords[i] - lng0);
+								xCoords[i] = falseEasting + rho * Math.sin(theta);
+								yCoords[i] = falseNorthing + rho0 - rho * Math.cos(theta);
+						}
+				}
+
+				JSONObject getSpatialReference() throws Exception
+				{
+						JSONObject spatialReference = new JSONObject();
+						if(wkid != 0)
+						{
+								spatialReference.put("wkid", wkid);
+								spatialReference.put("latestWkid", wkid);
+								return spatialReference;
+						}
+						spatialReference.put("wkt", "PROJCS[\"Albers_Equal_Area\",GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137.0,298.257223563]],"
+								+"PRIMEM[\"Greenwich\",0.0],UNIT[\"Degree\",0.0174532925199433]],PROJECTION[\"Albers\"],PARAMETER[\"false_easting\","+parameters[4]+"],"
+								+"PARAMETER[\"false_northing\","+parameters[5]+"],PARAMETER[\"central_meridian\","+parameters[0]+"],PARAMETER[\"standard_parallel_1\","+parameters[2]+"],"
+								+"PARAMETER[\"standard_parallel_2\","+parameters[3]+"],PARAMETER[\"latitude_of_origin\","+parameters[1]+"],UNIT[\"Meter\",1.0]]");
+						return spatialReference;
+				}
+
+				String getName()
+				{
+						return name;
+				}
+		}
+
+
+		// UTM: the transverse Mercator in the series of Krueger to the fourth order of n (Karney, 2011), which is accurate
+		// to well below a millimetre within a zone
+		private static class TransverseMercator extends MapProjection
+		{
+				private static final double SCALE = 0.9996;
+
+				private final int zone;
+				private final boolean isNorth;
+				private final double lng0;
+				private final double e;
+				private final double scaledA;
+				private final double[] alpha;
+
+				TransverseMercator(int zone, boolean isNorth, double semiMajorAxis, double flattening)
+				{
+						this.zone = zone;
+						this.isNorth = isNorth;
+						this.lng0 = zone * 6 - 183;
+						double n = flattening / (2 - flattening);
+						this.e = 2 * Math.sqrt(n) / (1 + n);
+						double n2 = n * n;
+						this.scaledA = SCALE * semiMajorAxis / (1 + n) * (1 + n2 / 4 + n2 * n2 / 64);
+						this.alpha = new double[]{
+								n / 2 - 2 * n2 / 3 + 5 * n2 * n / 16 + 41 * n2 * n2 / 180,
+								13 * n2 / 48 - 3 * n2 * n / 5 + 557 * n2 * n2 / 1440,
+								61 * n2 * n / 240 - 103 * n2 * n2 / 140,
+								49561 * n2 * n2 / 161280};
+				}
+
+				void project(double[] xCoords, double[] yCoords, int start, int end)
+				{
+						double falseNorthing = isNorth ? 0 : 10000000;
+						for(int i=start;i<end;i++)
+						{
+								double sinLat = Math.sin(Math.toRadians(yCoords[i]));
+								double lng = wrapLongitude(xCoords[i] - lng0);
+
+								// the conformal latitude, as its tangent
+								double t = Math.sinh(atanh(sinLat) - e * atanh(e * sinLat));
+								double xi = Math.atan2(t, Math.cos(lng));
+								double eta = atanh(Math.sin(lng) / Math.sqrt(1 + t * t));
+
+								// the multiples of the angles come from the recurrences cos((j+1)a) = 2 cos(a) cos(ja) - cos((j-1)a), and
+								// the same for sin, cosh and sinh, so only the first multiple costs trigonometric functions
+								double cos2Xi = Math.cos(2 * xi);
+								double sin2Xi = Math.sin(2 * xi);
+								double exp2Eta = Math.exp(2 * eta);
+								double cosh2Eta = (exp2Eta + 1 / exp2Eta) / 2;
+								double sinh2Eta = (exp2Eta - 1 / exp2Eta) / 2;
+								double cosJ = cos2Xi;
+								double sinJ = sin2Xi;
+								double coshJ = cosh2Eta;
+								double sinhJ = sinh2Eta;
+								double cosPrevious = 1;
+								double sinPrevious = 0;
+								double coshPrevious = 1;
+								double sinhPrevious = 0;
+								double easting = eta;
+								double northing = xi;
+								for(int j=0;j<4;j++)
+								{
+										easting += alpha[j] * cosJ * sinhJ;
+										northing += alpha[j] * sinJ * coshJ;
+
+										double cosNext = 2 * cos2Xi * cosJ - cosPrevious;
+										double sinNext = 2 * cos2Xi * sinJ - sinPrevious;
+										double coshNext = 2 * cosh2Eta * coshJ - coshPrevious;
+										double sinhNext = 2 * cosh2Eta * sinhJ - sinhPrevious;
+										cosPrevious = cosJ;
+										sinPrevious = sinJ;
+										coshPrevious = coshJ;
+										sinhPrevious = sinhJ;
+										cosJ = cosNext;
+										sinJ = sinNext;
+										coshJ = coshNext;
+										sinhJ = sinhNext;
+								}
+								xCoords[i] = 500000 + scaledA * easting;
+								yCoords[i] = falseNorthing + scaledA * northing;
+						}
+				}
+
+				private static double atanh(double x)
+				{
+						return 0.5 * Math.log((1 + x) / (1 - x));
+				}
+
+				JSONObject getSpatialReference() throws Exception
+				{
+						int wkid = (isNorth ? 32600 : 32700) + zone;
+						JSONObject spatialReference = new JSONObject();
+						spatialReference.put("wkid", wkid);
+						spatialReference.put("latestWkid", wkid);
+						return spatialReference;
+				}
+
+				String getName()
+				{
+						return "utm:"+zone+(isNorth ? "N" : "S");
+				}
+		}
+
+
+		// Web Mercator (EPSG:3857): the spherical Mercator on the semi-major axis of WGS84; the latitudes are clamped to its square map
+		private static class WebMercator extends MapProjection
+		{
+				void project(double[] xCoords, double[] yCoords, int start, int end)
+				{
+						for(int i=start;i<end;i++)
+						{
+								double lat = Math.max(-WEB_MERCATOR_MAX_LAT, Math.min(WEB_MERCATOR_MAX_LAT, yCoords[i]));
+								xCoords[i] = WGS84_A * wrapLongitude(xCoords[i]);
+								yCoords[i] = WGS84_A * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(lat) / 2));
+						}
+				}
+
+				JSONObject getSpatialReference() throws Exception
+				{
+						JSONObject spatialReference = new JSONObject();
+						spatialReference.put("wkid", 102100);
+						spatialReference.put("latestWkid", 3857);
+						return spatialReference;
+				}
+
+				String getName()
+				{
+						return "web-mercator";
+				}
+		}
+
+}
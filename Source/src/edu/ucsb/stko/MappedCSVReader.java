@@ -0,0 +1,411 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// reads the LBSN csv through a memory-mapped file; only the record id, user id, longitude and latitude columns (and the timestamp
+// column of the windowed mode) are decoded, straight from the bytes into a PointStore, and rows that cannot be read are counted instead of throwing.
+// Quoting follows the usual csv rules: a field may be enclosed in double quotes and "" stands for one quote
+class MappedCSVReader
+{
+		// the file is mapped in windows of at most this many bytes, since a single mapping cannot exceed 2 GB
+		private static final int MAX_WINDOW_SIZE = 1 << 30;
+
+		// a file is not split into byte ranges smaller than this
+		private static final long MIN_RANGE_SIZE = 1 << 20;
+
+		// the rows of a range are counted in this many bytes at its start to size its chunk
+		private static final int ROW_SAMPLE_SIZE = 1 << 16;
+
+		private static final int RECORD_SLOT = 0;
+		private static final int USER_SLOT = 1;
+		private static final int LNG_SLOT = 2;
+		private static final int LAT_SLOT = 3;
+		private static final int TIME_SLOT = 4;
+
+		private final int[] slotColumns;
+		private final boolean keepRecordIds;
+		private final boolean keepTimestamps;
+
+		// the field positions of the current row, per slot; -1 if the row has no such column
+		private final long[] fieldStarts = new long[5];
+		private final long[] fieldEnds = new long[5];
+		private final boolean[] fieldQuoted = new boolean[5];
+
+		private final FastDoubleParser doubleParser = new FastDoubleParser();
+		private final TimestampParser timestampParser = new TimestampParser();
+		private byte[] fieldBytes = new byte[256];
+
+
+		// userIDIndex may be -1 if there are no user ids, and timestampIndex is -1 unless the timestamps are read
+		MappedCSVReader(int recordIDIndex, int userIDIndex, int lngIndex, int latIndex, int timestampIndex, boolean keepRecordIds)
+		{
+				this.slotColumns = new int[]{recordIDIndex, userIDIndex, lngIndex, latIndex, timestampIndex};
+				this.keepRecordIds = keepRecordIds;
+				this.keepTimestamps = (timestampIndex != -1);
+		}
+
+
+		// the records of the whole file, skipping the header row
+		CSVChunk readFile(File inputFile) throws Exception
+		{
+				RandomAccessFile randomAccessFile = new RandomAccessFile(inputFile, "r");
+				try
+				{
+						FileChannel channel = randomAccessFile.getChannel();
+						CSVChunk chunk = new CSVChunk(keepRecordIds, keepTimestamps, estimateRowCount(channel, 0, channel.size()));
+						readRange(channel, 0, channel.size(), true, chunk);
+						return chunk;
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+
+		// the records of the whole file, read as byte ranges on the workers of the pool; each range is aligned to the start of a row
+		// and read into its own chunk, and the chunks are concatenated in file order, so the result is the same as that of readFile(File).
+		// A range boundary is placed after a line break, so the rows must not contain line breaks inside quoted fields
+		CSVChunk readFile(File inputFile, ForkJoinPool pool) throws Exception
+		{
+				RandomAccessFile randomAccessFile = new RandomAccessFile(inputFile, "r");
+				try
+				{
+						final FileChannel channel = randomAccessFile.getChannel();
+						long fileSize = channel.size();
+						int rangeCount = (int)Math.max(1, Math.min(pool.getParallelism() * 4, fileSize / MIN_RANGE_SIZE));
+						if(rangeCount == 1)
+						{
+								CSVChunk chunk = new CSVChunk(keepRecordIds, keepTimestamps, estimateRowCount(channel, 0, fileSize));
+								readRange(channel, 0, fileSize, true, chunk);
+								return chunk;
+						}
+
+						long[] rangeStarts = findRangeStarts(channel, rangeCount);
+						ArrayList<ForkJoinTask<CSVChunk>> rangeTasks = new ArrayList<ForkJoinTask<CSVChunk>>();
+						for(int i=0;i<rangeCount;i++)
+						{
+								final long rangeStart = rangeStarts[i];
+								final long rangeEnd = rangeStarts[i+1];
+								final boolean skipFirstRow = (i == 0);
+								rangeTasks.add(pool.submit(() -> readNewRange(channel, rangeStart, rangeEnd, skipFirstRow)));
+						}
+
+						CSVChunk[] chunks = new CSVChunk[rangeCount];
+						int pointCount = 0;
+						for(int i=0;i<rangeCount;i++)
+						{
+								chunks[i] = rangeTasks.get(i).get();
+								rangeTasks.set(i, null);
+								pointCount += chunks[i].pointStore.size();
+						}
+						return concatenate(chunks, pointCount);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+
+		// the starts of rangeCount byte ranges of about the same size, each aligned to the start of a row, followed by the file size
+		static long[] findRangeStarts(FileChannel channel, int rangeCount) throws Exception
+		{
+				long fileSize = channel.size();
+				long[] rangeStarts = new long[rangeCount + 1];
+				rangeStarts[rangeCount] = fileSize;
+				for(int i=1;i<rangeCount;i++)
+				{
+						rangeStarts[i] = findRowStart(channel, Math.max(rangeStarts[i-1], fileSize / rangeCount * i));
+				}
+				return rangeStarts;
+		}
+
+
+		// the records of one byte range in a chunk of their own; the readers keep the fields of the current row, so every range gets its own reader
+		CSVChunk readNewRange(FileChannel channel, long rangeStart, long rangeEnd, boolean skipFirstRow) throws Exception
+		{
+				MappedCSVReader rangeReader = new MappedCSVReader(slotColumns[RECORD_SLOT], slotColumns[USER_SLOT], slotColumns[LNG_SLOT], slotColumns[LAT_SLOT], slotColumns[TIME_SLOT], keepRecordIds);
+				CSVChunk chunk = new CSVChunk(keepRecordIds, keepTimestamps, estimateRowCount(channel, rangeStart, rangeEnd));
+				rangeReader.readRange(channel, rangeStart, rangeEnd, skipFirstRow, chunk);
+				return chunk;
+		}
+
+
+		// the number of rows of a byte range, estimated from the average length of the rows at its start and a little
+		// rounded up, so that the columns of a chunk rarely need to grow and are not much larger than its rows
+		private static int estimateRowCount(FileChannel channel, long rangeStart, long rangeEnd) throws Exception
+		{
+				ByteBuffer sample = ByteBuffer.allocate((int)Math.min(ROW_SAMPLE_SIZE, rangeEnd - rangeStart));
+				while(sample.hasRemaining())
+				{
+						if(channel.read(sample, rangeStart + sample.position()) <= 0) break;
+				}
+				int lineBreakCount = 0;
+				for(int i=0;i<sample.position();i++)
+				{
+						if(sample.get(i) == '\n') lineBreakCount++;
+				}
+				if(sample.position() == rangeEnd - rangeStart) return lineBreakCount + 1;
+				if(lineBreakCount == 0) return 16;
+				double averageRowLength = sample.position() / (double)lineBreakCount;
+				return (int)Math.min(Integer.MAX_VALUE - 8, (rangeEnd - rangeStart) / averageRowLength * 1.05 + 16);
+		}
+
+
+		// the start of the first row beginning at or after position, i.e. the byte after the next line break
+		private static long findRowStart(FileChannel channel, long position) throws Exception
+		{
+				if(position == 0) return 0;
+
+				long fileSize = channel.size();
+				ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+				long bufferStart = position - 1;
+				while(bufferStart < fileSize)
+				{
+						buffer.clear();
+						int byteCount = channel.read(buffer, bufferStart);
+						if(byteCount <= 0) break;
+						for(int i=0;i<byteCount;i++)
+						{
+								if(buffer.get(i) == '\n') return bufferStart + i + 1;
+						}
+						bufferStart += byteCount;
+				}
+				return fileSize;
+		}
+
+
+		// append the chunks in file order; the user ids of every chunk are renumbered into one dictionary, in the order
+		// the users are first seen in the file, and the record rows are shifted by the rows of the preceding chunks
+		private CSVChunk concatenate(CSVChunk[] chunks, int pointCount)
+		{
+				CSVChunk result = new CSVChunk(keepRecordIds, keepTimestamps, pointCount);
+				for(int i=0;i<chunks.length;i++)
+				{
+						CSVChunk chunk = chunks[i];
+						int[] userIdMap = result.userDictionary.internAll(chunk.userDictionary);
+						result.pointStore.append(chunk.pointStore, userIdMap, (int)result.rowCount);
+						if(keepRecordIds) result.recordIdList.addAll(chunk.recordIdList);
+						if(keepTimestamps) result.timestampList.addAll(chunk.timestampList);
+						result.rowCount += chunk.rowCount;
+						result.rejectedRowCount += chunk.rejectedRowCount;
+						chunks[i] = null;
+				}
+				return result;
+		}
+
+
+		// read the rows that start in [rangeStart, rangeEnd); rangeStart must be the start of a row
+		void readRange(FileChannel channel, long rangeStart, long rangeEnd, boolean skipFirstRow, CSVChunk chunk) throws Exception
+		{
+				long fileSize = channel.size();
+				long rowStart = rangeStart;
+				boolean skipRow = skipFirstRow;
+
+				while(rowStart < rangeEnd)
+				{
+						long windowStart = rowStart;
+						long windowLength = Math.min(MAX_WINDOW_SIZE, fileSize - windowStart);
+						MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+						boolean windowReachesFileEnd = (windowStart + windowLength == fileSize);
+
+						while(rowStart < rangeEnd)
+						{
+								long rowEnd = scanRow(window, windowStart, rowStart, windowStart + windowLength, windowReachesFileEnd);
+								if(rowEnd < 0) break;  // the row continues past this window; map the next one from the row start
+
+								if(skipRow)
+								{
+										skipRow = false;
+								}
+								else
+								{
+										storeRow(window, windowStart, chunk);
+								}
+								rowStart = rowEnd;
+						}
+				}
+		}
+
+
+		// find the fields of the row starting at rowStart and return the start of the next row, or -1 if the row is cut off by the window end
+		private long scanRow(MappedByteBuffer window, long windowStart, long rowStart, long windowEnd, boolean windowReachesFileEnd)
+		{
+				for(int slot=0;slot<slotColumns.length;slot++)
+				{
+						fieldStarts[slot] = -1;
+				}
+
+				int column = 0;
+				long fieldStart = rowStart;
+				boolean inQuotes = false;
+				boolean fieldHasQuotes = false;
+				long position = rowStart;
+				while(true)
+				{
+						if(position == windowEnd)
+						{
+								if(!windowReachesFileEnd) return -1;
+								endField(column, fieldStart, position, fieldHasQuotes);
+								return position;
+						}
+
+						byte b = window.get((int)(position - windowStart));
+						if(b == '"')
+						{
+								inQuotes = !inQuotes;
+								fieldHasQuotes = true;
+						}
+						else if(!inQuotes)
+						{
+								if(b == ',')
+								{
+										endField(column, fieldStart, position, fieldHasQuotes);
+										column++;
+										fieldStart = position + 1;
+										fieldHasQuotes = false;
+								}
+								else if(b == '\n')
+								{
+										long fieldEnd = position;
+										if(fieldEnd > fieldStart && window.get((int)(fieldEnd - 1 - windowStart)) == '\r') fieldEnd--;
+										endField(column, fieldStart, fieldEnd, fieldHasQuotes);
+										return position + 1;
+								}
+						}
+						position++;
+				}
+		}
+
+		private void endField(int column, long fieldStart, long fieldEnd, boolean fieldHasQuotes)
+		{
+				for(int slot=0;slot<slotColumns.length;slot++)
+				{
+						if(slotColumns[slot] == column)
+						{
+								fieldStarts[slot] = fieldStart;
+								fieldEnds[slot] = fieldEnd;
+								fieldQuoted[slot] = fieldHasQuotes;
+						}
+				}
+		}
+
+
+		private void storeRow(MappedByteBuffer window, long windowStart, CSVChunk chunk)
+		{
+				int recordRow = (int)chunk.rowCount;
+				chunk.rowCount++;
+
+				// every row counts for the summary, and its user is known as soon as the user column exists
+				int userId = -1;
+				if(slotColumns[USER_SLOT] != -1 && fieldStarts[USER_SLOT] != -1)
+				{
+						int length = copyField(window, windowStart, USER_SLOT);
+						userId = chunk.userDictionary.intern(fieldBytes, 0, length);
+				}
+
+				boolean isValid = (fieldStarts[RECORD_SLOT] != -1) && (slotColumns[USER_SLOT] == -1 || userId != -1);
+				double lngValue = 0;
+				double latValue = 0;
+				if(isValid)
+				{
+						isValid = doubleParser.parse(fieldBytes, 0, copyField(window, windowStart, LAT_SLOT));
+						latValue = doubleParser.getValue();
+				}
+				if(isValid)
+				{
+						isValid = doubleParser.parse(fieldBytes, 0, copyField(window, windowStart, LNG_SLOT));
+						lngValue = doubleParser.getValue();
+				}
+				if(isValid && keepTimestamps)
+				{
+						isValid = timestampParser.parse(fieldBytes, 0, copyField(window, windowStart, TIME_SLOT));
+				}
+				if(!isValid)
+				{
+						chunk.rejectedRowCount++;
+						return;
+				}
+
+				chunk.pointStore.add(lngValue, latValue, userId, recordRow);
+				if(keepRecordIds)
+				{
+						int length = copyField(window, windowStart, RECORD_SLOT);
+						chunk.recordIdList.add(new String(fieldBytes, 0, length, StandardCharsets.UTF_8));
+				}
+				if(keepTimestamps) chunk.timestampList.add(timestampParser.getValue());
+		}
+
+
+		// copy the content of a field into fieldBytes, removing the enclosing quotes; returns the length, or 0 if the row has no such field
+		private int copyField(MappedByteBuffer window, long windowStart, int slot)
+		{
+				if(fieldStarts[slot] == -1) return 0;
+
+				int start = (int)(fieldStarts[slot] - windowStart);
+				int end = (int)(fieldEnds[slot] - windowStart);
+				if(end - start > fieldBytes.length) fieldBytes = new byte[(end - start) * 2];
+
+				int length = 0;
+				if(!fieldQuoted[slot])
+				{
+						for(int i=start;i<end;i++)
+						{
+								fieldBytes[length++] = window.get(i);
+						}
+						return length;
+				}
+
+				boolean inQuotes = false;
+				for(int i=start;i<end;i++)
+				{
+						byte b = window.get(i);
+						if(b == '"')
+						{
+								if(inQuotes && i + 1 < end && window.get(i + 1) == '"')
+								{
+										fieldBytes[length++] = '"';
+										i++;
+								}
+								else
+								{
+										inQuotes = !inQuotes;
+								}
+						}
+						else
+						{
+								fieldBytes[length++] = b;
+						}
+				}
+				return length;
+		}
+
+
+		// the rows read from (a part of) the input file
+		static class CSVChunk
+		{
+				final PointStore pointStore;
+				final UserDictionary userDictionary = new UserDictionary();
+				final ArrayList<String> recordIdList;
+				final LongList timestampList;
+				long rowCount = 0;
+				long rejectedRowCount = 0;
+
+				CSVChunk(boolean keepRecordIds, boolean keepTimestamps, int initialCapacity)
+				{
+						pointStore = new PointStore(initialCapacity);
+						recordIdList = keepRecordIds ? new ArrayList<String>(initialCapacity) : null;
+						timestampList = keepTimestamps ? new LongList(initialCapacity) : null;
+				}
+		}
+
+}
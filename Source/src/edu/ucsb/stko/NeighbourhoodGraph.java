@@ -0,0 +1,244 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// the eps-neighbourhood of every point in compressed sparse row form: the neighbours of point i are
+// neighbours[offsets[i]] ... neighbours[offsets[i+1]-1], in the order the grid index returns them. The region queries,
+// which are the expensive part of DBSCAN, are run once when the graph is built; clustering it with any minPts is then
+// a single linear pass. The graph can be saved in tempPath and is reused by later runs on the same points and eps
+class NeighbourhoodGraph
+{
+		private static final long MAGIC = 0x4442534E47524631L;
+		private static final int VERSION = 1;
+		private static final int HEADER_SIZE = 64;
+
+		// the points are queried in blocks of this size, whose neighbours are collected separately and then concatenated
+		private static final int BLOCK_SIZE = 4096;
+
+		private final double eps;
+		private final int[] offsets;
+		private final int[] neighbours;
+
+
+		private NeighbourhoodGraph(double eps, int[] offsets, int[] neighbours)
+		{
+				this.eps = eps;
+				this.offsets = offsets;
+				this.neighbours = neighbours;
+		}
+
+
+		// query the neighbours within eps of every point of the grid index; if isIncluded is not null, the other points are left out
+		// of the graph as if they had been removed, and have no neighbours themselves
+		static NeighbourhoodGraph build(GridIndex gridIndex, double eps, boolean[] isIncluded, ForkJoinPool pool) throws Exception
+		{
+				int pointCount = gridIndex.getPointCount();
+				int blockCount = (pointCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+				int[] offsets = new int[pointCount + 1];
+
+				ArrayList<ForkJoinTask<IntList>> blockTasks = new ArrayList<ForkJoinTask<IntList>>(blockCount);
+				for(int b=0;b<blockCount;b++)
+				{
+						final int blockStart = b * BLOCK_SIZE;
+						final int blockEnd = Math.min(pointCount, blockStart + BLOCK_SIZE);
+						blockTasks.add(pool.submit(() -> queryBlock(gridIndex, eps, isIncluded, blockStart, blockEnd, offsets)));
+				}
+
+				// the degrees are stored in offsets[i+1] by the blocks, and turned into offsets once all the blocks are done
+				IntList[] blockNeighbours = new IntList[blockCount];
+				long edgeCount = 0;
+				for(int b=0;b<blockCount;b++)
+				{
+						blockNeighbours[b] = blockTasks.get(b).get();
+						edgeCount += blockNeighbours[b].size();
+				}
+				if(edgeCount > Integer.MAX_VALUE - 8) throw new Exception("The neighbourhood graph for eps "+eps+" has too many edges to be stored");
+				for(int i=0;i<pointCount;i++)
+				{
+						offsets[i+1] += offsets[i];
+				}
+
+				int[] neighbours = new int[(int)edgeCount];
+				for(int b=0;b<blockCount;b++)
+				{
+						int[] blockValues = blockNeighbours[b].toArray();
+						System.arraycopy(blockValues, 0, neighbours, offsets[b * BLOCK_SIZE], blockValues.length);
+						blockNeighbours[b] = null;
+				}
+				return new NeighbourhoodGraph(eps, offsets, neighbours);
+		}
+
+		private static IntList queryBlock(GridIndex gridIndex, double eps, boolean[] isIncluded, int blockStart, int blockEnd, int[] offsets)
+		{
+				IntList blockNeighbours = new IntList(BLOCK_SIZE * 4);
+				IntList candidates = new IntList();
+				for(int i=blockStart;i<blockEnd;i++)
+				{
+						if(isIncluded != null && !isIncluded[i]) continue;
+
+						gridIndex.queryNeighbours(i, eps, candidates);
+						int degree = 0;
+						for(int n=0;n<candidates.size();n++)
+						{
+								int candidate = candidates.get(n);
+								if(isIncluded != null && !isIncluded[candidate]) continue;
+								blockNeighbours.add(candidate);
+								degree++;
+						}
+						offsets[i+1] = degree;
+				}
+				return blockNeighbours;
+		}
+
+
+		// DBSCAN over the graph: the core points are the points with at least minPts neighbours, the clusters are numbered in the order
+		// of their first core point, and a border point belongs to the first cluster that reaches it, as in GridDBSCANClusterer
+		DBSCANResult cluster(int minPts)
+		{
+				int pointCount = offsets.length - 1;
+				int[] clusterIds = new int[pointCount];
+				byte[] pointTypes = new byte[pointCount];
+				for(int i=0;i<pointCount;i++)
+				{
+						clusterIds[i] = DBSCANResult.NOISE;
+						if(offsets[i+1] - offsets[i] >= minPts) pointTypes[i] = DBSCANResult.CORE_POINT;
+				}
+
+				// grow each cluster from its first core point through the connected core points
+				int clusterCount = 0;
+				IntList corePoints = new IntList();
+				for(int i=0;i<pointCount;i++)
+				{
+						if(pointTypes[i] != DBSCANResult.CORE_POINT || clusterIds[i] != DBSCANResult.NOISE) continue;
+
+						int clusterId = clusterCount++;
+						clusterIds[i] = clusterId;
+						corePoints.clear();
+						corePoints.add(i);
+						for(int c=0;c<corePoints.size();c++)
+						{
+								int corePoint = corePoints.get(c);
+								for(int n=offsets[corePoint];n<offsets[corePoint+1];n++)
+								{
+										int neighbour = neighbours[n];
+										if(clusterIds[neighbour] != DBSCANResult.NOISE) continue;
+
+										clusterIds[neighbour] = clusterId;
+										if(pointTypes[neighbour] == DBSCANResult.CORE_POINT)
+												corePoints.add(neighbour);
+										else
+												pointTypes[neighbour] = DBSCANResult.BORDER_POINT;
+								}
+						}
+				}
+
+				return new DBSCANResult(clusterIds, pointTypes, clusterCount);
+		}
+
+
+		int getPointCount()
+		{
+				return offsets.length - 1;
+		}
+
+		long getEdgeCount()
+		{
+				return neighbours.length;
+		}
+
+
+		// write the graph for the points with the given coordinates; the coordinates are only stored as a checksum
+		void save(File graphFile, double[] xCoords, double[] yCoords) throws Exception
+		{
+				int pointCount = getPointCount();
+				File partialFile = new File(graphFile.getPath()+".part");
+				RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw");
+				try
+				{
+						randomAccessFile.setLength(0);
+						FileChannel channel = randomAccessFile.getChannel();
+						ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+						buffer.putLong(MAGIC).putInt(VERSION).putInt(0);
+						buffer.putDouble(eps);
+						buffer.putInt(pointCount).putInt(neighbours.length);
+						buffer.putLong(coordinateChecksum(xCoords, yCoords, pointCount));
+						buffer.position(HEADER_SIZE);
+						DatasetCache.writeBuffer(channel, buffer);
+
+						for(int i=0;i<=pointCount;i++)
+						{
+								if(buffer.remaining() < 4) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putInt(offsets[i]);
+						}
+						for(int n=0;n<neighbours.length;n++)
+						{
+								if(buffer.remaining() < 4) DatasetCache.writeBuffer(channel, buffer);
+								buffer.putInt(neighbours[n]);
+						}
+						DatasetCache.writeBuffer(channel, buffer);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+
+				if(graphFile.exists()) graphFile.delete();
+				if(!partialFile.renameTo(graphFile)) throw new Exception("The neighbourhood graph "+graphFile.getPath()+" could not be written");
+		}
+
+
+		// the saved graph, or null if there is none for exactly these points and this eps
+		static NeighbourhoodGraph load(File graphFile, double eps, double[] xCoords, double[] yCoords, int pointCount) throws Exception
+		{
+				if(!graphFile.exists()) return null;
+
+				RandomAccessFile randomAccessFile = new RandomAccessFile(graphFile, "r");
+				try
+				{
+						FileChannel channel = randomAccessFile.getChannel();
+						if(channel.size() < HEADER_SIZE) return null;
+						ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+						channel.read(header, 0);
+						header.flip();
+
+						if(header.getLong() != MAGIC || header.getInt() != VERSION) return null;
+						header.getInt();
+						if(Double.compare(header.getDouble(), eps) != 0 || header.getInt() != pointCount) return null;
+						int edgeCount = header.getInt();
+						if(header.getLong() != coordinateChecksum(xCoords, yCoords, pointCount)) return null;
+						if(channel.size() != HEADER_SIZE + 4L * (pointCount + 1) + 4L * edgeCount) return null;
+
+						int[] offsets = new int[pointCount + 1];
+						int[] neighbours = new int[edgeCount];
+						DatasetCache.readInts(channel, HEADER_SIZE, offsets, 0, pointCount + 1);
+						DatasetCache.readInts(channel, HEADER_SIZE + 4L * (pointCount + 1), neighbours, 0, edgeCount);
+						return new NeighbourhoodGraph(eps, offsets, neighbours);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+
+		// a hash of the coordinates, so that a saved graph (or OPTICS ordering) is only used for the points it was built from
+		static long coordinateChecksum(double[] xCoords, double[] yCoords, int pointCount)
+		{
+				long checksum = pointCount;
+				for(int i=0;i<pointCount;i++)
+				{
+						checksum = (checksum ^ Double.doubleToLongBits(xCoords[i])) * 0x9E3779B97F4A7C15L;
+						checksum = (checksum ^ Double.doubleToLongBits(yCoords[i])) * 0x9E3779B97F4A7C15L;
+						checksum ^= (checksum >>> 29);
+				}
+				return checksum;
+		}
+
+}
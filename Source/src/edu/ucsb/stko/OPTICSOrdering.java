@@ -0,0 +1,334 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// the OPTICS ordering of a set of points (Ankerst et al., 1999) for one minPts and an upper bound of eps. Each point gets a core
+// distance (the distance to its minPts-th neighbour, not counting the point itself, if that is within the bound) and a reachability
+// distance from the points before it in the ordering; the DBSCAN clusters of any eps up to the bound are then read off the ordering
+// in a single pass, without any region query. The ordering can be saved in tempPath and is reused by later runs on the same points
+class OPTICSOrdering
+{
+		private static final long MAGIC = 0x4442534E4F505431L;
+		private static final int VERSION = 1;
+		private static final int HEADER_SIZE = 64;
+
+		// "no distance within the bound"
+		private static final double UNDEFINED = Double.POSITIVE_INFINITY;
+
+		private final double maxEps;
+		private final int minPts;
+
+		// the points in the order of OPTICS, and for each position their core distance and reachability distance; a point that ends up
+		// as noise for some eps may still be a border point of a core point that comes later in the ordering, so the smallest
+		// reachability from the later points and the point giving it are kept as well (-1 if there is none)
+		private final int[] orderedPoints;
+		private final double[] coreDistances;
+		private final double[] reachabilities;
+		private final double[] laterReachabilities;
+		private final int[] laterReachingPoints;
+
+
+		private OPTICSOrdering(double maxEps, int minPts, int[] orderedPoints, double[] coreDistances, double[] reachabilities, double[] laterReachabilities, int[] laterReachingPoints)
+		{
+				this.maxEps = maxEps;
+				this.minPts = minPts;
+				this.orderedPoints = orderedPoints;
+				this.coreDistances = coreDistances;
+				this.reachabilities = reachabilities;
+				this.laterReachabilities = laterReachabilities;
+				this.laterReachingPoints = laterReachingPoints;
+		}
+
+
+		// order the points of the grid index, whose cells must be at least maxEps wide; the core distances need one region query per
+		// point and are found on the pool, the ordering itself is sequential and queries the core points once more
+		static OPTICSOrdering build(GridIndex gridIndex, double[] xCoords, double[] yCoords, double maxEps, int minPts, ForkJoinPool pool)
+		{
+				final int pointCount = gridIndex.getPointCount();
+				final double[] pointCoreDistances = new double[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList neighbours = new IntList();
+						double[] neighbourDistances = new double[64];
+						for(int i=start;i<end;i++)
+						{
+								gridIndex.queryNeighbours(i, maxEps, neighbours);
+								int neighbourCount = neighbours.size();
+								if(neighbourCount < minPts)
+								{
+										pointCoreDistances[i] = UNDEFINED;
+										continue;
+								}
+								if(neighbourDistances.length < neighbourCount) neighbourDistances = new double[Math.max(neighbourCount, neighbourDistances.length * 2)];
+								for(int n=0;n<neighbourCount;n++)
+								{
+										neighbourDistances[n] = distance(xCoords, yCoords, i, neighbours.get(n));
+								}
+								pointCoreDistances[i] = select(neighbourDistances, neighbourCount, minPts - 1);
+						}
+				});
+
+				int[] orderedPoints = new int[pointCount];
+				double[] coreDistances = new double[pointCount];
+				double[] reachabilities = new double[pointCount];
+				double[] laterReachabilities = new double[pointCount];
+				int[] laterReachingPoints = new int[pointCount];
+
+				// the smallest reachability found so far for each point, and for the points already ordered their position
+				double[] pointReachabilities = new double[pointCount];
+				Arrays.fill(pointReachabilities, UNDEFINED);
+				int[] pointPositions = new int[pointCount];
+				Arrays.fill(pointPositions, -1);
+
+				// the seed list: a point is added again whenever its reachability drops, and the outdated entries are skipped when they come out
+				DoubleIntHeap seeds = new DoubleIntHeap(1024);
+				IntList neighbours = new IntList();
+				int position = 0;
+				for(int start=0;start<pointCount;start++)
+				{
+						if(pointPositions[start] != -1) continue;
+						seeds.add(UNDEFINED, start);
+						while(!seeds.isEmpty())
+						{
+								int point = seeds.poll();
+								if(pointPositions[point] != -1) continue;
+
+								pointPositions[point] = position;
+								orderedPoints[position] = point;
+								coreDistances[position] = pointCoreDistances[point];
+								reachabilities[position] = pointReachabilities[point];
+								laterReachabilities[position] = UNDEFINED;
+								laterReachingPoints[position] = -1;
+								position++;
+
+								double coreDistance = pointCoreDistances[point];
+								if(coreDistance == UNDEFINED) continue;
+
+								gridIndex.queryNeighbours(point, maxEps, neighbours);
+								for(int n=0;n<neighbours.size();n++)
+								{
+										int neighbour = neighbours.get(n);
+										double reachability = Math.max(coreDistance, distance(xCoords, yCoords, point, neighbour));
+										int neighbourPosition = pointPositions[neighbour];
+										if(neighbourPosition == -1)
+										{
+												if(reachability < pointReachabilities[neighbour])
+												{
+														pointReachabilities[neighbour] = reachability;
+														seeds.add(reachability, neighbour);
+												}
+										}
+										else if(reachability < laterReachabilities[neighbourPosition])
+										{
+												laterReachabilities[neighbourPosition] = reachability;
+												laterReachingPoints[neighbourPosition] = point;
+										}
+								}
+						}
+				}
+				return new OPTICSOrdering(maxEps, minPts, orderedPoints, coreDistances, reachabilities, laterReachabilities, laterReachingPoints);
+		}
+
+
+		// the DBSCAN clusters for an eps up to maxEps: a point starts a new cluster if it is not reachable within eps from the points before
+		// it but is a core point itself, and joins the current cluster if it is reachable. The core points and the noise are exactly those
+		// of DBSCAN, and the clusters are numbered in the order of their first core point as in GridDBSCANClusterer; a border point within
+		// eps of more than two clusters may still be given to another cluster than the one DBSCAN chooses
+		DBSCANResult extractClusters(double eps)
+		{
+				int pointCount = orderedPoints.length;
+				int[] clusterIds = new int[pointCount];
+				byte[] pointTypes = new byte[pointCount];
+				Arrays.fill(clusterIds, DBSCANResult.NOISE);
+
+				int clusterCount = 0;
+				int currentCluster = DBSCANResult.NOISE;
+				for(int position=0;position<pointCount;position++)
+				{
+						int point = orderedPoints[position];
+						boolean isCore = coreDistances[position] <= eps;
+						if(reachabilities[position] > eps)
+						{
+								if(!isCore) continue;
+								currentCluster = clusterCount++;
+						}
+						clusterIds[point] = currentCluster;
+						pointTypes[point] = isCore ? DBSCANResult.CORE_POINT : DBSCANResult.BORDER_POINT;
+				}
+
+				// number the clusters by their first core point
+				int[] clusterNumbers = new int[clusterCount];
+				Arrays.fill(clusterNumbers, -1);
+				int numberedClusterCount = 0;
+				for(int i=0;i<pointCount;i++)
+				{
+						if(pointTypes[i] == DBSCANResult.CORE_POINT && clusterNumbers[clusterIds[i]] == -1) clusterNumbers[clusterIds[i]] = numberedClusterCount++;
+				}
+				for(int i=0;i<pointCount;i++)
+				{
+						if(clusterIds[i] != DBSCANResult.NOISE) clusterIds[i] = clusterNumbers[clusterIds[i]];
+				}
+				
+				// the border points reached by a core point later in the ordering, which were noise so far or belong to a cluster with a larger
+				// number; DBSCAN gives a border point to the cluster with the smallest number among those within eps
+				for(int position=0;position<pointCount;position++)
+				{
+						int point = orderedPoints[position];
+						if(pointTypes[point] == DBSCANResult.CORE_POINT || !(laterReachabilities[position] <= eps)) continue;
+						int laterCluster = clusterIds[laterReachingPoints[position]];
+						if(clusterIds[point] == DBSCANResult.NOISE || laterCluster < clusterIds[point])
+						{
+								clusterIds[point] = laterCluster;
+								pointTypes[point] = DBSCANResult.BORDER_POINT;
+						}
+				}
+				return new DBSCANResult(clusterIds, pointTypes, clusterCount);
+		}
+
+
+		double getMaxEps()
+		{
+				return maxEps;
+		}
+
+		int getMinPts()
+		{
+				return minPts;
+		}
+
+		int getPointCount()
+		{
+				return orderedPoints.length;
+		}
+
+
+		private static double distance(double[] xCoords, double[] yCoords, int a, int b)
+		{
+				double dx = xCoords[b] - xCoords[a];
+				double dy = yCoords[b] - yCoords[a];
+				return Math.sqrt(dx*dx + dy*dy);
+		}
+
+		// quickselect: the value of rank k among the first count values, which are reordered
+		private static double select(double[] values, int count, int k)
+		{
+				int left = 0;
+				int right = count - 1;
+				while(right > left)
+				{
+						double pivot = values[(left + right) >>> 1];
+						int i = left;
+						int j = right;
+						while(i <= j)
+						{
+								while(values[i] < pivot) i++;
+								while(values[j] > pivot) j--;
+								if(i <= j)
+								{
+										double swap = values[i];
+										values[i] = values[j];
+										values[j] = swap;
+										i++;
+										j--;
+								}
+						}
+						if(k <= j) right = j;
+						else if(k >= i) left = i;
+						else break;
+				}
+				return values[k];
+		}
+
+
+		// write the ordering for the points with the given coordinates; the coordinates are only stored as a checksum
+		void save(File orderingFile, double[] xCoords, double[] yCoords) throws Exception
+		{
+				int pointCount = getPointCount();
+				File partialFile = new File(orderingFile.getPath()+".part");
+				RandomAccessFile randomAccessFile = new RandomAccessFile(partialFile, "rw");
+				try
+				{
+						randomAccessFile.setLength(0);
+						FileChannel channel = randomAccessFile.getChannel();
+						ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+
+						buffer.putLong(MAGIC).putInt(VERSION).putInt(0);
+						buffer.putDouble(maxEps);
+						buffer.putInt(minPts).putInt(pointCount);
+						buffer.putLong(NeighbourhoodGraph.coordinateChecksum(xCoords, yCoords, pointCount));
+						buffer.position(HEADER_SIZE);
+						DatasetCache.writeBuffer(channel, buffer);
+
+						for(int[] values : new int[][]{orderedPoints, laterReachingPoints})
+						{
+								for(int p=0;p<pointCount;p++)
+								{
+										if(buffer.remaining() < 4) DatasetCache.writeBuffer(channel, buffer);
+										buffer.putInt(values[p]);
+								}
+						}
+						for(double[] values : new double[][]{coreDistances, reachabilities, laterReachabilities})
+						{
+								for(int p=0;p<pointCount;p++)
+								{
+										if(buffer.remaining() < 8) DatasetCache.writeBuffer(channel, buffer);
+										buffer.putDouble(values[p]);
+								}
+						}
+						DatasetCache.writeBuffer(channel, buffer);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+
+				if(orderingFile.exists()) orderingFile.delete();
+				if(!partialFile.renameTo(orderingFile)) throw new Exception("The OPTICS ordering "+orderingFile.getPath()+" could not be written");
+		}
+
+
+		// the saved ordering, or null if there is none for exactly these points and minPts with a bound of at least maxEps
+		static OPTICSOrdering load(File orderingFile, double maxEps, int minPts, double[] xCoords, double[] yCoords, int pointCount) throws Exception
+		{
+				if(!orderingFile.exists()) return null;
+
+				RandomAccessFile randomAccessFile = new RandomAccessFile(orderingFile, "r");
+				try
+				{
+						FileChannel channel = randomAccessFile.getChannel();
+						if(channel.size() != HEADER_SIZE + 32L * pointCount) return null;
+						ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+						channel.read(header, 0);
+						header.flip();
+
+						if(header.getLong() != MAGIC || header.getInt() != VERSION) return null;
+						header.getInt();
+						double savedMaxEps = header.getDouble();
+						if(!(savedMaxEps >= maxEps) || header.getInt() != minPts || header.getInt() != pointCount) return null;
+						if(header.getLong() != NeighbourhoodGraph.coordinateChecksum(xCoords, yCoords, pointCount)) return null;
+
+						int[] orderedPoints = new int[pointCount];
+						int[] laterReachingPoints = new int[pointCount];
+						double[] coreDistances = new double[pointCount];
+						double[] reachabilities = new double[pointCount];
+						double[] laterReachabilities = new double[pointCount];
+						long offset = HEADER_SIZE;
+						DatasetCache.readInts(channel, offset, orderedPoints, 0, pointCount);
+						DatasetCache.readInts(channel, offset += 4L * pointCount, laterReachingPoints, 0, pointCount);
+						DatasetCache.readDoubles(channel, offset += 4L * pointCount, coreDistances, 0, pointCount);
+						DatasetCache.readDoubles(channel, offset += 8L * pointCount, reachabilities, 0, pointCount);
+						DatasetCache.readDoubles(channel, offset += 8L * pointCount, laterReachabilities, 0, pointCount);
+						return new OPTICSOrdering(savedMaxEps, minPts, orderedPoints, coreDistances, reachabilities, laterReachabilities, laterReachingPoints);
+				}
+				finally
+				{
+						randomAccessFile.close();
+				}
+		}
+
+}
@@ -0,0 +1,154 @@
+package edu.ucsb.stko;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// DBSCAN on a fork-join pool: the core points are found in parallel, connected core points are merged with a
+// concurrent union-find, and every border point joins the earliest cluster among its core neighbours.
+// The root of a union-find tree is always its smallest point index, which is the point the sequential engine
+// starts the cluster from, so the clusters and their numbering are the same as GridDBSCANClusterer for any thread count
+class ParallelDBSCANClusterer
+{
+		private final double eps;
+		private final int minPts;
+		private final ForkJoinPool pool;
+		private final boolean isGeodesic;
+
+
+		ParallelDBSCANClusterer(double eps, int minPts, ForkJoinPool pool)
+		{
+				this(eps, minPts, pool, false);
+		}
+
+		// in the geodesic mode eps is in metres and the points are longitudes and latitudes
+		ParallelDBSCANClusterer(double eps, int minPts, ForkJoinPool pool, boolean isGeodesic)
+		{
+				this.eps = eps;
+				this.minPts = minPts;
+				this.pool = pool;
+				this.isGeodesic = isGeodesic;
+		}
+
+
+		DBSCANResult cluster(double[] xCoords, double[] yCoords, int pointCount)
+		{
+				return cluster(GridIndex.create(xCoords, yCoords, pointCount, eps, isGeodesic));
+		}
+
+
+		// cluster the points of an existing grid index, which may have any cell size
+		DBSCANResult cluster(final GridIndex gridIndex)
+		{
+				final int pointCount = gridIndex.getPointCount();
+				final byte[] pointTypes = new byte[pointCount];
+				final int[] clusterIds = new int[pointCount];
+				final AtomicIntegerArray parent = new AtomicIntegerArray(pointCount);
+
+				// step 1: find the core points
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList neighbours = new IntList();
+						for(int i=start;i<end;i++)
+						{
+								parent.set(i, i);
+								gridIndex.queryNeighbours(i, eps, neighbours);
+								if(neighbours.size() >= minPts) pointTypes[i] = DBSCANResult.CORE_POINT;
+						}
+				});
+
+				// step 2: merge the core points that are within eps of each other
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList neighbours = new IntList();
+						for(int i=start;i<end;i++)
+						{
+								if(pointTypes[i] != DBSCANResult.CORE_POINT) continue;
+
+								gridIndex.queryNeighbours(i, eps, neighbours);
+								for(int n=0;n<neighbours.size();n++)
+								{
+										int neighbour = neighbours.get(n);
+										if(neighbour < i && pointTypes[neighbour] == DBSCANResult.CORE_POINT) union(parent, i, neighbour);
+								}
+						}
+				});
+
+				// step 3: number the clusters in the order of their first core point
+				int clusterCount = 0;
+				for(int i=0;i<pointCount;i++)
+				{
+						clusterIds[i] = DBSCANResult.NOISE;
+						if(pointTypes[i] == DBSCANResult.CORE_POINT && parent.get(i) == i) clusterIds[i] = clusterCount++;
+				}
+
+				// step 4: label the remaining core points from their roots, and attach the border points
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList neighbours = new IntList();
+						for(int i=start;i<end;i++)
+						{
+								if(pointTypes[i] == DBSCANResult.CORE_POINT)
+								{
+										int root = find(parent, i);
+										if(root != i) clusterIds[i] = clusterIds[root];
+										continue;
+								}
+
+								gridIndex.queryNeighbours(i, eps, neighbours);
+								int earliestRoot = Integer.MAX_VALUE;
+								for(int n=0;n<neighbours.size();n++)
+								{
+										int neighbour = neighbours.get(n);
+										if(pointTypes[neighbour] == DBSCANResult.CORE_POINT)
+										{
+												int root = find(parent, neighbour);
+												if(root < earliestRoot) earliestRoot = root;
+										}
+								}
+								if(earliestRoot != Integer.MAX_VALUE)
+								{
+										pointTypes[i] = DBSCANResult.BORDER_POINT;
+										clusterIds[i] = clusterIds[earliestRoot];
+								}
+						}
+				});
+
+				return new DBSCANResult(clusterIds, pointTypes, clusterCount);
+		}
+
+
+		private static int find(AtomicIntegerArray parent, int point)
+		{
+				while(true)
+				{
+						int pointParent = parent.get(point);
+						if(pointParent == point) return point;
+
+						// path halving
+						int grandParent = parent.get(pointParent);
+						if(pointParent != grandParent) parent.compareAndSet(point, pointParent, grandParent);
+						point = pointParent;
+				}
+		}
+
+
+		// always hang the larger root below the smaller one, so that every root is the smallest index of its tree
+		private static void union(AtomicIntegerArray parent, int pointA, int pointB)
+		{
+				while(true)
+				{
+						int rootA = find(parent, pointA);
+						int rootB = find(parent, pointB);
+						if(rootA == rootB) return;
+
+						if(rootA < rootB)
+						{
+								int swap = rootA;
+								rootA = rootB;
+								rootB = swap;
+						}
+						if(parent.compareAndSet(rootA, rootA, rootB)) return;
+				}
+		}
+
+}
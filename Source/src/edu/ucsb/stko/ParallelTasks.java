@@ -0,0 +1,100 @@
+package edu.ucsb.stko;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.json.JSONObject;
+
+// helpers for running loops over index ranges on a fork-join pool
+class ParallelTasks
+{
+		// ranges smaller than this are not split further
+		private static final int MIN_CHUNK_SIZE = 1024;
+
+		interface RangeBody
+		{
+				void run(int start, int end) throws Exception;
+		}
+
+
+		// the "threads" parameter; 0 (or a negative value) means all the available cores, and it defaults to 1
+		static int getThreadCount(JSONObject parameterObject)
+		{
+				int threadCount = parameterObject.optInt("threads", 1);
+				if(threadCount <= 0) threadCount = Runtime.getRuntime().availableProcessors();
+				return threadCount;
+		}
+
+
+		// run body over [0, count) split into chunks; the chunks are executed by the workers of the pool
+		static void forRange(ForkJoinPool pool, int count, RangeBody body)
+		{
+				if(count == 0) return;
+				int chunkSize = Math.max(MIN_CHUNK_SIZE, count / (pool.getParallelism() * 8));
+				pool.invoke(new RangeTask(body, 0, count, chunkSize));
+		}
+
+
+		// run body over [0, count) split into chunkCount fixed chunks of about the same size, each one a task of its own; unlike forRange,
+		// the chunks are the same for every call with the same count and chunkCount, so that one call can use what another wrote per chunk
+		static void forChunks(ForkJoinPool pool, final int count, final int chunkCount, final ChunkBody body)
+		{
+				if(count == 0) return;
+				pool.invoke(new RangeTask((first, last) ->
+				{
+						for(int c=first;c<last;c++)
+						{
+								body.run(c, (int)((long)count * c / chunkCount), (int)((long)count * (c + 1) / chunkCount));
+						}
+				}, 0, chunkCount, 1));
+		}
+
+		interface ChunkBody
+		{
+				void run(int chunk, int start, int end) throws Exception;
+		}
+
+
+		private static class RangeTask extends RecursiveAction
+		{
+				private static final long serialVersionUID = 1L;
+
+				private final RangeBody body;
+				private final int start;
+				private final int end;
+				private final int chunkSize;
+
+				RangeTask(RangeBody body, int start, int end, int chunkSize)
+				{
+						this.body = body;
+						this.start = start;
+						this.end = end;
+						this.chunkSize = chunkSize;
+				}
+
+				@Override
+				protected void compute()
+				{
+						if(end - start <= chunkSize)
+						{
+								try
+								{
+										body.run(start, end);
+								}
+								catch (RuntimeException e)
+								{
+										throw e;
+								}
+								catch (Exception e)
+								{
+										throw new RuntimeException(e);
+								}
+								return;
+						}
+
+						int middle = (start + end) >>> 1;
+						invokeAll(new RangeTask(body, start, middle, chunkSize), new RangeTask(body, middle, end, chunkSize));
+				}
+		}
+
+}
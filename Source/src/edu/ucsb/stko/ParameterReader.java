@@ -76,12 +76,124 @@ class ParameterReader
 								return null;
 						}
 						
+						double eps = parameterObject.optDouble("eps", Double.NaN);
+						if(!(eps > 0) || Double.isInfinite(eps))
+						{
+								System.out.println("The eps should be a positive number; please check the configuration file.");
+								return null;
+						}
+						
+						String dbscanEngine = parameterObject.optString("dbscanEngine", "grid");
+						if(!dbscanEngine.equals("grid") && !dbscanEngine.equals("commons-math") && !dbscanEngine.equals("optics") && !dbscanEngine.equals("hdbscan"))
+						{
+								System.out.println("The dbscanEngine should be \"grid\", \"commons-math\", \"optics\" or \"hdbscan\"; please check the configuration file.");
+								return null;
+						}
+						
+						if(getClusterEpsValues(parameterObject) == null)
+						{
+								System.out.println("The opticsEps should be empty or a list of different positive eps values, such as \"1000,2000,3000\"; please check the configuration file.");
+								return null;
+						}
+						
+						if(getOpticsMaxEps(parameterObject) < 0)
+						{
+								System.out.println("The opticsMaxEps should be 0 (use the largest eps) or at least as large as eps and every value of opticsEps; please check the configuration file.");
+								return null;
+						}
+						
+						if(parameterObject.optBoolean("incrementalMode", false) && (!dbscanEngine.equals("grid") || isParameterSweep(parameterObject) || parameterObject.optBoolean("kDistanceAnalysis", false)))
+						{
+								System.out.println("The incrementalMode keeps the clusters of the grid engine, so it needs the \"grid\" dbscanEngine and cannot be combined with a parameter sweep or the kDistanceAnalysis; please check the configuration file.");
+								return null;
+						}
+						
+						if(isWindowedMode(parameterObject) && (parameterObject.optInt("timestampIndex", -1) < 0 || !(parameterObject.optDouble("timeWindowStepDays", 7) > 0)))
+						{
+								System.out.println("The windowed mode needs the column number of the timestamps in timestampIndex and a positive timeWindowStepDays; please check the configuration file.");
+								return null;
+						}
+						
+						if(isWindowedMode(parameterObject) && (!dbscanEngine.equals("grid") || isParameterSweep(parameterObject) || parameterObject.optBoolean("kDistanceAnalysis", false) || parameterObject.optBoolean("incrementalMode", false)))
+						{
+								System.out.println("The windowed mode updates the clusters of the grid engine from one window to the next, so it needs the \"grid\" dbscanEngine and cannot be combined with a parameter sweep, the kDistanceAnalysis or the incrementalMode; please check the configuration file.");
+								return null;
+						}
+						
+						if(parameterObject.optBoolean("geodesicEps", false) && (!dbscanEngine.equals("grid") || parameterObject.optBoolean("kDistanceAnalysis", false)))
+						{
+								System.out.println("The geodesicEps is supported by the \"grid\" dbscanEngine, whose neighbour search measures the distances on the sphere, and cannot be combined with the kDistanceAnalysis; please check the configuration file.");
+								return null;
+						}
+						
+						String projection = parameterObject.optString("projection", "").trim();
+						if(!projection.isEmpty() && MapProjection.create(projection, 0, 0) == null)
+						{
+								System.out.println("The projection should be empty, \"albers-california\", \"albers-conus\", \"albers:<central meridian>,<latitude of origin>,<standard parallel 1>,<standard parallel 2>[,<false easting>,<false northing>]\", \"utm\", \"utm:<zone>N\" (or S) or \"web-mercator\"; please check the configuration file.");
+								return null;
+						}
+						
+						if(!projection.isEmpty() && parameterObject.optBoolean("geodesicEps", false))
+						{
+								System.out.println("The geodesicEps works on longitudes and latitudes, so it cannot be combined with a projection; please check the configuration file.");
+								return null;
+						}
+						
+						if(parameterObject.optBoolean("tiledMode", false) && !(parameterObject.optDouble("tileSize", 0) >= 4 * eps))
+						{
+								System.out.println("The tiledMode needs a tileSize of at least 4 times eps, in the unit of the coordinates (or of the projection); please check the configuration file.");
+								return null;
+						}
+						
+						if(parameterObject.optBoolean("tiledMode", false) && (!dbscanEngine.equals("grid") || isParameterSweep(parameterObject) || parameterObject.optBoolean("kDistanceAnalysis", false) || parameterObject.optBoolean("incrementalMode", false) || isWindowedMode(parameterObject) || parameterObject.optBoolean("geodesicEps", false)))
+						{
+								System.out.println("The tiledMode clusters the tiles with the \"grid\" dbscanEngine, so it cannot be combined with another engine, a parameter sweep, the kDistanceAnalysis, the incrementalMode, the windowed mode or the geodesicEps; please check the configuration file.");
+								return null;
+						}
+						
+						String concaveHullEngine = parameterObject.optString("concaveHullEngine", "chi-shape");
+						if(!concaveHullEngine.equals("chi-shape") && !concaveHullEngine.equals("opensphere"))
+						{
+								System.out.println("The concaveHullEngine should be either \"chi-shape\" or \"opensphere\"; please check the configuration file.");
+								return null;
+						}
+						
+						if(parameterObject.has("threads") && (parameterObject.getInt("threads") < 0))
+						{
+								System.out.println("The number of threads should be 0 (use all processor cores) or a positive number; please check the configuration file.");
+								return null;
+						}
+						
+						if(getBoundingBox(parameterObject) == null && parameterObject.optString("boundingBox", "").trim().length() != 0)
+						{
+								System.out.println("The boundingBox should be empty or four numbers \"minX,minY,maxX,maxY\" with minX <= maxX and minY <= maxY; please check the configuration file.");
+								return null;
+						}
+						
 						if(parameterObject.isNull("lambda") || (parameterObject.getDouble("lambda")<1) || (parameterObject.getDouble("lambda")>100))
 						{
 								System.out.println("The lambda value for the concave hull should be between 1 and 100; please check the configuration file.");
 								return null;
 						}
 						
+						if(getLambdaValues(parameterObject) == null)
+						{
+								System.out.println("The lambdaSweep should be empty or a list of different lambda values between 1 and 100, such as \"10,20,30\"; please check the configuration file.");
+								return null;
+						}
+						
+						if(getEpsValues(parameterObject) == null)
+						{
+								System.out.println("The epsSweep should be empty or a list of different positive eps values, such as \"1000,2000,3000\"; please check the configuration file.");
+								return null;
+						}
+						
+						if(getMinPtsValues(parameterObject) == null)
+						{
+								System.out.println("The minPtsSweep should be empty or a list of different minPts values, which are percentages between 0 and 1 if minPtsPercentage is true, or absolute values of at least 1 otherwise; please check the configuration file.");
+								return null;
+						}
+						
 						if(parameterObject.isNull("spatialReference"))
 						{
 								System.out.println("The spatial reference of the output is missing; please check the configuration file.");
@@ -104,5 +216,149 @@ class ParameterReader
 
 	  	}
 		
+		
+		// the lambda values of the "lambdaSweep" parameter, or only the "lambda" parameter if the sweep is empty; null if the sweep is invalid
+		static double[] getLambdaValues(JSONObject parameterObject)
+		{
+				String lambdaSweep = parameterObject.optString("lambdaSweep", "").trim();
+				if(lambdaSweep.length() == 0) return new double[]{parameterObject.optDouble("lambda", 50)};
+				
+				double[] lambdaValues = parseValueList(lambdaSweep);
+				if(lambdaValues == null) return null;
+				for(int i=0;i<lambdaValues.length;i++)
+				{
+						if(!(lambdaValues[i] >= 1) || !(lambdaValues[i] <= 100)) return null;
+				}
+				return lambdaValues;
+		}
+		
+		
+		// a parameter sweep is run instead of a single clustering if "epsSweep" or "minPtsSweep" holds a list of values
+		static boolean isParameterSweep(JSONObject parameterObject)
+		{
+				return parameterObject.optString("epsSweep", "").trim().length() != 0 || parameterObject.optString("minPtsSweep", "").trim().length() != 0;
+		}
+		
+		// the eps values of the "epsSweep" parameter, or only the "eps" parameter if the sweep is empty; null if the sweep is invalid
+		static double[] getEpsValues(JSONObject parameterObject)
+		{
+				String epsSweep = parameterObject.optString("epsSweep", "").trim();
+				if(epsSweep.length() == 0) return new double[]{parameterObject.optDouble("eps", 0)};
+				
+				double[] epsValues = parseValueList(epsSweep);
+				if(epsValues == null) return null;
+				for(int i=0;i<epsValues.length;i++)
+				{
+						if(!(epsValues[i] > 0) || Double.isInfinite(epsValues[i])) return null;
+				}
+				return epsValues;
+		}
+		
+		// the eps values the clusters are extracted for: with the "optics" engine, the values of the "opticsEps" parameter if it is not empty,
+		// otherwise only the "eps" parameter; null if the list is invalid
+		static double[] getClusterEpsValues(JSONObject parameterObject)
+		{
+				String opticsEps = parameterObject.optString("opticsEps", "").trim();
+				if(!parameterObject.optString("dbscanEngine", "grid").equals("optics") || opticsEps.length() == 0) return new double[]{parameterObject.optDouble("eps", 0)};
+				
+				double[] epsValues = parseValueList(opticsEps);
+				if(epsValues == null) return null;
+				for(int i=0;i<epsValues.length;i++)
+				{
+						if(!(epsValues[i] > 0) || Double.isInfinite(epsValues[i])) return null;
+				}
+				return epsValues;
+		}
+		
+		// the upper bound of eps for the OPTICS ordering: the "opticsMaxEps" parameter, or the largest eps the clusters are extracted for if it is 0;
+		// -1 if it is smaller than one of these eps values
+		static double getOpticsMaxEps(JSONObject parameterObject)
+		{
+				double largestEps = 0;
+				double[] epsValues = getClusterEpsValues(parameterObject);
+				for(int i=0;epsValues!=null && i<epsValues.length;i++)
+				{
+						largestEps = Math.max(largestEps, epsValues[i]);
+				}
+				
+				double opticsMaxEps = parameterObject.optDouble("opticsMaxEps", 0);
+				if(opticsMaxEps == 0) return largestEps;
+				if(!(opticsMaxEps >= largestEps) || Double.isInfinite(opticsMaxEps)) return -1;
+				return opticsMaxEps;
+		}
+		
+		// the minPts values of the "minPtsSweep" parameter, or only the "minPts" parameter if the sweep is empty; they are percentages
+		// or absolute values according to minPtsPercentage, as minPts itself; null if the sweep is invalid
+		static double[] getMinPtsValues(JSONObject parameterObject)
+		{
+				String minPtsSweep = parameterObject.optString("minPtsSweep", "").trim();
+				if(minPtsSweep.length() == 0) return new double[]{parameterObject.optDouble("minPts", 0)};
+				
+				double[] minPtsValues = parseValueList(minPtsSweep);
+				if(minPtsValues == null) return null;
+				boolean isMinPtsPercent = parameterObject.optBoolean("minPtsPercentage", false);
+				for(int i=0;i<minPtsValues.length;i++)
+				{
+						if(isMinPtsPercent && !(minPtsValues[i] > 0 && minPtsValues[i] <= 1)) return null;
+						if(!isMinPtsPercent && !(minPtsValues[i] >= 1 && minPtsValues[i] <= Integer.MAX_VALUE)) return null;
+				}
+				return minPtsValues;
+		}
+		
+		
+		// a comma-separated list of different numbers; null if a value is not a number or appears twice, since each value gets its own output
+		private static double[] parseValueList(String valueList)
+		{
+				String[] listItems = valueList.split(",");
+				double[] values = new double[listItems.length];
+				for(int i=0;i<listItems.length;i++)
+				{
+						try
+						{
+								values[i] = Double.parseDouble(listItems[i].trim());
+						}
+						catch (NumberFormatException e)
+						{
+								return null;
+						}
+						
+						for(int j=0;j<i;j++)
+						{
+								if(values[j] == values[i]) return null;
+						}
+				}
+				return values;
+		}
+		
+		
+		// the records are clustered in sliding time windows if "timeWindowDays" is positive
+		static boolean isWindowedMode(JSONObject parameterObject)
+		{
+				return parameterObject.optDouble("timeWindowDays", 0) > 0;
+		}
+		
+		
+		// the "boundingBox" parameter as {minX, minY, maxX, maxY}; null if it is empty or invalid
+		static double[] getBoundingBox(JSONObject parameterObject)
+		{
+				String[] boundingBoxValues = parameterObject.optString("boundingBox", "").split(",");
+				if(boundingBoxValues.length != 4) return null;
+				
+				double[] boundingBox = new double[4];
+				try
+				{
+						for(int i=0;i<4;i++)
+						{
+								boundingBox[i] = Double.parseDouble(boundingBoxValues[i].trim());
+						}
+				}
+				catch (NumberFormatException e)
+				{
+						return null;
+				}
+				if(!(boundingBox[0] <= boundingBox[2]) || !(boundingBox[1] <= boundingBox[3])) return null;
+				return boundingBox;
+		}
+		
 
 }
@@ -0,0 +1,250 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.json.JSONObject;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+// runs DBSCAN for every combination of the "epsSweep" and "minPtsSweep" values on data that is read only once.
+// The records are put into a single grid index with cells of the largest eps, which answers the region queries of every eps;
+// the duplicates of each eps are removed by excluding them from the queries instead of building a new point set.
+// The combinations are clustered in parallel, and each one gives the same clusters as a separate run with its eps and minPts
+class ParameterSweepRunner
+{
+		public JSONObject runParameterSweep(JSONObject parameterObject, JSONObject dataSummaryObject, JSONObject esriJsonObject, DataIngestor dataIngestor)
+		{
+				System.out.println("Running the parameter sweep...");
+				try
+				{
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						boolean isMinPtsPercent = parameterObject.getBoolean("minPtsPercentage");
+						boolean writeAOIOutputs = parameterObject.optBoolean("sweepAOIOutputs", false);
+						double[] epsValues = ParameterReader.getEpsValues(parameterObject);
+						double[] minPtsValues = ParameterReader.getMinPtsValues(parameterObject);
+						System.out.println(epsValues.length+" eps values and "+minPtsValues.length+" minPts values make "+(epsValues.length * minPtsValues.length)+" combinations.");
+
+						PointStore rawPointStore = dataIngestor.getRawPointStore();
+						int recordCount = rawPointStore.size();
+						int userCount = dataIngestor.getUserDictionary().size();
+
+						ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+						try
+						{
+								// the duplicate distance is eps, so the records that remain after the preprocessing are found for each eps
+								IntList[] userRecordLists = new IntList[0];
+								long processedUserCount = 0;
+								if(userIDIndex != -1)
+								{
+										userRecordLists = DataPreProcessor.groupRecordsByUser(rawPointStore, userCount);
+										for(int u=0;u<userRecordLists.length;u++)
+										{
+												if(userRecordLists[u].size() > 0) processedUserCount++;
+										}
+								}
+								DatasetCache datasetCache = dataIngestor.getDatasetCache();
+								boolean isGeodesic = parameterObject.optBoolean("geodesicEps", false);
+								boolean[][] keepRecords = new boolean[epsValues.length][];
+								long[] processedRecordCounts = new long[epsValues.length];
+								for(int e=0;e<epsValues.length;e++)
+								{
+										if(userIDIndex != -1)
+										{
+												keepRecords[e] = (datasetCache != null) ? datasetCache.getKeepFlags(isGeodesic ? -epsValues[e] : epsValues[e]) : null;
+												if(keepRecords[e] == null) keepRecords[e] = DataPreProcessor.findKeptRecords(userRecordLists, rawPointStore, epsValues[e], isGeodesic, pool);
+												for(int i=0;i<recordCount;i++)
+												{
+														if(keepRecords[e][i]) processedRecordCounts[e]++;
+												}
+										}
+										else
+										{
+												processedRecordCounts[e] = recordCount;
+										}
+								}
+
+								double largestEps = 0;
+								for(double eps : epsValues)
+								{
+										largestEps = Math.max(largestEps, eps);
+								}
+								final GridIndex recordIndex = GridIndex.create(rawPointStore.getXCoords(), rawPointStore.getYCoords(), recordCount, largestEps, isGeodesic);
+								final AOIMembershipCounter aoiMembershipCounter = writeAOIOutputs ? new AOIMembershipCounter(rawPointStore, userIDIndex, recordIndex) : null;
+								System.out.println("The records have been indexed for eps up to "+JSONObject.numberToString(largestEps)+".");
+
+								// evaluate the combinations on the pool, and report them in the order of the sweep; with the neighbourhood graph,
+								// the region queries of each eps are run once for all its minPts values
+								boolean useNeighbourhoodGraph = parameterObject.optBoolean("neighbourhoodGraph", false);
+								int combinationCount = epsValues.length * minPtsValues.length;
+								ArrayList<ForkJoinTask<SweepResult>> sweepTasks = new ArrayList<ForkJoinTask<SweepResult>>(combinationCount);
+								for(int e=0;e<epsValues.length;e++)
+								{
+										final NeighbourhoodGraph neighbourhoodGraph = useNeighbourhoodGraph ? NeighbourhoodGraph.build(recordIndex, epsValues[e], keepRecords[e], pool) : null;
+										for(int m=0;m<minPtsValues.length;m++)
+										{
+												final double eps = epsValues[e];
+												final int minPts = ClusterAndShapeGenerator.getMinPts(minPtsValues[m], isMinPtsPercent, userIDIndex, processedRecordCounts[e], processedUserCount);
+												final boolean[] keepRecord = keepRecords[e];
+												final File resultFile = writeAOIOutputs ? new File("result_eps"+JSONObject.numberToString(eps)+"_minPts"+JSONObject.numberToString(minPtsValues[m])+".json") : null;
+												sweepTasks.add(pool.submit(() -> evaluateCombination(recordIndex, neighbourhoodGraph, keepRecord, eps, minPts, rawPointStore, userIDIndex, userCount, aoiMembershipCounter, resultFile, parameterObject, dataSummaryObject, esriJsonObject)));
+										}
+								}
+
+								File summaryFile = new File("sweep_summary.csv");
+								FileWriter summaryFileWriter = new FileWriter(summaryFile);
+								String newLineSymbol = System.getProperty("line.separator");
+								summaryFileWriter.append("eps,minPts,absoluteMinPts,processedRecords,clusterCount,noiseShare"+((userIDIndex != -1) ? ",coveredUsers,coveredUserShare" : "")+(writeAOIOutputs ? ",aoiCount,aoiFile" : "")+newLineSymbol);
+								for(int e=0;e<epsValues.length;e++)
+								{
+										for(int m=0;m<minPtsValues.length;m++)
+										{
+												SweepResult sweepResult = sweepTasks.get(e * minPtsValues.length + m).get();
+												sweepTasks.set(e * minPtsValues.length + m, null);
+
+												double noiseShare = (processedRecordCounts[e] == 0) ? 0 : (sweepResult.noiseCount * 1.0) / (processedRecordCounts[e] * 1.0);
+												String summaryLine = JSONObject.numberToString(epsValues[e])+","+JSONObject.numberToString(minPtsValues[m])+","+sweepResult.minPts+","+processedRecordCounts[e]+","+sweepResult.clusterCount+","+noiseShare;
+												String summaryMessage = "eps "+JSONObject.numberToString(epsValues[e])+", minPts "+JSONObject.numberToString(minPtsValues[m])+" ("+sweepResult.minPts+"): "+sweepResult.clusterCount+" clusters, "+(Math.round(noiseShare * 1000) / 10.0)+"% noise";
+												if(userIDIndex != -1)
+												{
+														double coveredUserShare = (processedUserCount == 0) ? 0 : (sweepResult.coveredUserCount * 1.0) / (processedUserCount * 1.0);
+														summaryLine += ","+sweepResult.coveredUserCount+","+coveredUserShare;
+														summaryMessage += ", "+sweepResult.coveredUserCount+" users covered";
+												}
+												if(writeAOIOutputs)
+												{
+														summaryLine += ","+sweepResult.aoiCount+","+sweepResult.resultFile.getPath();
+														summaryMessage += ", "+sweepResult.aoiCount+" AOIs in "+sweepResult.resultFile.getPath();
+												}
+												summaryFileWriter.append(summaryLine+newLineSymbol);
+												System.out.println(summaryMessage);
+										}
+								}
+								summaryFileWriter.close();
+
+								JSONObject sweepResultObject = new JSONObject();
+								sweepResultObject.put("combinationCount", combinationCount);
+								sweepResultObject.put("file", summaryFile.getPath());
+
+								System.out.println("The summary of the sweep has been written to "+summaryFile.getPath()+".");
+								System.out.println("Parameter sweep has finished...");
+								System.out.println("---------------------------------------------------");
+								return sweepResultObject;
+						}
+						finally
+						{
+								pool.shutdownNow();
+						}
+				}
+				catch (Exception e)
+				{
+						System.out.println("An error happened in the parameter sweep; The program has been canceled");
+						return null;
+				}
+		}
+
+
+		// cluster the kept records (all the records if keepRecord is null) with one eps and minPts, and write their AOIs if resultFile is not null;
+		// the clusters come from neighbourhoodGraph if it is not null, which must hold the neighbourhoods of the kept records for eps
+		private SweepResult evaluateCombination(GridIndex recordIndex, NeighbourhoodGraph neighbourhoodGraph, boolean[] keepRecord, double eps, int minPts, PointStore rawPointStore, int userIDIndex, int userCount, AOIMembershipCounter aoiMembershipCounter, File resultFile, JSONObject parameterObject, JSONObject dataSummaryObject, JSONObject esriJsonObject) throws Exception
+		{
+				DBSCANResult clusterResult = null;
+				if(neighbourhoodGraph != null)
+				{
+						clusterResult = neighbourhoodGraph.cluster(minPts);
+				}
+				else
+				{
+						GridDBSCANClusterer gridClusterer = new GridDBSCANClusterer(eps, minPts);
+						clusterResult = gridClusterer.cluster(recordIndex, keepRecord);
+				}
+
+				// as in the clustering step, only the clusters with at least minPts points count (a cluster can lose border points to earlier clusters);
+				// the points of the smaller clusters are neither noise nor covered
+				int[] clusterSizes = new int[clusterResult.getClusterCount()];
+				long noiseCount = 0;
+				for(int i=0;i<clusterResult.getPointCount();i++)
+				{
+						if(keepRecord != null && !keepRecord[i]) continue;
+						if(clusterResult.getClusterId(i) == DBSCANResult.NOISE)
+								noiseCount++;
+						else
+								clusterSizes[clusterResult.getClusterId(i)]++;
+				}
+				int clusterCount = 0;
+				for(int c=0;c<clusterSizes.length;c++)
+				{
+						if(clusterSizes[c] >= minPts) clusterCount++;
+				}
+
+				boolean[] isUserCovered = new boolean[(userIDIndex != -1) ? userCount : 0];
+				long coveredUserCount = 0;
+				for(int i=0;i<clusterResult.getPointCount() && userIDIndex != -1;i++)
+				{
+						int clusterId = clusterResult.getClusterId(i);
+						if(clusterId == DBSCANResult.NOISE || clusterSizes[clusterId] < minPts) continue;
+						if(!isUserCovered[rawPointStore.getUserId(i)])
+						{
+								isUserCovered[rawPointStore.getUserId(i)] = true;
+								coveredUserCount++;
+						}
+				}
+
+				int aoiCount = 0;
+				if(resultFile != null)
+				{
+						// the same AOIs as the result.json of a run with this eps and minPts
+						ClusterAndShapeGenerator clusterAndShapeGenerator = new ClusterAndShapeGenerator();
+						double[] lambdaValues = new double[]{parameterObject.getDouble("lambda")};
+						int[][] clusterMembers = clusterResult.getClusterMembers();
+						EsriJSONWriter esriJSONWriter = new EsriJSONWriter(resultFile, esriJsonObject);
+						try
+						{
+								for(int c=0;c<clusterMembers.length;c++)
+								{
+										if(clusterMembers[c].length < minPts) continue;
+
+										Geometry concaveHullGeometry = clusterAndShapeGenerator.createConcaveHulls(rawPointStore.getXCoords(), rawPointStore.getYCoords(), clusterMembers[c], lambdaValues, parameterObject)[0];
+										if(concaveHullGeometry == null) continue;
+										AOIMembershipCounter.AOICount aoiCountInShape = aoiMembershipCounter.count(concaveHullGeometry);
+										clusterAndShapeGenerator.writeAOIFeature(esriJSONWriter, concaveHullGeometry, esriJSONWriter.getFeatureCount()+1, aoiCountInShape.recordCount, aoiCountInShape.userCount, parameterObject, dataSummaryObject);
+								}
+								esriJSONWriter.close();
+						}
+						catch (Exception e)
+						{
+								esriJSONWriter.discard();
+								throw e;
+						}
+						aoiCount = esriJSONWriter.getFeatureCount();
+				}
+
+				return new SweepResult(minPts, clusterCount, noiseCount, coveredUserCount, aoiCount, resultFile);
+		}
+
+
+		// the summary of one combination
+		private static class SweepResult
+		{
+				final int minPts;
+				final int clusterCount;
+				final long noiseCount;
+				final long coveredUserCount;
+				final int aoiCount;
+				final File resultFile;
+
+				SweepResult(int minPts, int clusterCount, long noiseCount, long coveredUserCount, int aoiCount, File resultFile)
+				{
+						this.minPts = minPts;
+						this.clusterCount = clusterCount;
+						this.noiseCount = noiseCount;
+						this.coveredUserCount = coveredUserCount;
+						this.aoiCount = aoiCount;
+						this.resultFile = resultFile;
+				}
+		}
+
+}
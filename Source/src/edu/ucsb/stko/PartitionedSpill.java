@@ -0,0 +1,160 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// fixed-size records spilled to disk in partitions, one file per partition key; the records are collected in a small buffer per partition,
+// and all the buffers are written out and released whenever they hold more than the memory budget together, so the memory stays
+// the same however many records and partitions there are. A partition is read back as a whole, with its records in the order they were added
+class PartitionedSpill
+{
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		private final File directory;
+		private final String name;
+		private final int recordSize;
+		private final long memoryBudget;
+		private final HashMap<Long, Partition> partitions = new HashMap<Long, Partition>();
+		private long bufferedBytes = 0;
+
+
+		PartitionedSpill(File directory, String name, int recordSize, long memoryBudget)
+		{
+				this.directory = directory;
+				this.name = name;
+				this.recordSize = recordSize;
+				this.memoryBudget = memoryBudget;
+		}
+
+
+		// the buffer to put the next record of the partition into; exactly recordSize bytes must be put before the next call
+		ByteBuffer append(long key) throws Exception
+		{
+				Partition partition = partitions.get(key);
+				if(partition == null)
+				{
+						// a file left by a run that was canceled is started over
+						partition = new Partition(new File(directory, name+"_"+key+".bin"));
+						partition.file.delete();
+						partitions.put(key, partition);
+				}
+				if(partition.buffer != null && partition.buffer.remaining() < recordSize) write(partition);
+				if(partition.buffer == null)
+				{
+						if(bufferedBytes + BUFFER_SIZE > memoryBudget) flushAll();
+						partition.buffer = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % recordSize);
+						bufferedBytes += partition.buffer.capacity();
+				}
+				partition.recordCount++;
+				return partition.buffer;
+		}
+
+
+		// the keys of the partitions in ascending order
+		long[] getKeys()
+		{
+				long[] keys = new long[partitions.size()];
+				int k = 0;
+				for(Long key : partitions.keySet())
+				{
+						keys[k++] = key;
+				}
+				Arrays.sort(keys);
+				return keys;
+		}
+
+		long getRecordCount(long key)
+		{
+				Partition partition = partitions.get(key);
+				return (partition == null) ? 0 : partition.recordCount;
+		}
+
+
+		// all the records of a partition, positioned at the first one
+		ByteBuffer read(long key) throws Exception
+		{
+				Partition partition = partitions.get(key);
+				if(partition == null) return ByteBuffer.allocate(0);
+				if(partition.recordCount * recordSize > Integer.MAX_VALUE - 8) throw new IllegalStateException("The partition "+partition.file.getName()+" is larger than 2 GB.");
+
+				ByteBuffer records = ByteBuffer.allocate((int)(partition.recordCount * recordSize));
+				if(partition.file.exists())
+				{
+						RandomAccessFile randomAccessFile = new RandomAccessFile(partition.file, "r");
+						try
+						{
+								FileChannel channel = randomAccessFile.getChannel();
+								while(records.position() < channel.size())
+								{
+										if(channel.read(records, records.position()) < 0) break;
+								}
+						}
+						finally
+						{
+								randomAccessFile.close();
+						}
+				}
+				if(partition.buffer != null) records.put((ByteBuffer)partition.buffer.duplicate().flip());
+				records.flip();
+				return records;
+		}
+
+
+		// remove the files of all the partitions
+		void delete()
+		{
+				for(Partition partition : partitions.values())
+				{
+						partition.file.delete();
+						partition.buffer = null;
+				}
+				partitions.clear();
+				bufferedBytes = 0;
+		}
+
+
+		// write out all the buffers and release them
+		private void flushAll() throws Exception
+		{
+				for(Partition partition : partitions.values())
+				{
+						if(partition.buffer == null) continue;
+						write(partition);
+						bufferedBytes -= partition.buffer.capacity();
+						partition.buffer = null;
+				}
+		}
+
+		// append the buffered records of the partition to its file, which empties the buffer
+		private void write(Partition partition) throws Exception
+		{
+				FileOutputStream outputStream = new FileOutputStream(partition.file, true);
+				try
+				{
+						DatasetCache.writeBuffer(outputStream.getChannel(), partition.buffer);
+				}
+				finally
+				{
+						outputStream.close();
+				}
+		}
+
+
+		private static class Partition
+		{
+				final File file;
+				ByteBuffer buffer = null;
+				long recordCount = 0;
+
+				Partition(File file)
+				{
+						this.file = file;
+				}
+		}
+
+}
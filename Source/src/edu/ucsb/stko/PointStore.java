@@ -0,0 +1,122 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+
+// the points shared by the stages, kept as primitive columns instead of one object per point (24 bytes per point);
+// recordRow is the row of the record in the input file (0 is the first row after the header)
+class PointStore
+{
+		private double[] xCoords;
+		private double[] yCoords;
+		private int[] userIds;
+		private int[] recordRows;
+		private int size = 0;
+
+
+		PointStore(int initialCapacity)
+		{
+				int capacity = Math.max(initialCapacity, 16);
+				xCoords = new double[capacity];
+				yCoords = new double[capacity];
+				userIds = new int[capacity];
+				recordRows = new int[capacity];
+		}
+
+
+		// userId is the number of the user in the UserDictionary, or -1 if there are no user ids
+		void add(double x, double y, int userId, int recordRow)
+		{
+				if(size == xCoords.length)
+				{
+						resize(Math.max(16, xCoords.length + (xCoords.length >> 1)));
+				}
+				xCoords[size] = x;
+				yCoords[size] = y;
+				userIds[size] = userId;
+				recordRows[size] = recordRow;
+				size++;
+		}
+
+
+		// append all the points of another store; its user ids are translated through userIdMap (-1 stays -1)
+		// and recordRowOffset is added to its record rows
+		void append(PointStore other, int[] userIdMap, int recordRowOffset)
+		{
+				if(size + other.size > xCoords.length)
+				{
+						resize(Math.max(size + other.size, xCoords.length + (xCoords.length >> 1)));
+				}
+				System.arraycopy(other.xCoords, 0, xCoords, size, other.size);
+				System.arraycopy(other.yCoords, 0, yCoords, size, other.size);
+				for(int i=0;i<other.size;i++)
+				{
+						int userId = other.userIds[i];
+						userIds[size + i] = (userId == -1) ? -1 : userIdMap[userId];
+						recordRows[size + i] = other.recordRows[i] + recordRowOffset;
+				}
+				size += other.size;
+		}
+
+
+		// release the unused capacity once no more points will be added
+		void trimToSize()
+		{
+				if(size < xCoords.length) resize(size);
+		}
+
+		private void resize(int capacity)
+		{
+				xCoords = Arrays.copyOf(xCoords, capacity);
+				yCoords = Arrays.copyOf(yCoords, capacity);
+				userIds = Arrays.copyOf(userIds, capacity);
+				recordRows = Arrays.copyOf(recordRows, capacity);
+		}
+
+
+		int size()
+		{
+				return size;
+		}
+
+		double getX(int index)
+		{
+				return xCoords[index];
+		}
+
+		double getY(int index)
+		{
+				return yCoords[index];
+		}
+
+		int getUserId(int index)
+		{
+				return userIds[index];
+		}
+
+		int getRecordRow(int index)
+		{
+				return recordRows[index];
+		}
+
+		// the backing arrays; only the first size() entries are valid
+		double[] getXCoords()
+		{
+				return xCoords;
+		}
+
+		double[] getYCoords()
+		{
+				return yCoords;
+		}
+
+		int[] getUserIds()
+		{
+				return userIds;
+		}
+
+		int[] getRecordRows()
+		{
+				return recordRows;
+		}
+
+}
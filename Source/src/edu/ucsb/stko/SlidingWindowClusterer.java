@@ -0,0 +1,226 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.json.JSONObject;
+
+// the windowed mode ("timeWindowDays" > 0) finds the AOIs of sliding time windows, such as 30-day windows that move by 7 days, and writes the AOIs
+// of every window to its own file. The windows start at midnight (UTC) of the day of the first record, and the last window holds the last record.
+// Consecutive windows share most of their records, so the clusters are not found again for every window: the records that enter the window are
+// inserted and those that leave it are deleted with the IncrementalClusterUpdater, which only links the clusters around these records again and
+// only rebuilds the AOIs whose members have changed. The AOIs of each window are the same as those of a full run on the records of the window
+class SlidingWindowClusterer
+{
+		private static final long SECONDS_PER_DAY = 86400;
+
+		// the window position of a record which has just entered the window
+		private static final int ENTERED = -2;
+
+		public JSONObject clusterWindows(JSONObject parameterObject, JSONObject esriJsonObject, DataIngestor dataIngestor)
+		{
+				System.out.println("Clustering the records in sliding time windows...");
+				ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+				EsriJSONWriter[] esriJSONWriters = null;
+				try
+				{
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						double[] lambdaValues = ParameterReader.getLambdaValues(parameterObject);
+						PointStore rawPointStore = dataIngestor.getRawPointStore();
+						UserDictionary userDictionary = dataIngestor.getUserDictionary();
+						long[] timestamps = dataIngestor.getRawTimestampList().toArray();
+						int recordCount = rawPointStore.size();
+						if(recordCount == 0)
+						{
+								System.out.println("There are no records with a timestamp; The program has been canceled");
+								return null;
+						}
+
+						// the records in the order of their timestamps, as the time since the first timestamp and the record number in one key
+						long firstTimestamp = timestamps[0];
+						long lastTimestamp = timestamps[0];
+						for(int r=1;r<recordCount;r++)
+						{
+								firstTimestamp = Math.min(firstTimestamp, timestamps[r]);
+								lastTimestamp = Math.max(lastTimestamp, timestamps[r]);
+						}
+						if(lastTimestamp - firstTimestamp >= (1L << 32))
+						{
+								System.out.println("The timestamps spread over more than 136 years; please check that timestampIndex is the column of the timestamps (in seconds); The program has been canceled");
+								return null;
+						}
+						long[] timeOrder = new long[recordCount];
+						for(int r=0;r<recordCount;r++)
+						{
+								timeOrder[r] = (((timestamps[r] - firstTimestamp) << 32) | r) + Long.MIN_VALUE;
+						}
+						Arrays.parallelSort(timeOrder);
+
+						long windowLength = Math.round(parameterObject.getDouble("timeWindowDays") * SECONDS_PER_DAY);
+						long windowStep = Math.max(1, Math.round(parameterObject.optDouble("timeWindowStepDays", 7) * SECONDS_PER_DAY));
+						long firstWindowStart = Math.floorDiv(firstTimestamp, SECONDS_PER_DAY) * SECONDS_PER_DAY;
+
+						// the users are identified by their key in the stored clusters, as in the incremental mode
+						long[] userKeys = new long[userDictionary.size()];
+						for(int u=0;u<userKeys.length;u++)
+						{
+								userKeys[u] = userDictionary.getUserKey(u);
+						}
+
+						File inputFile = new File(parameterObject.getString("dataPath"));
+						String tempName = parameterObject.getString("tempPath")+"/"+inputFile.getName().replace(".csv", "");
+						File summaryFile = new File("window_summary.csv");
+						FileWriter summaryFileWriter = new FileWriter(summaryFile);
+						String newLineSymbol = System.getProperty("line.separator");
+						summaryFileWriter.append("windowStart,windowEnd,recordCount"+((userIDIndex != -1) ? ",userCount" : "")+",minPts,aoiCount,aoiFile"+newLineSymbol);
+
+						// the position of every record in the current window (-1 outside of it), and the number of records of every user in it
+						int[] windowPositions = new int[recordCount];
+						Arrays.fill(windowPositions, -1);
+						int[] userRecordCounts = new int[userDictionary.size()];
+						int windowRecordCount = 0;
+						int windowUserCount = 0;
+						int enteringRank = 0;
+						int leavingRank = 0;
+
+						IncrementalClusterUpdater incrementalClusterUpdater = new IncrementalClusterUpdater();
+						IncrementalClusterState state = IncrementalClusterState.createEmpty(0);
+						int windowCount = 0;
+						for(long windowStart=firstWindowStart;;windowStart+=windowStep)
+						{
+								long windowEnd = windowStart + windowLength;
+
+								// the records before the start of the window leave it, and the records before its end enter it
+								IntList removedRecords = new IntList();
+								while(leavingRank < recordCount && getTimestamp(timeOrder[leavingRank], firstTimestamp) < windowStart)
+								{
+										int r = getRecord(timeOrder[leavingRank++]);
+										if(windowPositions[r] == -1) continue;
+										removedRecords.add(windowPositions[r]);
+										windowPositions[r] = -1;
+										windowRecordCount--;
+										if(userIDIndex != -1 && --userRecordCounts[rawPointStore.getUserId(r)] == 0) windowUserCount--;
+								}
+								enteringRank = Math.max(enteringRank, leavingRank);
+								while(enteringRank < recordCount && getTimestamp(timeOrder[enteringRank], firstTimestamp) < windowEnd)
+								{
+										int r = getRecord(timeOrder[enteringRank++]);
+										windowPositions[r] = ENTERED;
+										windowRecordCount++;
+										if(userIDIndex != -1 && userRecordCounts[rawPointStore.getUserId(r)]++ == 0) windowUserCount++;
+								}
+
+								// the records of the window in their original order; the records that were in the last window are matched with their stored places
+								PointStore windowPointStore = new PointStore(windowRecordCount);
+								long[] windowUserKeys = new long[windowRecordCount];
+								int[] matchedRecords = new int[windowRecordCount];
+								for(int r=0;r<recordCount;r++)
+								{
+										if(windowPositions[r] == -1) continue;
+
+										int p = windowPointStore.size();
+										int userId = rawPointStore.getUserId(r);
+										windowPointStore.add(rawPointStore.getX(r), rawPointStore.getY(r), userId, rawPointStore.getRecordRow(r));
+										windowUserKeys[p] = (userId == -1) ? 0 : userKeys[userId];
+										matchedRecords[p] = (windowPositions[r] == ENTERED) ? -1 : windowPositions[r];
+										windowPositions[r] = p;
+								}
+
+								// a percentage minPts changes with the number of users in the window; the clusters of the last window cannot be updated then
+								int minPts = ClusterAndShapeGenerator.getMinPts(parameterObject.getDouble("minPts"), parameterObject.getBoolean("minPtsPercentage"), userIDIndex, windowRecordCount, windowUserCount);
+								long settingsChecksum = IncrementalClusterUpdater.getSettingsChecksum(parameterObject, minPts, lambdaValues);
+								if(state.settingsChecksum != settingsChecksum)
+								{
+										state = IncrementalClusterState.createEmpty(settingsChecksum);
+										Arrays.fill(matchedRecords, -1);
+										removedRecords.clear();
+								}
+
+								JSONObject windowSummaryObject = new JSONObject();
+								windowSummaryObject.put("recordCount", windowRecordCount);
+								if(userIDIndex != -1) windowSummaryObject.put("userCount", windowUserCount);
+
+								String windowName = "window"+formatTime(windowStart);
+								esriJSONWriters = createOutputFiles(windowName, lambdaValues, esriJsonObject);
+								state = incrementalClusterUpdater.updateClusters(state, windowPointStore, windowUserKeys, userDictionary.size(), matchedRecords, removedRecords, minPts, parameterObject, windowSummaryObject, new File(tempName+"_"+windowName+"_clustered.csv"), esriJSONWriters, pool);
+								for(EsriJSONWriter esriJSONWriter : esriJSONWriters)
+								{
+										esriJSONWriter.close();
+								}
+								int aoiCount = esriJSONWriters[0].getFeatureCount();
+								String aoiFiles = "result_"+windowName+((lambdaValues.length == 1) ? "" : "_lambda*")+".json";
+								esriJSONWriters = null;
+								windowCount++;
+
+								summaryFileWriter.append(formatTime(windowStart)+","+formatTime(windowEnd)+","+windowRecordCount+((userIDIndex != -1) ? ","+windowUserCount : "")+","+minPts+","+aoiCount+","+aoiFiles+newLineSymbol);
+								System.out.println(formatTime(windowStart)+" to "+formatTime(windowEnd)+": "+windowRecordCount+" records"+((userIDIndex != -1) ? " of "+windowUserCount+" users" : "")+", minPts "+minPts+", "+aoiCount+" AOIs in "+aoiFiles+" ("+incrementalClusterUpdater.getLinkedCoreCount()+" core points linked again, "+incrementalClusterUpdater.getRebuiltClusterCount()+" AOIs rebuilt)");
+
+								if(windowEnd > lastTimestamp) break;
+						}
+						summaryFileWriter.close();
+
+						JSONObject windowResultObject = new JSONObject();
+						windowResultObject.put("windowCount", windowCount);
+						windowResultObject.put("file", summaryFile.getPath());
+
+						System.out.println("The AOIs of "+windowCount+" windows have been written, and their summary to "+summaryFile.getPath()+".");
+						System.out.println("Windowed clustering has finished...");
+						System.out.println("---------------------------------------------------");
+						return windowResultObject;
+				}
+				catch (Exception e)
+				{
+						if(esriJSONWriters != null)
+						{
+								for(EsriJSONWriter esriJSONWriter : esriJSONWriters)
+								{
+										if(esriJSONWriter != null) esriJSONWriter.discard();
+								}
+						}
+						System.out.println("An error happened in the windowed clustering; The program has been canceled");
+						return null;
+				}
+				finally
+				{
+						pool.shutdownNow();
+				}
+		}
+
+
+		// the output file of each lambda value for one window
+		private static EsriJSONWriter[] createOutputFiles(String windowName, double[] lambdaValues, JSONObject esriJsonObject) throws Exception
+		{
+				EsriJSONWriter[] esriJSONWriters = new EsriJSONWriter[lambdaValues.length];
+				for(int i=0;i<lambdaValues.length;i++)
+				{
+						String lambdaSuffix = (lambdaValues.length == 1) ? "" : "_lambda"+JSONObject.numberToString(lambdaValues[i]);
+						esriJSONWriters[i] = new EsriJSONWriter(new File("result_"+windowName+lambdaSuffix+".json"), esriJsonObject);
+				}
+				return esriJSONWriters;
+		}
+
+
+		// the date of a time in seconds since 1970 (UTC), with the time of the day unless it is midnight
+		private static String formatTime(long time)
+		{
+				LocalDateTime dateTime = LocalDateTime.ofEpochSecond(time, 0, ZoneOffset.UTC);
+				if(time % SECONDS_PER_DAY == 0) return dateTime.format(DateTimeFormatter.ISO_LOCAL_DATE);
+				return dateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HHmmss"));
+		}
+
+		private static long getTimestamp(long timeOrderKey, long firstTimestamp)
+		{
+				return ((timeOrderKey - Long.MIN_VALUE) >>> 32) + firstTimestamp;
+		}
+
+		private static int getRecord(long timeOrderKey)
+		{
+				return (int)(timeOrderKey & 0xffffffffL);
+		}
+
+}
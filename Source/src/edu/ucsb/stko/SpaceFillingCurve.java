@@ -0,0 +1,152 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// positions of points along a Hilbert curve over the bounding box of the data, so that points which are close
+// along the curve are also close in space; used to lay out the points in page-sized blocks with small bounding boxes, and to cluster
+// the points in an order in which the neighbours of a point lie close to it in memory
+class SpaceFillingCurve
+{
+		// the bounding box is divided into 2^GRID_ORDER x 2^GRID_ORDER cells
+		static final int GRID_ORDER = 16;
+		private static final int GRID_SIZE = 1 << GRID_ORDER;
+
+
+		// the cell of a coordinate along one axis of the bounding box [min, max]
+		static int toGridCell(double value, double min, double max)
+		{
+				if(!(max > min)) return 0;
+				double cell = (value - min) / (max - min) * (GRID_SIZE - 1);
+				if(!(cell > 0)) return 0;
+				if(cell >= GRID_SIZE - 1) return GRID_SIZE - 1;
+				return (int)cell;
+		}
+
+
+		// the distance of the cell (cellX, cellY) along the Hilbert curve, between 0 and 2^(2*GRID_ORDER)-1
+		static long hilbertIndex(int cellX, int cellY)
+		{
+				long index = 0;
+				int x = cellX;
+				int y = cellY;
+				for(int s=GRID_SIZE>>1;s>0;s>>=1)
+				{
+						int rx = ((x & s) != 0) ? 1 : 0;
+						int ry = ((y & s) != 0) ? 1 : 0;
+						index += (long)s * s * ((3 * rx) ^ ry);
+
+						// rotate the quadrant so that the curve continues in the next level
+						if(ry == 0)
+						{
+								if(rx == 1)
+								{
+										x = GRID_SIZE - 1 - x;
+										y = GRID_SIZE - 1 - y;
+								}
+								int t = x;
+								x = y;
+								y = t;
+						}
+				}
+				return index;
+		}
+
+
+
+		// the points in the order of their Hilbert index over their bounding box, with the points of one cell in the order of their index
+		static int[] getHilbertOrder(final double[] xCoords, final double[] yCoords, int pointCount, ForkJoinPool pool)
+		{
+				double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+				double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+				for(int i=0;i<pointCount;i++)
+				{
+						minX = Math.min(minX, xCoords[i]);
+						maxX = Math.max(maxX, xCoords[i]);
+						minY = Math.min(minY, yCoords[i]);
+						maxY = Math.max(maxY, yCoords[i]);
+				}
+
+				// the Hilbert index in the upper 32 bits and the point in the lower ones, which are already in ascending order
+				final double[] bounds = new double[]{minX, minY, maxX, maxY};
+				final long[] sortKeys = new long[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						for(int i=start;i<end;i++)
+						{
+								sortKeys[i] = (hilbertIndex(toGridCell(xCoords[i], bounds[0], bounds[2]), toGridCell(yCoords[i], bounds[1], bounds[3])) << 32) | i;
+						}
+				});
+				sortByUpperBits(sortKeys, pool);
+
+				int[] order = new int[pointCount];
+				for(int k=0;k<pointCount;k++)
+				{
+						order[k] = (int)sortKeys[k];
+				}
+				return order;
+		}
+
+
+		// a stable least significant digit radix sort of the keys by their upper 32 bits, one byte per pass. Every pass counts the digits of
+		// fixed chunks of the keys in parallel, and then moves the keys of each chunk to the places after those of the earlier chunks and digits
+		private static void sortByUpperBits(long[] keys, ForkJoinPool pool)
+		{
+				final int keyCount = keys.length;
+				final int chunkCount = Math.max(1, Math.min(pool.getParallelism() * 4, keyCount >> 16));
+				final int[][] digitPositions = new int[chunkCount][256];
+				long[] source = keys;
+				long[] target = new long[keyCount];
+				for(int shift=32;shift<64;shift+=8)
+				{
+						final long[] passSource = source;
+						final long[] passTarget = target;
+						final int passShift = shift;
+						ParallelTasks.forChunks(pool, keyCount, chunkCount, (chunk, start, end) ->
+						{
+								int[] counts = digitPositions[chunk];
+								Arrays.fill(counts, 0);
+								for(int i=start;i<end;i++)
+								{
+										counts[(int)(passSource[i] >>> passShift) & 0xff]++;
+								}
+						});
+
+						// a digit that all the keys share leaves their order as it is
+						boolean isSingleDigit = false;
+						for(int digit=0;digit<256 && !isSingleDigit;digit++)
+						{
+								int digitCount = 0;
+								for(int c=0;c<chunkCount;c++)
+								{
+										digitCount += digitPositions[c][digit];
+								}
+								isSingleDigit = (digitCount == keyCount);
+						}
+						if(isSingleDigit) continue;
+
+						int position = 0;
+						for(int digit=0;digit<256;digit++)
+						{
+								for(int c=0;c<chunkCount;c++)
+								{
+										int count = digitPositions[c][digit];
+										digitPositions[c][digit] = position;
+										position += count;
+								}
+						}
+						ParallelTasks.forChunks(pool, keyCount, chunkCount, (chunk, start, end) ->
+						{
+								int[] positions = digitPositions[chunk];
+								for(int i=start;i<end;i++)
+								{
+										passTarget[positions[(int)(passSource[i] >>> passShift) & 0xff]++] = passSource[i];
+								}
+						});
+						target = source;
+						source = passTarget;
+				}
+				if(source != keys) System.arraycopy(source, 0, keys, 0, keyCount);
+		}
+
+}
@@ -0,0 +1,125 @@
+package edu.ucsb.stko;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+// the processed points reordered along a Hilbert curve ("spatialOrder"): in the order of the input file, the neighbours of a point are
+// scattered over the whole coordinate arrays, while in this order they mostly lie next to it, so the region queries of the grid engine and
+// the gathering of the cluster members for the shapes read contiguous memory. The positions of the points are kept both ways, so that
+// the clusters found on the reordered points are mapped back to the points of the input order
+class SpatialOrder
+{
+		// the point of the input order at every position of the reordered arrays, and the position of every point
+		private final int[] orderedPoints;
+		private final int[] positions;
+		private final double[] xCoords;
+		private final double[] yCoords;
+
+
+		SpatialOrder(final double[] xCoords, final double[] yCoords, int pointCount, ForkJoinPool pool)
+		{
+				orderedPoints = SpaceFillingCurve.getHilbertOrder(xCoords, yCoords, pointCount, pool);
+				positions = new int[pointCount];
+				this.xCoords = new double[pointCount];
+				this.yCoords = new double[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						for(int k=start;k<end;k++)
+						{
+								int point = orderedPoints[k];
+								positions[point] = k;
+								this.xCoords[k] = xCoords[point];
+								this.yCoords[k] = yCoords[point];
+						}
+				});
+		}
+
+
+		double[] getXCoords()
+		{
+				return xCoords;
+		}
+
+		double[] getYCoords()
+		{
+				return yCoords;
+		}
+
+
+		// the positions of the points of every cluster, keeping the order of the points
+		int[][] toPositions(int[][] clusterPoints)
+		{
+				int[][] clusterPositions = new int[clusterPoints.length][];
+				for(int c=0;c<clusterPoints.length;c++)
+				{
+						clusterPositions[c] = new int[clusterPoints[c].length];
+						for(int i=0;i<clusterPoints[c].length;i++)
+						{
+								clusterPositions[c][i] = positions[clusterPoints[c][i]];
+						}
+				}
+				return clusterPositions;
+		}
+
+
+		// the clusters of the reordered points, as labels of the points of the input order. The core points and the points of every cluster
+		// do not depend on the order, but the engines number the clusters and give a border point to a cluster by the positions; here the
+		// clusters are numbered by their first core point in the input order, and every border point is given to the cluster with the earliest
+		// of these among its core neighbours, as the engines do on the input order. gridIndex must be the index the result was found with
+		DBSCANResult restoreOrder(final DBSCANResult orderedResult, final GridIndex gridIndex, final double eps, ForkJoinPool pool)
+		{
+				int pointCount = orderedPoints.length;
+				int clusterCount = orderedResult.getClusterCount();
+				final int[] clusterRoots = new int[clusterCount];
+				Arrays.fill(clusterRoots, Integer.MAX_VALUE);
+				for(int k=0;k<pointCount;k++)
+				{
+						if(orderedResult.getPointType(k) != DBSCANResult.CORE_POINT) continue;
+						int c = orderedResult.getClusterId(k);
+						clusterRoots[c] = Math.min(clusterRoots[c], orderedPoints[k]);
+				}
+
+				long[] rootOrder = new long[clusterCount];
+				for(int c=0;c<clusterCount;c++)
+				{
+						rootOrder[c] = ((long)clusterRoots[c] << 32) | c;
+				}
+				Arrays.sort(rootOrder);
+				final int[] clusterNumbers = new int[clusterCount];
+				for(int rank=0;rank<clusterCount;rank++)
+				{
+						clusterNumbers[(int)rootOrder[rank]] = rank;
+				}
+
+				final int[] clusterIds = new int[pointCount];
+				final byte[] pointTypes = new byte[pointCount];
+				ParallelTasks.forRange(pool, pointCount, (start, end) ->
+				{
+						IntList neighbours = new IntList();
+						for(int k=start;k<end;k++)
+						{
+								int point = orderedPoints[k];
+								int c = orderedResult.getClusterId(k);
+								pointTypes[point] = orderedResult.getPointType(k);
+								if(c == DBSCANResult.NOISE || pointTypes[point] == DBSCANResult.CORE_POINT)
+								{
+										clusterIds[point] = (c == DBSCANResult.NOISE) ? DBSCANResult.NOISE : clusterNumbers[c];
+										continue;
+								}
+
+								gridIndex.queryNeighbours(k, eps, neighbours);
+								int earliestCluster = c;
+								for(int n=0;n<neighbours.size();n++)
+								{
+										int neighbour = neighbours.get(n);
+										if(orderedResult.getPointType(neighbour) != DBSCANResult.CORE_POINT) continue;
+										int neighbourCluster = orderedResult.getClusterId(neighbour);
+										if(clusterRoots[neighbourCluster] < clusterRoots[earliestCluster]) earliestCluster = neighbourCluster;
+								}
+								clusterIds[point] = clusterNumbers[earliestCluster];
+						}
+				});
+				return new DBSCANResult(clusterIds, pointTypes, clusterCount);
+		}
+
+}
@@ -0,0 +1,768 @@
+package edu.ucsb.stko;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.json.JSONObject;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+// the tiled mode ("tiledMode") clusters inputs that do not fit in memory. The input is read in byte ranges and spilled to disk in buckets of users,
+// so that the duplicates are removed for a part of the users at a time, and the records are then spilled into square tiles of tileSize, each
+// with a halo of the records within 2 eps of it. Every tile is clustered on its own with the grid engine: the core points of the tile and of
+// the halo within eps of it have all their neighbours in the tile, so every pair of core points within eps of each other is linked in some tile,
+// and the clusters of the tiles are merged across the seams by a union-find over the core points they share. The AOIs are then built for each
+// merged cluster, and the records within them are counted tile by tile. The memory holds one tile, the users and the clusters being shaped,
+// and the AOIs are the same as those of the "grid" engine on the whole input
+class TiledClusterer
+{
+		// the input is read in byte ranges of this size, and split into user buckets of about this much input
+		private static final long RANGE_SIZE = 64L << 20;
+
+		// the buffers of each spill together hold at most this many bytes, and at most a sixteenth of the heap
+		private static final long SPILL_MEMORY_BUDGET = Math.min(64L << 20, Runtime.getRuntime().maxMemory() / 16);
+
+		// the halo reaches a little further than 2 eps, so that rounding in the tile bounds never loses a neighbour
+		private static final double HALO_MARGIN = 1e-6;
+
+		// a user bucket record: record number, user, x, y
+		private static final int USER_RECORD_SIZE = 24;
+		// a tile record: record number, user, x, y, flags
+		private static final int TILE_RECORD_SIZE = 25;
+		// a label record: record number, cluster node, x, y, point type
+		private static final int LABEL_RECORD_SIZE = 25;
+		// a cluster member record: cluster root, record number, x, y, point type
+		private static final int CLUSTER_RECORD_SIZE = 25;
+
+		private static final byte IS_KEPT = 1;
+		private static final byte IS_HOME = 2;
+
+		private File spillDirectory = null;
+		private PartitionedSpill userSpill = null;
+		private PartitionedSpill tileSpill = null;
+		private PartitionedSpill labelSpill = null;
+		private PartitionedSpill clusterSpill = null;
+
+		private MapProjection mapProjection = null;
+		private UserDictionary userDictionary = null;
+		private BitSet usersWithRecords = null;
+		private int bucketCount = 1;
+		private int recordCount = 0;
+		private double tileSize = 0;
+
+		// the merged clusters: the parent of every cluster node of the tiles, and the smallest record number of a core point of each node
+		private IntList nodeParents = null;
+		private IntList nodeRoots = null;
+
+
+		// read the input once and spill its records into the user buckets; the returned summary is that of the DataIngestor
+		public JSONObject spillData(JSONObject parameterObject)
+		{
+				System.out.println("Reading and summarizing the input data into tiles on disk...");
+				ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+				try
+				{
+						File inputFile = new File(parameterObject.getString("dataPath"));
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						double[] boundingBox = ParameterReader.getBoundingBox(parameterObject);
+
+						spillDirectory = new File(parameterObject.getString("tempPath")+"/"+inputFile.getName().replace(".csv", "")+"_tiles");
+						spillDirectory.mkdirs();
+						userSpill = new PartitionedSpill(spillDirectory, "users", USER_RECORD_SIZE, SPILL_MEMORY_BUDGET);
+						userDictionary = new UserDictionary();
+						usersWithRecords = new BitSet();
+
+						MappedCSVReader mappedCSVReader = new MappedCSVReader(parameterObject.getInt("recordIDIndex"), userIDIndex, parameterObject.getInt("lngIndex"), parameterObject.getInt("latIndex"), -1, false);
+						long rowCount = 0;
+						long validRecordCount = 0;
+						double[] extent = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+						RandomAccessFile randomAccessFile = new RandomAccessFile(inputFile, "r");
+						try
+						{
+								FileChannel channel = randomAccessFile.getChannel();
+								bucketCount = (int)Math.min(1 << 16, channel.size() / RANGE_SIZE + 1);
+								int rangeCount = (int)Math.max(1, (channel.size() + RANGE_SIZE - 1) / RANGE_SIZE);
+								long[] rangeStarts = MappedCSVReader.findRangeStarts(channel, rangeCount);
+
+								// the workers of the pool read a few ranges at a time, which are then spilled in the order of the file
+								int threadCount = pool.getParallelism();
+								for(int first=0;first<rangeCount;first+=threadCount)
+								{
+										ArrayList<ForkJoinTask<MappedCSVReader.CSVChunk>> rangeTasks = new ArrayList<ForkJoinTask<MappedCSVReader.CSVChunk>>();
+										for(int i=first;i<Math.min(rangeCount, first + threadCount);i++)
+										{
+												final long rangeStart = rangeStarts[i];
+												final long rangeEnd = rangeStarts[i+1];
+												final boolean skipFirstRow = (i == 0);
+												rangeTasks.add(pool.submit(() -> mappedCSVReader.readNewRange(channel, rangeStart, rangeEnd, skipFirstRow)));
+										}
+										for(int i=0;i<rangeTasks.size();i++)
+										{
+												MappedCSVReader.CSVChunk chunk = rangeTasks.get(i).get();
+												rangeTasks.set(i, null);
+												rowCount += chunk.rowCount;
+												validRecordCount += chunk.pointStore.size();
+												if(!spillChunk(chunk, boundingBox, extent))
+												{
+														deleteSpillFiles();
+														return null;
+												}
+										}
+								}
+						}
+						finally
+						{
+								randomAccessFile.close();
+						}
+
+						DataSummarizer dataSummarizer = new DataSummarizer();
+						if(rowCount > validRecordCount) System.out.println((rowCount - validRecordCount)+" rows could not be read (missing columns or invalid coordinates) and have been skipped.");
+						if(boundingBox == null)
+						{
+								dataSummarizer.addRecords(rowCount);
+						}
+						else
+						{
+								dataSummarizer.addRecords(recordCount);
+								System.out.println(recordCount+" records lie within the bounding box.");
+						}
+
+						// the zone of "utm" depends on the middle of all the records, so the records are projected when the buckets are read back
+						String projection = parameterObject.optString("projection", "").trim();
+						if(!projection.isEmpty())
+						{
+								mapProjection = DataIngestor.createMapProjection(projection, recordCount, extent[0], extent[1], extent[2], extent[3]);
+								if(mapProjection == null)
+								{
+										deleteSpillFiles();
+										return null;
+								}
+						}
+
+						return dataSummarizer.getSummaryObject(userIDIndex, userDictionary);
+				}
+				catch (Exception e)
+				{
+						deleteSpillFiles();
+						System.out.println("An error happened in reading the input data; The program has been canceled");
+						return null;
+				}
+				finally
+				{
+						pool.shutdown();
+				}
+		}
+
+
+		// spill the records of a chunk into the user buckets, numbering them in the order of the file; the users are renumbered into one
+		// dictionary as in MappedCSVReader, and with a bounding box only the users of the records within it are kept, as in the DataIngestor.
+		// False if there are too many records to number
+		private boolean spillChunk(MappedCSVReader.CSVChunk chunk, double[] boundingBox, double[] extent) throws Exception
+		{
+				PointStore chunkPointStore = chunk.pointStore;
+				int[] userIdMap = null;
+				if(boundingBox == null)
+				{
+						userIdMap = userDictionary.internAll(chunk.userDictionary);
+				}
+				else
+				{
+						userIdMap = new int[chunk.userDictionary.size()];
+						Arrays.fill(userIdMap, -1);
+				}
+
+				for(int i=0;i<chunkPointStore.size();i++)
+				{
+						double x = chunkPointStore.getX(i);
+						double y = chunkPointStore.getY(i);
+						if(boundingBox != null && !DatasetCache.contains(boundingBox, x, y)) continue;
+						if(recordCount == Integer.MAX_VALUE)
+						{
+								System.out.println("The input has more than "+Integer.MAX_VALUE+" records, which is more than the tiled mode can number; please use a boundingBox; The program has been canceled");
+								return false;
+						}
+
+						int userId = chunkPointStore.getUserId(i);
+						if(userId != -1)
+						{
+								if(userIdMap[userId] == -1) userIdMap[userId] = userDictionary.intern(chunk.userDictionary, userId);
+								userId = userIdMap[userId];
+								usersWithRecords.set(userId);
+						}
+						extent[0] = Math.min(extent[0], x);
+						extent[1] = Math.min(extent[1], y);
+						extent[2] = Math.max(extent[2], x);
+						extent[3] = Math.max(extent[3], y);
+
+						// all the records of a user go into the same bucket; without user ids the buckets only split the records
+						long bucket = (userId != -1) ? userId % bucketCount : recordCount % bucketCount;
+						userSpill.append(bucket).putInt(recordCount).putInt(userId).putDouble(x).putDouble(y);
+						recordCount++;
+				}
+				return true;
+		}
+
+
+		// remove the duplicates, cluster the tiles, merge their clusters and write the AOIs, with the same output as the ClusterAndShapeGenerator
+		public JSONObject clusterTiles(JSONObject parameterObject, JSONObject dataSummaryObject, EsriJSONWriter[] esriJSONWriters)
+		{
+				System.out.println("Preprocessing the input data...");
+				ForkJoinPool pool = new ForkJoinPool(ParallelTasks.getThreadCount(parameterObject));
+				try
+				{
+						int userIDIndex = parameterObject.getInt("userIDIndex");
+						double eps = parameterObject.getDouble("eps");
+						tileSize = parameterObject.getDouble("tileSize");
+						double haloWidth = 2 * eps * (1 + HALO_MARGIN);
+
+						int keptRecordCount = spillTiles(userIDIndex, eps, haloWidth, pool);
+						int processedUserCount = usersWithRecords.cardinality();
+						if(userIDIndex != -1)
+								System.out.println("After pre-processing, there are "+ keptRecordCount+" records and "+ processedUserCount+" users in the data.");
+						else
+								System.out.println("After pre-processing, there are "+ keptRecordCount+" records in the data.");
+						System.out.println("---------------------------------------------------");
+
+						System.out.println("Clustering and generating shapes...");
+						int minPts = ClusterAndShapeGenerator.getMinPts(parameterObject.getDouble("minPts"), parameterObject.getBoolean("minPtsPercentage"), userIDIndex, keptRecordCount, processedUserCount);
+						long[] tileKeys = tileSpill.getKeys();
+						int mergeCount = clusterTiles(tileKeys, eps, minPts, haloWidth, ParallelTasks.getThreadCount(parameterObject), pool);
+						System.out.println(tileKeys.length+" tiles have been clustered, and "+mergeCount+" of their clusters have been merged across the tile seams.");
+
+						int partitionCount = Math.max(1, tileKeys.length);
+						resolveClusters(tileKeys, partitionCount);
+
+						File inputFile = new File(parameterObject.getString("dataPath"));
+						File clusteredFile = new File(parameterObject.getString("tempPath")+"/"+inputFile.getName().replace(".csv", "")+"_clustered.csv");
+						if(clusteredFile.exists()) clusteredFile.delete();
+						double[] lambdaValues = ParameterReader.getLambdaValues(parameterObject);
+						ArrayList<Geometry[]> aoiGeometries = buildShapes(clusteredFile, minPts, lambdaValues, parameterObject, pool);
+
+						writeAOIFeatures(tileKeys, aoiGeometries, eps, userIDIndex, esriJSONWriters, parameterObject, dataSummaryObject, pool);
+
+						JSONObject clusterResultObject = new JSONObject();
+						clusterResultObject.put("aoiCount", esriJSONWriters[0].getFeatureCount());
+						for(int i=0;i<esriJSONWriters.length;i++)
+						{
+								if(esriJSONWriters.length == 1)
+										System.out.println(esriJSONWriters[i].getFeatureCount()+" AOIs have been written.");
+								else
+										System.out.println(esriJSONWriters[i].getFeatureCount()+" AOIs have been written for lambda "+JSONObject.numberToString(lambdaValues[i])+".");
+						}
+						System.out.println("Clustering and shape construction have finished...");
+						System.out.println("---------------------------------------------------");
+						return clusterResultObject;
+				}
+				catch (Exception e)
+				{
+						System.out.println("An error happened in the tiled clustering; The program has been canceled");
+						return null;
+				}
+				finally
+				{
+						pool.shutdownNow();
+						deleteSpillFiles();
+				}
+		}
+
+
+		// remove the duplicates of the users of one bucket at a time, and spill every record into its tile, and the kept ones also into the
+		// halo of the tiles within haloWidth; returns the number of kept records
+		private int spillTiles(int userIDIndex, double eps, double haloWidth, ForkJoinPool pool) throws Exception
+		{
+				tileSpill = new PartitionedSpill(spillDirectory, "tiles", TILE_RECORD_SIZE, SPILL_MEMORY_BUDGET);
+				int keptRecordCount = 0;
+				for(int b=0;b<bucketCount;b++)
+				{
+						ByteBuffer records = userSpill.read(b);
+						int bucketRecordCount = records.remaining() / USER_RECORD_SIZE;
+						int[] recordNumbers = new int[bucketRecordCount];
+						int[] userIds = new int[bucketRecordCount];
+						double[] xCoords = new double[bucketRecordCount];
+						double[] yCoords = new double[bucketRecordCount];
+						for(int i=0;i<bucketRecordCount;i++)
+						{
+								recordNumbers[i] = records.getInt();
+								userIds[i] = records.getInt();
+								xCoords[i] = records.getDouble();
+								yCoords[i] = records.getDouble();
+						}
+						records = null;
+						if(mapProjection != null) mapProjection.project(xCoords, yCoords, bucketRecordCount, pool);
+
+						// the users of bucket b are b, b + bucketCount, b + 2 * bucketCount ..., so they are numbered within the bucket by the quotient
+						boolean[] keepRecord = null;
+						if(userIDIndex != -1)
+						{
+								PointStore bucketPointStore = new PointStore(bucketRecordCount);
+								int bucketUserCount = 0;
+								for(int i=0;i<bucketRecordCount;i++)
+								{
+										bucketPointStore.add(xCoords[i], yCoords[i], userIds[i] / bucketCount, recordNumbers[i]);
+										bucketUserCount = Math.max(bucketUserCount, userIds[i] / bucketCount + 1);
+								}
+								keepRecord = DataPreProcessor.findKeptRecords(DataPreProcessor.groupRecordsByUser(bucketPointStore, bucketUserCount), bucketPointStore, eps, false, pool);
+						}
+
+						for(int i=0;i<bucketRecordCount;i++)
+						{
+								boolean isKept = (keepRecord == null) || keepRecord[i];
+								long tileX = (long)Math.floor(xCoords[i] / tileSize);
+								long tileY = (long)Math.floor(yCoords[i] / tileSize);
+								tileSpill.append(getTileKey(tileX, tileY)).putInt(recordNumbers[i]).putInt(userIds[i]).putDouble(xCoords[i]).putDouble(yCoords[i]).put((byte)(IS_HOME | (isKept ? IS_KEPT : 0)));
+								if(!isKept) continue;
+
+								keptRecordCount++;
+								for(int dx=-1;dx<=1;dx++)
+								{
+										for(int dy=-1;dy<=1;dy++)
+										{
+												if((dx != 0 || dy != 0) && isNearTile(xCoords[i], yCoords[i], tileX + dx, tileY + dy, haloWidth))
+														tileSpill.append(getTileKey(tileX + dx, tileY + dy)).putInt(recordNumbers[i]).putInt(userIds[i]).putDouble(xCoords[i]).putDouble(yCoords[i]).put(IS_KEPT);
+										}
+								}
+						}
+				}
+				userSpill.delete();
+				if(mapProjection != null) System.out.println("The records have been projected with "+mapProjection.getName()+".");
+				return keptRecordCount;
+		}
+
+
+		// cluster the kept records of every tile and link the clusters of the tiles through the core points they share. Each cluster of a tile
+		// becomes a node, and the labels of the records of the tile (not of its halo) are spilled with their nodes: one label for a core point,
+		// and one for each cluster a border point could join, since that depends on the merged clusters. Returns the number of nodes merged with others
+		private int clusterTiles(long[] tileKeys, double eps, int minPts, double haloWidth, int threadCount, ForkJoinPool pool) throws Exception
+		{
+				labelSpill = new PartitionedSpill(spillDirectory, "labels", LABEL_RECORD_SIZE, SPILL_MEMORY_BUDGET);
+				nodeParents = new IntList();
+				nodeRoots = new IntList();
+				HashMap<Integer, Integer> seamNodes = new HashMap<Integer, Integer>();
+				int mergeCount = 0;
+				IntList neighbours = new IntList();
+				IntList borderNodes = new IntList();
+				for(long tileKey : tileKeys)
+				{
+						TileRecords tile = readTile(tileKey, true);
+						GridIndex gridIndex = new GridIndex(tile.xCoords, tile.yCoords, tile.size, eps);
+						DBSCANResult tileResult = (threadCount > 1) ? new ParallelDBSCANClusterer(eps, minPts, pool).cluster(gridIndex) : new GridDBSCANClusterer(eps, minPts).cluster(gridIndex, null);
+
+						// the records of the tile are in the order of their numbers, so the first core point of each cluster is its smallest
+						int nodeBase = nodeParents.size();
+						for(int c=0;c<tileResult.getClusterCount();c++)
+						{
+								nodeParents.add(nodeBase + c);
+								nodeRoots.add(-1);
+						}
+						for(int i=0;i<tile.size;i++)
+						{
+								int node = nodeBase + tileResult.getClusterId(i);
+								if(tileResult.getPointType(i) == DBSCANResult.CORE_POINT && nodeRoots.get(node) == -1) nodeRoots.set(node, tile.recordNumbers[i]);
+						}
+
+						// a core point in the halo of a tile or near the seams of its own tile can also be a core point of other tiles
+						long tileX = getTileX(tileKey);
+						long tileY = getTileY(tileKey);
+						for(int i=0;i<tile.size;i++)
+						{
+								if(tileResult.getPointType(i) != DBSCANResult.CORE_POINT) continue;
+								if(tile.isHome[i] && !isNearOtherTile(tile.xCoords[i], tile.yCoords[i], tileX, tileY, haloWidth)) continue;
+
+								int node = nodeBase + tileResult.getClusterId(i);
+								Integer seamNode = seamNodes.putIfAbsent(tile.recordNumbers[i], node);
+								if(seamNode != null && union(seamNode, node)) mergeCount++;
+						}
+
+						for(int i=0;i<tile.size;i++)
+						{
+								if(!tile.isHome[i] || tileResult.getClusterId(i) == DBSCANResult.NOISE) continue;
+
+								if(tileResult.getPointType(i) == DBSCANResult.CORE_POINT)
+								{
+										writeLabel(tileKey, tile, i, nodeBase + tileResult.getClusterId(i), DBSCANResult.CORE_POINT);
+										continue;
+								}
+
+								// the core neighbours of a point of the tile all lie within eps of it, so their types are those of the whole input
+								gridIndex.queryNeighbours(i, eps, neighbours);
+								borderNodes.clear();
+								for(int n=0;n<neighbours.size();n++)
+								{
+										int neighbour = neighbours.get(n);
+										if(tileResult.getPointType(neighbour) != DBSCANResult.CORE_POINT) continue;
+
+										int node = nodeBase + tileResult.getClusterId(neighbour);
+										boolean isListed = false;
+										for(int k=0;k<borderNodes.size() && !isListed;k++)
+										{
+												isListed = (borderNodes.get(k) == node);
+										}
+										if(!isListed)
+										{
+												borderNodes.add(node);
+												writeLabel(tileKey, tile, i, node, DBSCANResult.BORDER_POINT);
+										}
+								}
+						}
+				}
+				return mergeCount;
+		}
+
+		private void writeLabel(long tileKey, TileRecords tile, int i, int node, byte pointType) throws Exception
+		{
+				labelSpill.append(tileKey).putInt(tile.recordNumbers[i]).putInt(node).putDouble(tile.xCoords[i]).putDouble(tile.yCoords[i]).put(pointType);
+		}
+
+
+		// spill the clustered records by the root of their merged cluster, which is the smallest record number of its core points as in the
+		// "grid" engine; a border point joins the cluster with the smallest root among those it could join. The partitions hold ranges of roots
+		private void resolveClusters(long[] tileKeys, int partitionCount) throws Exception
+		{
+				clusterSpill = new PartitionedSpill(spillDirectory, "clusters", CLUSTER_RECORD_SIZE, SPILL_MEMORY_BUDGET);
+				for(long tileKey : tileKeys)
+				{
+						ByteBuffer labels = labelSpill.read(tileKey);
+						int pendingRecord = -1;
+						int pendingRoot = 0;
+						double pendingX = 0;
+						double pendingY = 0;
+						byte pendingType = 0;
+						while(true)
+						{
+								boolean hasLabel = labels.hasRemaining();
+								int recordNumber = hasLabel ? labels.getInt() : -1;
+								if(pendingRecord != -1 && recordNumber != pendingRecord)
+								{
+										long partition = (long)pendingRoot * partitionCount / recordCount;
+										clusterSpill.append(partition).putInt(pendingRoot).putInt(pendingRecord).putDouble(pendingX).putDouble(pendingY).put(pendingType);
+								}
+								if(!hasLabel) break;
+
+								int root = nodeRoots.get(find(labels.getInt()));
+								double x = labels.getDouble();
+								double y = labels.getDouble();
+								byte pointType = labels.get();
+								if(recordNumber != pendingRecord)
+								{
+										pendingRecord = recordNumber;
+										pendingRoot = root;
+										pendingX = x;
+										pendingY = y;
+										pendingType = pointType;
+								}
+								else
+								{
+										pendingRoot = Math.min(pendingRoot, root);
+								}
+						}
+				}
+				labelSpill.delete();
+		}
+
+
+		// write the clustered records and build the shapes of the clusters with at least minPts members, in the order of their roots and with
+		// their members in the order of the records, as the ClusterAndShapeGenerator does; the shapes of a partition are built on the pool
+		private ArrayList<Geometry[]> buildShapes(File clusteredFile, int minPts, final double[] lambdaValues, final JSONObject parameterObject, ForkJoinPool pool) throws Exception
+		{
+				final ClusterAndShapeGenerator clusterAndShapeGenerator = new ClusterAndShapeGenerator();
+				ArrayList<Geometry[]> aoiGeometries = new ArrayList<Geometry[]>();
+				FileWriter clusterFileWriter = new FileWriter(clusteredFile);
+				String newLineSymbol = System.getProperty("line.separator");
+				int clusterIndex = 1;
+				try
+				{
+						for(long partition : clusterSpill.getKeys())
+						{
+								ByteBuffer members = clusterSpill.read(partition);
+								int memberCount = members.remaining() / CLUSTER_RECORD_SIZE;
+								int[] roots = new int[memberCount];
+								long[] recordOrder = new long[memberCount];
+								for(int i=0;i<memberCount;i++)
+								{
+										roots[i] = members.getInt();
+										recordOrder[i] = ((long)members.getInt() << 32) | i;
+										members.position(members.position() + CLUSTER_RECORD_SIZE - 8);
+								}
+								Arrays.sort(recordOrder);
+
+								// the members in the order of their records, then grouped by their roots
+								final double[] xCoords = new double[memberCount];
+								final double[] yCoords = new double[memberCount];
+								byte[] pointTypes = new byte[memberCount];
+								long[] clusterOrder = new long[memberCount];
+								for(int k=0;k<memberCount;k++)
+								{
+										int i = (int)(recordOrder[k] & 0xffffffffL);
+										int position = i * CLUSTER_RECORD_SIZE + 8;
+										xCoords[k] = members.getDouble(position);
+										yCoords[k] = members.getDouble(position + 8);
+										pointTypes[k] = members.get(position + 16);
+										clusterOrder[k] = ((long)roots[i] << 32) | k;
+								}
+								members = null;
+								recordOrder = null;
+								Arrays.sort(clusterOrder);
+
+								ArrayList<ForkJoinTask<Geometry[]>> shapeTasks = new ArrayList<ForkJoinTask<Geometry[]>>();
+								for(int start=0;start<memberCount;)
+								{
+										int end = start;
+										while(end < memberCount && (clusterOrder[end] >>> 32) == (clusterOrder[start] >>> 32)) end++;
+										if(end - start >= minPts)
+										{
+												final int[] pointsInCluster = new int[end - start];
+												for(int j=start;j<end;j++)
+												{
+														int k = (int)(clusterOrder[j] & 0xffffffffL);
+														pointsInCluster[j - start] = k;
+														clusterFileWriter.append(xCoords[k]+","+yCoords[k]+","+"cluster_"+clusterIndex+","+DBSCANResult.getPointTypeName(pointTypes[k])+newLineSymbol);
+												}
+												clusterIndex++;
+												shapeTasks.add(pool.submit(() -> clusterAndShapeGenerator.createConcaveHulls(xCoords, yCoords, pointsInCluster, lambdaValues, parameterObject)));
+										}
+										start = end;
+								}
+								for(int k=0;k<shapeTasks.size();k++)
+								{
+										aoiGeometries.add(shapeTasks.get(k).get());
+								}
+						}
+				}
+				finally
+				{
+						clusterFileWriter.close();
+				}
+				clusterSpill.delete();
+				return aoiGeometries;
+		}
+
+
+		// count the records and users within the AOIs one tile at a time, each record in its own tile, and write the AOIs; the lambda values
+		// that give the same shape share the count, as in the ClusterAndShapeGenerator
+		private void writeAOIFeatures(long[] tileKeys, ArrayList<Geometry[]> aoiGeometries, double eps, final int userIDIndex, EsriJSONWriter[] esriJSONWriters, JSONObject parameterObject, JSONObject dataSummaryObject, ForkJoinPool pool) throws Exception
+		{
+				int aoiCount = aoiGeometries.size();
+				int[][] shapeSlots = new int[aoiCount][];
+				final ArrayList<Geometry> slotGeometries = new ArrayList<Geometry>();
+				for(int k=0;k<aoiCount;k++)
+				{
+						Geometry[] geometries = aoiGeometries.get(k);
+						shapeSlots[k] = new int[geometries.length];
+						for(int i=0;i<geometries.length;i++)
+						{
+								shapeSlots[k][i] = -1;
+								if(geometries[i] == null) continue;
+								for(int j=0;j<i && shapeSlots[k][i] == -1;j++)
+								{
+										if(geometries[j] != null && geometries[j].equalsExact(geometries[i])) shapeSlots[k][i] = shapeSlots[k][j];
+								}
+								if(shapeSlots[k][i] == -1)
+								{
+										shapeSlots[k][i] = slotGeometries.size();
+										slotGeometries.add(geometries[i]);
+								}
+						}
+				}
+
+				final int slotCount = slotGeometries.size();
+				final long[] slotRecordCounts = new long[slotCount];
+				final int[][] slotUsers = new int[slotCount][0];
+				for(long tileKey : tileKeys)
+				{
+						TileRecords tile = readTile(tileKey, false);
+						if(tile.size == 0) continue;
+
+						final PointStore tilePointStore = new PointStore(tile.size);
+						final Envelope tileEnvelope = new Envelope();
+						for(int i=0;i<tile.size;i++)
+						{
+								tilePointStore.add(tile.xCoords[i], tile.yCoords[i], tile.userIds[i], tile.recordNumbers[i]);
+								tileEnvelope.expandToInclude(tile.xCoords[i], tile.yCoords[i]);
+						}
+						final AOIMembershipCounter aoiMembershipCounter = new AOIMembershipCounter(tilePointStore, userIDIndex, eps, false);
+						ParallelTasks.forRange(pool, slotCount, (start, end) ->
+						{
+								for(int s=start;s<end;s++)
+								{
+										Geometry geometry = slotGeometries.get(s);
+										if(!tileEnvelope.intersects(geometry.getEnvelopeInternal())) continue;
+
+										IntList coveredRecords = aoiMembershipCounter.findCoveredRecords(geometry);
+										slotRecordCounts[s] += coveredRecords.size();
+										if(userIDIndex != -1 && coveredRecords.size() > 0) slotUsers[s] = mergeUsers(slotUsers[s], coveredRecords, tilePointStore);
+								}
+						});
+				}
+
+				ClusterAndShapeGenerator clusterAndShapeGenerator = new ClusterAndShapeGenerator();
+				for(int k=0;k<aoiCount;k++)
+				{
+						for(int i=0;i<esriJSONWriters.length;i++)
+						{
+								int s = shapeSlots[k][i];
+								if(s == -1) continue;
+								clusterAndShapeGenerator.writeAOIFeature(esriJSONWriters[i], slotGeometries.get(s), esriJSONWriters[i].getFeatureCount()+1, slotRecordCounts[s], slotUsers[s].length, parameterObject, dataSummaryObject);
+						}
+				}
+		}
+
+
+		// the sorted distinct users of an AOI together with those of the covered records of a tile
+		private static int[] mergeUsers(int[] aoiUsers, IntList coveredRecords, PointStore tilePointStore)
+		{
+				int[] tileUsers = new int[coveredRecords.size()];
+				for(int i=0;i<tileUsers.length;i++)
+				{
+						tileUsers[i] = tilePointStore.getUserId(coveredRecords.get(i));
+				}
+				Arrays.sort(tileUsers);
+
+				int[] mergedUsers = new int[aoiUsers.length + tileUsers.length];
+				int mergedCount = 0;
+				int a = 0;
+				int t = 0;
+				while(a < aoiUsers.length || t < tileUsers.length)
+				{
+						int user = (t == tileUsers.length || (a < aoiUsers.length && aoiUsers[a] <= tileUsers[t])) ? aoiUsers[a++] : tileUsers[t++];
+						if(mergedCount == 0 || mergedUsers[mergedCount-1] != user) mergedUsers[mergedCount++] = user;
+				}
+				return Arrays.copyOf(mergedUsers, mergedCount);
+		}
+
+
+		// the kept records of a tile and its halo, or only all the records of the tile itself, in the order of their numbers
+		private TileRecords readTile(long tileKey, boolean isClustered) throws Exception
+		{
+				ByteBuffer records = tileSpill.read(tileKey);
+				int tileRecordCount = records.remaining() / TILE_RECORD_SIZE;
+				long[] recordOrder = new long[tileRecordCount];
+				int selectedCount = 0;
+				for(int i=0;i<tileRecordCount;i++)
+				{
+						byte flags = records.get(i * TILE_RECORD_SIZE + TILE_RECORD_SIZE - 1);
+						if(isClustered ? (flags & IS_KEPT) == 0 : (flags & IS_HOME) == 0) continue;
+						recordOrder[selectedCount++] = ((long)records.getInt(i * TILE_RECORD_SIZE) << 32) | i;
+				}
+				Arrays.sort(recordOrder, 0, selectedCount);
+
+				TileRecords tile = new TileRecords(selectedCount);
+				for(int k=0;k<selectedCount;k++)
+				{
+						int position = (int)(recordOrder[k] & 0xffffffffL) * TILE_RECORD_SIZE;
+						tile.recordNumbers[k] = records.getInt(position);
+						tile.userIds[k] = records.getInt(position + 4);
+						tile.xCoords[k] = records.getDouble(position + 8);
+						tile.yCoords[k] = records.getDouble(position + 16);
+						tile.isHome[k] = (records.get(position + 24) & IS_HOME) != 0;
+				}
+				return tile;
+		}
+
+		private static class TileRecords
+		{
+				final int size;
+				final int[] recordNumbers;
+				final int[] userIds;
+				final double[] xCoords;
+				final double[] yCoords;
+				final boolean[] isHome;
+
+				TileRecords(int size)
+				{
+						this.size = size;
+						recordNumbers = new int[size];
+						userIds = new int[size];
+						xCoords = new double[size];
+						yCoords = new double[size];
+						isHome = new boolean[size];
+				}
+		}
+
+
+		// whether (x, y) lies within distance of the tile, measured along the axes
+		private boolean isNearTile(double x, double y, long tileX, long tileY, double distance)
+		{
+				return x >= tileX * tileSize - distance && x <= (tileX + 1) * tileSize + distance && y >= tileY * tileSize - distance && y <= (tileY + 1) * tileSize + distance;
+		}
+
+		// whether a record of the tile has been spilled into the halo of another tile
+		private boolean isNearOtherTile(double x, double y, long tileX, long tileY, double haloWidth)
+		{
+				for(int dx=-1;dx<=1;dx++)
+				{
+						for(int dy=-1;dy<=1;dy++)
+						{
+								if((dx != 0 || dy != 0) && isNearTile(x, y, tileX + dx, tileY + dy, haloWidth)) return true;
+						}
+				}
+				return false;
+		}
+
+		private static long getTileKey(long tileX, long tileY)
+		{
+				return (tileX << 32) | (tileY & 0xffffffffL);
+		}
+
+		private static long getTileX(long tileKey)
+		{
+				return tileKey >> 32;
+		}
+
+		private static long getTileY(long tileKey)
+		{
+				return (int)tileKey;
+		}
+
+
+		private int find(int node)
+		{
+				while(nodeParents.get(node) != node)
+				{
+						// path halving
+						nodeParents.set(node, nodeParents.get(nodeParents.get(node)));
+						node = nodeParents.get(node);
+				}
+				return node;
+		}
+
+		// merge two nodes, keeping the smaller root record; false if they are merged already
+		private boolean union(int nodeA, int nodeB)
+		{
+				int rootA = find(nodeA);
+				int rootB = find(nodeB);
+				if(rootA == rootB) return false;
+				if(nodeRoots.get(rootA) < nodeRoots.get(rootB))
+						nodeParents.set(rootB, rootA);
+				else
+						nodeParents.set(rootA, rootB);
+				return true;
+		}
+
+
+		// the projection of the records; null if they keep the coordinates of the input
+		MapProjection getMapProjection()
+		{
+				return mapProjection;
+		}
+
+		// remove the spilled records from tempPath
+		void deleteSpillFiles()
+		{
+				for(PartitionedSpill spill : new PartitionedSpill[]{userSpill, tileSpill, labelSpill, clusterSpill})
+				{
+						if(spill != null) spill.delete();
+				}
+				if(spillDirectory != null) spillDirectory.delete();
+		}
+
+}
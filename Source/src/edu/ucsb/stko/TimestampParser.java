@@ -0,0 +1,132 @@
+package edu.ucsb.stko;
+
+// parses the timestamp column straight from bytes into seconds since 1970-01-01 00:00:00 UTC; a timestamp is either a whole number
+// of seconds (Unix time, such as "1270677818"), or a date "2010-04-07" that may be followed by a time "21:03" or "21:03:38", separated
+// by a space or a "T" (as in Flickr and ISO 8601). Dates are read as UTC; fractions of a second and a final "Z" are ignored.
+// Not thread-safe: every reader thread uses its own parser
+class TimestampParser
+{
+		private long value;
+
+
+		// returns false if the bytes are not a timestamp; the parsed timestamp is then available from getValue()
+		boolean parse(byte[] buffer, int offset, int length)
+		{
+				int position = offset;
+				int end = offset + length;
+				while(position < end && (buffer[position] & 0xff) <= ' ') position++;
+				while(end > position && (buffer[end-1] & 0xff) <= ' ') end--;
+				if(position == end) return false;
+
+				boolean isDate = false;
+				for(int i=position;i<end && !isDate;i++)
+				{
+						isDate = (buffer[i] == '-' && i > position);
+				}
+				if(!isDate) return parseSeconds(buffer, position, end);
+
+				// yyyy-MM-dd
+				if(end - position < 10 || buffer[position+4] != '-' || buffer[position+7] != '-') return false;
+				int year = readDigits(buffer, position, 4);
+				int month = readDigits(buffer, position+5, 2);
+				int day = readDigits(buffer, position+8, 2);
+				if(year < 0 || month < 1 || month > 12 || day < 1 || day > 31) return false;
+				position += 10;
+
+				// HH:mm[:ss[.fraction]][Z]
+				int secondOfDay = 0;
+				if(position < end)
+				{
+						if(buffer[position] != ' ' && buffer[position] != 'T') return false;
+						position++;
+						if(end - position < 5 || buffer[position+2] != ':') return false;
+						int hour = readDigits(buffer, position, 2);
+						int minute = readDigits(buffer, position+3, 2);
+						int second = 0;
+						position += 5;
+						if(position < end && buffer[position] == ':')
+						{
+								if(end - position < 3) return false;
+								second = readDigits(buffer, position+1, 2);
+								position += 3;
+						}
+						if(hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) return false;
+						if(position < end && buffer[position] == '.')
+						{
+								position++;
+								while(position < end && buffer[position] >= '0' && buffer[position] <= '9') position++;
+						}
+						if(position < end && buffer[position] == 'Z') position++;
+						if(position != end) return false;
+						secondOfDay = hour * 3600 + minute * 60 + second;
+				}
+
+				value = getEpochDay(year, month, day) * 86400L + secondOfDay;
+				return true;
+		}
+
+		long getValue()
+		{
+				return value;
+		}
+
+
+		// a whole number of seconds, with an optional sign and an ignored fraction
+		private boolean parseSeconds(byte[] buffer, int position, int end)
+		{
+				boolean negative = false;
+				if(buffer[position] == '-' || buffer[position] == '+')
+				{
+						negative = (buffer[position] == '-');
+						position++;
+				}
+				if(position == end) return false;
+
+				long seconds = 0;
+				int digitCount = 0;
+				while(position < end && buffer[position] >= '0' && buffer[position] <= '9')
+				{
+						if(++digitCount > 18) return false;
+						seconds = seconds * 10 + (buffer[position] - '0');
+						position++;
+				}
+				if(digitCount == 0) return false;
+				if(position < end && buffer[position] == '.')
+				{
+						position++;
+						while(position < end && buffer[position] >= '0' && buffer[position] <= '9') position++;
+				}
+				if(position != end) return false;
+
+				value = negative ? -seconds : seconds;
+				return true;
+		}
+
+
+		// the value of digitCount decimal digits, or -1 if one of them is not a digit
+		private static int readDigits(byte[] buffer, int position, int digitCount)
+		{
+				int result = 0;
+				for(int i=0;i<digitCount;i++)
+				{
+						byte b = buffer[position+i];
+						if(b < '0' || b > '9') return -1;
+						result = result * 10 + (b - '0');
+				}
+				return result;
+		}
+
+
+		// the number of days from 1970-01-01 to a date of the proleptic Gregorian calendar
+		static long getEpochDay(int year, int month, int day)
+		{
+				// count the years from March, so that the leap day is the last day of the year
+				long y = (month <= 2) ? year - 1 : year;
+				long era = Math.floorDiv(y, 400);
+				long yearOfEra = y - era * 400;
+				long dayOfYear = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+				long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+				return era * 146097 + dayOfEra - 719468;
+		}
+
+}
@@ -0,0 +1,189 @@
+package edu.ucsb.stko;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// numbers the user id strings in the order they are first seen, so that later stages can work with ints;
+// the ids are kept as UTF-8 bytes in one shared array, which costs a few bytes per user instead of a String and a map entry
+class UserDictionary
+{
+		private byte[] keyBytes = new byte[1 << 16];
+		private int keyBytesUsed = 0;
+		private int[] keyOffsets = new int[1024];  // user u occupies keyBytes[keyOffsets[u]] ... keyBytes[keyOffsets[u+1]-1]
+		private int[] keyHashes = new int[1024];
+		private int size = 0;
+
+		// open addressing table holding (user number + 1), 0 marks an empty slot
+		private int[] table = new int[2048];
+
+
+		UserDictionary()
+		{
+				keyOffsets[0] = 0;
+		}
+
+
+		int intern(String userName)
+		{
+				byte[] userNameBytes = userName.getBytes(StandardCharsets.UTF_8);
+				return intern(userNameBytes, 0, userNameBytes.length);
+		}
+
+
+		// look up the user id stored in buffer[offset] ... buffer[offset+length-1], adding it if it is new
+		int intern(byte[] buffer, int offset, int length)
+		{
+				int hash = hashBytes(buffer, offset, length);
+				int mask = table.length - 1;
+				int slot = hash & mask;
+				while(table[slot] != 0)
+				{
+						int userId = table[slot] - 1;
+						if(keyHashes[userId] == hash && keyEquals(userId, buffer, offset, length)) return userId;
+						slot = (slot + 1) & mask;
+				}
+
+				int userId = size;
+				appendKey(buffer, offset, length, hash);
+				table[slot] = userId + 1;
+				if(size * 2 > table.length) rehash();
+				return userId;
+		}
+
+
+		// intern all the users of another dictionary in their order; returns the new id of every user of the other dictionary
+		int[] internAll(UserDictionary other)
+		{
+				int[] userIdMap = new int[other.size];
+				for(int userId=0;userId<other.size;userId++)
+				{
+						userIdMap[userId] = intern(other, userId);
+				}
+				return userIdMap;
+		}
+
+		// intern a user of another dictionary
+		int intern(UserDictionary other, int otherUserId)
+		{
+				int keyStart = other.keyOffsets[otherUserId];
+				return intern(other.keyBytes, keyStart, other.keyOffsets[otherUserId+1] - keyStart);
+		}
+
+
+		// the users as bytes: the user count, the key offsets and then the keys
+		byte[] toByteArray()
+		{
+				ByteBuffer buffer = ByteBuffer.allocate(4 + 4 * (size + 1) + keyBytesUsed);
+				buffer.putInt(size);
+				for(int userId=0;userId<=size;userId++)
+				{
+						buffer.putInt(keyOffsets[userId]);
+				}
+				buffer.put(keyBytes, 0, keyBytesUsed);
+				return buffer.array();
+		}
+
+		// the dictionary written by toByteArray(); the users keep their ids
+		static UserDictionary fromByteArray(byte[] bytes)
+		{
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				int userCount = buffer.getInt();
+				int[] offsets = new int[userCount + 1];
+				for(int userId=0;userId<=userCount;userId++)
+				{
+						offsets[userId] = buffer.getInt();
+				}
+				int keyStart = buffer.position();
+
+				UserDictionary userDictionary = new UserDictionary();
+				for(int userId=0;userId<userCount;userId++)
+				{
+						userDictionary.intern(bytes, keyStart + offsets[userId], offsets[userId+1] - offsets[userId]);
+				}
+				return userDictionary;
+		}
+
+
+		String getUserName(int userId)
+		{
+				return new String(keyBytes, keyOffsets[userId], keyOffsets[userId+1] - keyOffsets[userId], StandardCharsets.UTF_8);
+		}
+
+		// a 64-bit hash of the user id (FNV-1a), which identifies the user across runs although the user numbers may change
+		long getUserKey(int userId)
+		{
+				long key = 0xCBF29CE484222325L;
+				for(int i=keyOffsets[userId];i<keyOffsets[userId+1];i++)
+				{
+						key ^= keyBytes[i] & 0xff;
+						key *= 0x100000001B3L;
+				}
+				return key;
+		}
+
+		int size()
+		{
+				return size;
+		}
+
+
+		private void appendKey(byte[] buffer, int offset, int length, int hash)
+		{
+				if(keyBytesUsed + length > keyBytes.length)
+				{
+						keyBytes = Arrays.copyOf(keyBytes, Math.max(keyBytes.length * 2, keyBytesUsed + length));
+				}
+				System.arraycopy(buffer, offset, keyBytes, keyBytesUsed, length);
+				keyBytesUsed += length;
+
+				if(size + 2 > keyOffsets.length)
+				{
+						keyOffsets = Arrays.copyOf(keyOffsets, keyOffsets.length * 2);
+						keyHashes = Arrays.copyOf(keyHashes, keyHashes.length * 2);
+				}
+				keyHashes[size] = hash;
+				size++;
+				keyOffsets[size] = keyBytesUsed;
+		}
+
+		private boolean keyEquals(int userId, byte[] buffer, int offset, int length)
+		{
+				int keyStart = keyOffsets[userId];
+				if(keyOffsets[userId+1] - keyStart != length) return false;
+				for(int i=0;i<length;i++)
+				{
+						if(keyBytes[keyStart + i] != buffer[offset + i]) return false;
+				}
+				return true;
+		}
+
+		private void rehash()
+		{
+				int[] newTable = new int[table.length * 2];
+				int mask = newTable.length - 1;
+				for(int userId=0;userId<size;userId++)
+				{
+						int slot = keyHashes[userId] & mask;
+						while(newTable[slot] != 0) slot = (slot + 1) & mask;
+						newTable[slot] = userId + 1;
+				}
+				table = newTable;
+		}
+
+		private static int hashBytes(byte[] buffer, int offset, int length)
+		{
+				// FNV-1a, followed by a final mix so that the low bits can be used directly
+				int hash = 0x811C9DC5;
+				for(int i=0;i<length;i++)
+				{
+						hash ^= buffer[offset + i];
+						hash *= 0x01000193;
+				}
+				hash ^= (hash >>> 16);
+				hash *= 0x85EBCA6B;
+				hash ^= (hash >>> 13);
+				return hash;
+		}
+
+}